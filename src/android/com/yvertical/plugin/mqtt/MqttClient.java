@@ -361,8 +361,11 @@ public class MqttClient {
                     @Override
                     public void messageArrived(String topic, MqttMessage message)
                         throws Exception {
-                        MqttPlugin.debug(MqttServiceManager.class,
-                                         "messageArrived:" + message.toString());
+                        // Only decode the payload for the log when it is written
+                        if (MqttPlugin.isDebugEnabled()) {
+                            MqttPlugin.debug(MqttServiceManager.class,
+                                             "messageArrived:" + message.toString());
+                        }
 
                         if (!interceptMessage(mConfig, message)) {
                             if (mListener != null) {
@@ -113,6 +113,14 @@ public class MqttPlugin extends CordovaPlugin {
 		return true;
 	}
     
+    /**
+     * Returns whether debug messages are logged, so that callers can skip
+     * building messages that are expensive to make.
+     */
+    public static boolean isDebugEnabled() {
+    	return Log.isLoggable("MqttPlugin", Log.DEBUG);
+    }
+    
     public static void debug(Class<?> c, String message) {
     	Log.d("MqttPlugin", String.format("[%s]:%s", (c != null ? c.getSimpleName() : "Unknown class"), message));
     }
@@ -846,8 +846,11 @@ class MqttConnection implements MqttCallback {
 	public void messageArrived(String topic, MqttMessage message)
 			throws Exception {
 
-		service.traceDebug(TAG,
-				"messageArrived(" + topic + ",{" + message.toString() + "})");
+		// Only decode the payload for the trace if it will be used
+		if (service.isTraceEnabled()) {
+			service.traceDebug(TAG,
+					"messageArrived(" + topic + ",{" + message.toString() + "})");
+		}
 
 		String messageId = service.messageStore.storeArrived(clientHandle,
 				topic, message);
@@ -17,6 +17,7 @@ import org.eclipse.paho.client.mqttv3.IMqttAsyncClient;
 import org.eclipse.paho.client.mqttv3.IMqttToken;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttSecurityException;
+import org.eclipse.paho.client.mqttv3.MqttTokenFuture;
 import org.eclipse.paho.client.mqttv3.internal.wire.MqttWireMessage;
 
 /**
@@ -25,7 +26,7 @@ import org.eclipse.paho.client.mqttv3.internal.wire.MqttWireMessage;
  * MqttAndroidClient implementation
  */
 
-class MqttTokenAndroid implements IMqttToken {
+class MqttTokenAndroid implements IMqttToken, MqttTokenFuture.Provider {
 
   private IMqttActionListener listener;
 
@@ -45,6 +46,8 @@ class MqttTokenAndroid implements IMqttToken {
 
   private MqttException pendingException;
 
+  private MqttTokenFuture future;
+
   /**
    * Standard constructor
    * 
@@ -124,6 +127,7 @@ class MqttTokenAndroid implements IMqttToken {
         listener.onSuccess(this);
       }
     }
+    getFuture().complete(this, null);
   }
 
   /**
@@ -146,6 +150,7 @@ class MqttTokenAndroid implements IMqttToken {
         listener.onFailure(this, exception);
       }
     }
+    getFuture().complete(this, pendingException);
 
   }
 
@@ -197,6 +202,17 @@ class MqttTokenAndroid implements IMqttToken {
     return listener;
   }
 
+  /**
+   * @see org.eclipse.paho.client.mqttv3.MqttTokenFuture.Provider#getFuture()
+   */
+  @Override
+  public synchronized MqttTokenFuture getFuture() {
+    if (future == null) {
+      future = new MqttTokenFuture(this);
+    }
+    return future;
+  }
+
   /**
    * @see org.eclipse.paho.client.mqttv3.IMqttToken#getTopics()
    */
@@ -0,0 +1,36 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution. 
+ *
+ * The Eclipse Public License is available at 
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at 
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * Contributors:
+ *    Dave Locke - initial API and implementation and/or initial documentation
+ */
+package org.eclipse.paho.client.mqttv3;
+
+/**
+ * Chooses which inbound messages must be handled in order.
+ * <p>When messages are handed to the application on more than one thread,
+ * messages with equal keys are handled one after another, in the order
+ * they arrived, while messages with different keys may be handled at the
+ * same time. Without a dispatch key the topic name is used, so ordering is
+ * kept within each topic.</p>
+ * @see MqttConnectOptions#setDispatchThreads(int)
+ */
+public interface IMqttDispatchKey {
+	/**
+	 * Returns the key that orders a message. This is called on the
+	 * client's callback thread, so it must not block.
+	 * @param topic the topic the message arrived on
+	 * @param message the message
+	 * @return the key, or null to use the topic
+	 */
+	public Object getDispatchKey(String topic, MqttMessage message);
+}
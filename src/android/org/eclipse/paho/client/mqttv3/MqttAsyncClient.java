@@ -30,6 +30,7 @@ import org.eclipse.paho.client.mqttv3.internal.ClientComms;
 import org.eclipse.paho.client.mqttv3.internal.ConnectActionListener;
 import org.eclipse.paho.client.mqttv3.internal.ExceptionHelper;
 import org.eclipse.paho.client.mqttv3.internal.LocalNetworkModule;
+import org.eclipse.paho.client.mqttv3.internal.NIONetworkModule;
 import org.eclipse.paho.client.mqttv3.internal.NetworkModule;
 import org.eclipse.paho.client.mqttv3.internal.SSLNetworkModule;
 import org.eclipse.paho.client.mqttv3.internal.TCPNetworkModule;
@@ -373,8 +374,15 @@ public class MqttAsyncClient implements IMqttAsyncClient { // DestinationProvide
 			else if (factory instanceof SSLSocketFactory) {
 				throw ExceptionHelper.createMqttException(MqttException.REASON_CODE_SOCKET_FACTORY_MISMATCH);
 			}
-			netModule = new TCPNetworkModule(factory, host, port, clientId);
-			((TCPNetworkModule)netModule).setConnectTimeout(options.getConnectionTimeout());
+			if (options.isNonBlockingIO() && factory == SocketFactory.getDefault()) {
+				// Only plain sockets can be read through a selector
+				netModule = new NIONetworkModule(host, port, clientId);
+				((NIONetworkModule)netModule).setConnectTimeout(options.getConnectionTimeout());
+				((NIONetworkModule)netModule).setTcpNoDelay(options.isTcpNoDelay());
+			} else {
+				netModule = new TCPNetworkModule(factory, host, port, clientId);
+				((TCPNetworkModule)netModule).setConnectTimeout(options.getConnectionTimeout());
+			}
 			break;
 		case MqttConnectOptions.URI_TYPE_SSL:
 			shortAddress = address.substring(6);
@@ -456,6 +464,9 @@ public class MqttAsyncClient implements IMqttAsyncClient { // DestinationProvide
 			// This shouldn't happen, as long as validateURI() has been called.
 			netModule = null;
 		}
+		if (netModule instanceof TCPNetworkModule) {
+			((TCPNetworkModule) netModule).setTcpNoDelay(options.isTcpNoDelay());
+		}
 		return netModule;
 	}
 
@@ -930,6 +941,20 @@ public class MqttAsyncClient implements IMqttAsyncClient { // DestinationProvide
 		return comms.getPendingDeliveryTokens();
 	}
 
+	/**
+	 * Returns the number of publishes that have been accepted but not yet
+	 * sent, because the in-flight window is full or the sender has not yet
+	 * got to them.
+	 * <p>With a buffering policy this is the occupancy of the publish buffer,
+	 * and can be compared with its size to see how close publishing is to
+	 * being held back.</p>
+	 * @see MqttConnectOptions#setPublishBufferPolicy(int)
+	 * @return the number of publishes waiting to be sent
+	 */
+	public int getPendingPublishCount() {
+		return comms.getPendingPublishCount();
+	}
+
 	/* (non-Javadoc)
 	 * @see org.eclipse.paho.client.mqttv3.IMqttAsyncClient#publish(java.lang.String, byte[], int, boolean, java.lang.Object, org.eclipse.paho.client.mqttv3.IMqttActionListener)
 	 */
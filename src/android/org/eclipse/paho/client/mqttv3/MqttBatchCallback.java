@@ -0,0 +1,53 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution. 
+ *
+ * The Eclipse Public License is available at 
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at 
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * Contributors:
+ *    Dave Locke - initial API and implementation and/or initial documentation
+ */
+package org.eclipse.paho.client.mqttv3;
+
+/**
+ * A {@link MqttCallback} that receives arriving messages in batches rather
+ * than one at a time.
+ * <p>Each time the client hands messages to the application, every message
+ * then waiting on the inbound queue is passed to
+ * {@link #messagesArrived(String[], MqttMessage[])} in one call, in the order
+ * they arrived. A batch holds at most the inbound queue size set with
+ * {@link MqttConnectOptions#setInboundQueueSize(int)}. Messages handled by a
+ * per-subscription {@link IMqttMessageListener} are still passed to it one
+ * at a time and are left out of the batch.
+ * {@link MqttCallback#messageArrived(String, MqttMessage)} is not called.</p>
+ * <p>Batches are only used when messages are handed over on the client's
+ * callback thread, that is when no dispatch threads are set with
+ * {@link MqttConnectOptions#setDispatchThreads(int)}.</p>
+ */
+public interface MqttBatchCallback extends MqttCallback {
+	/**
+	 * This method is called when one or more messages arrive from the
+	 * server.
+	 *
+	 * <p>
+	 * The arrays are the same length, the message at each index having
+	 * arrived on the topic at the same index. As with
+	 * {@link MqttCallback#messageArrived(String, MqttMessage)}, no
+	 * acknowledgment is sent back to the server until this method returns
+	 * cleanly. The whole batch is then acknowledged. If it throws an
+	 * <code>Exception</code> none of the batch is acknowledged and the client
+	 * will be shut down.</p>
+	 *
+	 * @param topics the names of the topics the messages were published to
+	 * @param messages the messages
+	 * @throws Exception if a terminal error has occurred, and the client should be
+	 * shut down.
+	 */
+	public void messagesArrived(String[] topics, MqttMessage[] messages) throws Exception;
+}
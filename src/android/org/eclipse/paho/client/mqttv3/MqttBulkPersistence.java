@@ -0,0 +1,40 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution. 
+ *
+ * The Eclipse Public License is available at 
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at 
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * Contributors:
+ *    Dave Locke - initial API and implementation and/or initial documentation
+ */
+package org.eclipse.paho.client.mqttv3;
+
+import java.util.Hashtable;
+
+/**
+ * A persistent data store that can hand back everything it holds in one
+ * pass. The client uses this, when a persistence implementation offers it,
+ * to restore its state on start up instead of fetching each key in turn.
+ * Persistence implementations that only implement
+ * {@link MqttClientPersistence} are restored key by key as before.
+ * 
+ * @see MqttClientPersistence
+ */
+public interface MqttBulkPersistence extends MqttClientPersistence {
+	/**
+	 * Returns all of the data in the persistent store.
+	 * The table returned belongs to the caller, who may change it, and does
+	 * not reflect later changes to the store.
+	 * @return a table of {@link MqttPersistable} objects keyed by their
+	 * {@link String} keys
+	 * @throws MqttPersistenceException if there was a problem reading the data
+	 * from the persistent store.
+	 */
+	public Hashtable getAll() throws MqttPersistenceException;
+}
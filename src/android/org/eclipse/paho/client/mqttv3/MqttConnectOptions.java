@@ -45,6 +45,36 @@ public class MqttConnectOptions {
 	 * The default clean session setting if one is not specified
 	 */
 	public static final boolean CLEAN_SESSION_DEFAULT = true;
+	/**
+	 * The default maximum inbound packet size, which is the largest packet
+	 * MQTT can encode
+	 */
+	public static final int MAX_INBOUND_PACKET_SIZE_DEFAULT = 268435460;
+	/**
+	 * The default number of received messages that can wait to be handed to
+	 * the application
+	 */
+	public static final int INBOUND_QUEUE_SIZE_DEFAULT = 10;
+	/**
+	 * The default time, in milliseconds, a batch of outbound packets may
+	 * take to gather before it is flushed
+	 */
+	public static final int SEND_BATCH_LATENCY_DEFAULT = 10;
+	/**
+	 * Publishing fails with {@link MqttException#REASON_CODE_MAX_INFLIGHT}
+	 * as soon as the in-flight window is full
+	 */
+	public static final int PUBLISH_BUFFER_FAIL_FAST = 0;
+	/**
+	 * Publishing waits for space in the publish buffer, for up to the
+	 * publish block timeout
+	 */
+	public static final int PUBLISH_BUFFER_BLOCK = 1;
+	/**
+	 * Publishing returns as soon as the message is in the publish buffer,
+	 * failing only when the buffer is full
+	 */
+	public static final int PUBLISH_BUFFER_ASYNC = 2;
 	/**
 	 * The default MqttVersion is 3.1.1 first, dropping back to 3.1 if that fails
 	 */
@@ -70,6 +100,21 @@ public class MqttConnectOptions {
 	private int connectionTimeout = CONNECTION_TIMEOUT_DEFAULT;
 	private String[] serverURIs = null;
 	private int MqttVersion = MQTT_VERSION_DEFAULT;
+	private boolean receiveBufferPooling = false;
+	private int maxInboundPacketSize = MAX_INBOUND_PACKET_SIZE_DEFAULT;
+	private int streamingThreshold = 0;
+	private int sendBatchSize = 0;
+	private int sendBatchLatency = SEND_BATCH_LATENCY_DEFAULT;
+	private boolean tcpNoDelay = false;
+	private boolean nonBlockingIO = false;
+	private int publishBufferSize = 0;
+	private int publishBufferPolicy = PUBLISH_BUFFER_FAIL_FAST;
+	private int publishBlockTimeout = 0;
+	private boolean adaptiveInflight = false;
+	private int minInflight = 1;
+	private int inboundQueueSize = INBOUND_QUEUE_SIZE_DEFAULT;
+	private int dispatchThreads = 0;
+	private IMqttDispatchKey dispatchKey = null;
 
 	/**
 	 * Constructs a new <code>MqttConnectOptions</code> object using the
@@ -528,6 +573,417 @@ public class MqttConnectOptions {
 		this.MqttVersion = MqttVersion;
 	}
 
+	/**
+	 * Returns whether inbound payloads are read into pooled buffers.
+	 * @see #setReceiveBufferPooling(boolean)
+	 * @return <code>true</code> if receive buffer pooling is enabled
+	 */
+	public boolean isReceiveBufferPooling() {
+		return receiveBufferPooling;
+	}
+
+	/**
+	 * Sets whether the payloads of inbound QoS 0 and 1 messages are read into
+	 * buffers taken from a pool owned by the client, rather than into a new
+	 * array for every message. A pooled buffer goes back to the pool when the
+	 * message callback has returned and the message has been acknowledged.
+	 * <p>Messages are delivered as
+	 * {@link org.eclipse.paho.client.mqttv3.internal.wire.MqttReceivedMessage}.
+	 * {@link MqttMessage#getPayload()} still returns a copy the application
+	 * owns; <code>getPayloadBuffer()</code> gives access to the pooled buffer
+	 * itself, and <code>retain()</code> and <code>release()</code> keep it
+	 * valid beyond the callback.</p>
+	 * <p>The default value is <code>false</code></p>
+	 * @param receiveBufferPooling <code>true</code> to enable pooling
+	 */
+	public void setReceiveBufferPooling(boolean receiveBufferPooling) {
+		this.receiveBufferPooling = receiveBufferPooling;
+	}
+
+	/**
+	 * Returns the size of the largest packet the client will accept from the server.
+	 * @see #setMaxInboundPacketSize(int)
+	 * @return the maximum inbound packet size in bytes
+	 */
+	public int getMaxInboundPacketSize() {
+		return maxInboundPacketSize;
+	}
+
+	/**
+	 * Sets the size of the largest packet, including its fixed header, that
+	 * the client will accept from the server. The size is checked as soon as
+	 * the fixed header has been read, before any memory is allocated for the
+	 * packet. A larger packet is treated as a protocol error: the connection
+	 * is closed and the connection lost callback is given an
+	 * {@link MqttException} with reason code
+	 * {@link MqttException#REASON_CODE_PACKET_TOO_LARGE}.
+	 * <p>Payloads above the streaming threshold are not held in memory, so
+	 * they are still accepted up to this size.</p>
+	 * <p>The default value is {@link #MAX_INBOUND_PACKET_SIZE_DEFAULT}</p>
+	 * @param maxInboundPacketSize the maximum packet size in bytes, which must be at least 2
+	 * @see #setStreamingThreshold(int)
+	 */
+	public void setMaxInboundPacketSize(int maxInboundPacketSize) {
+		if (maxInboundPacketSize < 2) {
+			throw new IllegalArgumentException();
+		}
+		this.maxInboundPacketSize = maxInboundPacketSize;
+	}
+
+	/**
+	 * Returns the payload size above which inbound messages are streamed.
+	 * @see #setStreamingThreshold(int)
+	 * @return the streaming threshold in bytes, or 0 if streaming is disabled
+	 */
+	public int getStreamingThreshold() {
+		return streamingThreshold;
+	}
+
+	/**
+	 * Sets the payload size above which inbound QoS 0 and 1 messages are
+	 * spilled to a temporary file as they are read from the network, instead
+	 * of being held in memory. The file is created in the client's directory
+	 * when {@link org.eclipse.paho.client.mqttv3.persist.MqttDefaultFilePersistence}
+	 * is used, and in the system temporary directory otherwise. It is
+	 * deleted once the message has been delivered.
+	 * <p>A callback that implements {@link MqttStreamCallback} is given the
+	 * payload as an <code>InputStream</code>. Other callbacks and message
+	 * listeners receive the message as usual, and the payload is only read
+	 * into memory if they call {@link MqttMessage#getPayload()}.
+	 * QoS 2 messages are never streamed, as they must be persisted until
+	 * delivery completes.</p>
+	 * <p>The default value is 0, which disables streaming.</p>
+	 * @param streamingThreshold the threshold in bytes, or 0 to disable streaming
+	 */
+	public void setStreamingThreshold(int streamingThreshold) {
+		if (streamingThreshold < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.streamingThreshold = streamingThreshold;
+	}
+
+	/**
+	 * Returns the number of bytes of outbound packets that may be gathered
+	 * before the network is flushed.
+	 * @see #setSendBatchSize(int)
+	 * @return the batch size in bytes, or 0 if batching is disabled
+	 */
+	public int getSendBatchSize() {
+		return sendBatchSize;
+	}
+
+	/**
+	 * Sets the number of bytes of outbound packets that may be gathered
+	 * before the network is flushed. When the client has several packets
+	 * ready to send, such as a burst of publishes or acknowledgments, it
+	 * writes them all and then flushes once, rather than flushing after
+	 * every packet. Fewer flushes mean fewer socket writes and, over SSL,
+	 * fewer TLS records. A batch never waits for packets that are not yet
+	 * ready to send, so a lone packet is flushed straight away.
+	 * Delivery tokens are still notified only once their packet has been
+	 * flushed.
+	 * <p>The default value is 0, which flushes after every packet.</p>
+	 * @param sendBatchSize the batch size in bytes, or 0 to disable batching
+	 * @see #setSendBatchLatency(int)
+	 */
+	public void setSendBatchSize(int sendBatchSize) {
+		if (sendBatchSize < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.sendBatchSize = sendBatchSize;
+	}
+
+	/**
+	 * Returns the time a batch of outbound packets may take to gather.
+	 * @see #setSendBatchLatency(int)
+	 * @return the latency in milliseconds
+	 */
+	public int getSendBatchLatency() {
+		return sendBatchLatency;
+	}
+
+	/**
+	 * Sets the longest time, in milliseconds, that the first packet of a
+	 * batch may wait in the client while further packets are added to the
+	 * batch. It only has an effect when a send batch size has been set.
+	 * <p>The default value is {@link #SEND_BATCH_LATENCY_DEFAULT}</p>
+	 * @param sendBatchLatency the latency in milliseconds, must be >= 0
+	 * @see #setSendBatchSize(int)
+	 */
+	public void setSendBatchLatency(int sendBatchLatency) {
+		if (sendBatchLatency < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.sendBatchLatency = sendBatchLatency;
+	}
+
+	/**
+	 * Returns whether Nagle's algorithm is disabled on the network socket.
+	 * @see #setTcpNoDelay(boolean)
+	 * @return <code>true</code> if TCP_NODELAY is set
+	 */
+	public boolean isTcpNoDelay() {
+		return tcpNoDelay;
+	}
+
+	/**
+	 * Sets whether TCP_NODELAY is set on the network socket, disabling
+	 * Nagle's algorithm. Latency sensitive applications should set it, so
+	 * that small packets are sent without delay. Applications that send
+	 * many small packets and care more about throughput can leave it unset,
+	 * or use {@link #setSendBatchSize(int)}, to let small writes be combined.
+	 * <p>The default value is <code>false</code></p>
+	 * @param tcpNoDelay <code>true</code> to set TCP_NODELAY
+	 */
+	public void setTcpNoDelay(boolean tcpNoDelay) {
+		this.tcpNoDelay = tcpNoDelay;
+	}
+
+	/**
+	 * Returns whether the connection is read and written using non-blocking I/O.
+	 * @see #setNonBlockingIO(boolean)
+	 * @return <code>true</code> if non-blocking I/O is used
+	 */
+	public boolean isNonBlockingIO() {
+		return nonBlockingIO;
+	}
+
+	/**
+	 * Sets whether the connection is read and written using non-blocking
+	 * I/O. Rather than each client having threads of its own that block
+	 * reading from and writing to the network, the connections of all
+	 * clients that set this option are read and written by a small, fixed
+	 * set of selector and worker threads shared by the process. This lets a
+	 * process hold many connections open without a receiving and a sending
+	 * thread for each one.
+	 * <p>Each connection still has a callback thread of its own, which
+	 * calls the application, and {@link TimerPingSender} uses a timer thread
+	 * for each connection.</p>
+	 * <p>It only applies to <code>tcp://</code> connections made with the
+	 * default socket factory. Other connections are read and written from
+	 * threads of their own whatever this option is set to.</p>
+	 * <p>The default value is <code>false</code></p>
+	 * @param nonBlockingIO <code>true</code> to use non-blocking I/O
+	 */
+	public void setNonBlockingIO(boolean nonBlockingIO) {
+		this.nonBlockingIO = nonBlockingIO;
+	}
+
+	/**
+	 * Returns the number of publishes that may wait for space in the
+	 * in-flight window.
+	 * @see #setPublishBufferSize(int)
+	 * @return the size of the publish buffer
+	 */
+	public int getPublishBufferSize() {
+		return publishBufferSize;
+	}
+
+	/**
+	 * Sets the number of publishes that may wait for space in the in-flight
+	 * window. With a buffering policy at most the max inflight plus this
+	 * many publishes are accepted and not yet acknowledged at any one time,
+	 * which bounds the memory that a burst of publishing can take.
+	 * It has no effect with the {@link #PUBLISH_BUFFER_FAIL_FAST} policy.
+	 * <p>The default value is 0</p>
+	 * @see #setPublishBufferPolicy(int)
+	 * @param publishBufferSize the size of the publish buffer
+	 */
+	public void setPublishBufferSize(int publishBufferSize) {
+		if (publishBufferSize < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.publishBufferSize = publishBufferSize;
+	}
+
+	/**
+	 * Returns what publishing does when the in-flight window is full.
+	 * @see #setPublishBufferPolicy(int)
+	 * @return the publish buffer policy
+	 */
+	public int getPublishBufferPolicy() {
+		return publishBufferPolicy;
+	}
+
+	/**
+	 * Sets what publishing does when the in-flight window is full:
+	 * <ul>
+	 * <li>{@link #PUBLISH_BUFFER_FAIL_FAST}: the publish fails with
+	 * {@link MqttException#REASON_CODE_MAX_INFLIGHT}, leaving the caller to
+	 * retry.</li>
+	 * <li>{@link #PUBLISH_BUFFER_BLOCK}: the message is put in the publish
+	 * buffer. If the buffer is full the caller waits for space, for up to
+	 * the publish block timeout, before the publish fails with
+	 * {@link MqttException#REASON_CODE_MAX_INFLIGHT}. A publish made from a
+	 * callback never waits, as the callback thread is the one that frees
+	 * the space: it is buffered or fails as with {@link #PUBLISH_BUFFER_ASYNC}.</li>
+	 * <li>{@link #PUBLISH_BUFFER_ASYNC}: the message is put in the publish
+	 * buffer and the delivery token returned straight away. The token
+	 * completes once a slot in the in-flight window has freed and the
+	 * message has been delivered. The publish fails with
+	 * {@link MqttException#REASON_CODE_MAX_INFLIGHT} only if the buffer is
+	 * full.</li>
+	 * </ul>
+	 * <p>The default value is {@link #PUBLISH_BUFFER_FAIL_FAST}</p>
+	 * @param publishBufferPolicy the publish buffer policy
+	 */
+	public void setPublishBufferPolicy(int publishBufferPolicy) {
+		if (publishBufferPolicy != PUBLISH_BUFFER_FAIL_FAST && publishBufferPolicy != PUBLISH_BUFFER_BLOCK &&
+				publishBufferPolicy != PUBLISH_BUFFER_ASYNC) {
+			throw new IllegalArgumentException();
+		}
+		this.publishBufferPolicy = publishBufferPolicy;
+	}
+
+	/**
+	 * Returns how long, in milliseconds, a publish waits for space in the
+	 * publish buffer.
+	 * @see #setPublishBlockTimeout(int)
+	 * @return the publish block timeout
+	 */
+	public int getPublishBlockTimeout() {
+		return publishBlockTimeout;
+	}
+
+	/**
+	 * Sets how long, in milliseconds, a publish waits for space in the
+	 * publish buffer with the {@link #PUBLISH_BUFFER_BLOCK} policy.
+	 * A value of 0 waits until there is space or the client disconnects.
+	 * <p>The default value is 0</p>
+	 * @param publishBlockTimeout the publish block timeout
+	 */
+	public void setPublishBlockTimeout(int publishBlockTimeout) {
+		if (publishBlockTimeout < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.publishBlockTimeout = publishBlockTimeout;
+	}
+
+	/**
+	 * Returns whether the inflight window is sized from acknowledgement times.
+	 * @see #setAdaptiveInflight(boolean)
+	 * @return <code>true</code> if the inflight window is adaptive
+	 */
+	public boolean isAdaptiveInflight() {
+		return adaptiveInflight;
+	}
+
+	/**
+	 * Sets whether the inflight window is sized from acknowledgement times.
+	 * An adaptive window grows while acknowledgements come back quickly and
+	 * shrinks when they start to take longer, keeping between the min
+	 * inflight and the max inflight messages in flight. This suits links
+	 * with a long round trip, where a fixed window small enough for a slow
+	 * server limits throughput. The max inflight should be set to the most
+	 * the client may have in flight.
+	 * <p>The default value is <code>false</code></p>
+	 * @see #setMaxInflight(int)
+	 * @see #setMinInflight(int)
+	 * @param adaptiveInflight <code>true</code> to adapt the inflight window
+	 */
+	public void setAdaptiveInflight(boolean adaptiveInflight) {
+		this.adaptiveInflight = adaptiveInflight;
+	}
+
+	/**
+	 * Returns the smallest an adaptive inflight window may get.
+	 * @see #setMinInflight(int)
+	 * @return the min inflight
+	 */
+	public int getMinInflight() {
+		return minInflight;
+	}
+
+	/**
+	 * Sets the smallest an adaptive inflight window may get.
+	 * <p>The default value is 1</p>
+	 * @see #setAdaptiveInflight(boolean)
+	 * @param minInflight the min inflight
+	 */
+	public void setMinInflight(int minInflight) {
+		if (minInflight < 1) {
+			throw new IllegalArgumentException();
+		}
+		this.minInflight = minInflight;
+	}
+
+	/**
+	 * Returns how many received messages can wait to be handed to the
+	 * application.
+	 * @see #setInboundQueueSize(int)
+	 * @return the inbound queue size
+	 */
+	public int getInboundQueueSize() {
+		return inboundQueueSize;
+	}
+
+	/**
+	 * Sets how many received messages can wait to be handed to the
+	 * application. Once this many are waiting the client stops reading
+	 * from the network until the callback has taken one, so a larger queue
+	 * absorbs bigger bursts from the server at the cost of the memory the
+	 * queued messages hold.
+	 * <p>The default value is 10</p>
+	 * @param inboundQueueSize the inbound queue size
+	 */
+	public void setInboundQueueSize(int inboundQueueSize) {
+		if (inboundQueueSize < 1) {
+			throw new IllegalArgumentException();
+		}
+		this.inboundQueueSize = inboundQueueSize;
+	}
+
+	/**
+	 * Returns how many threads received messages are handed to the
+	 * application on.
+	 * @see #setDispatchThreads(int)
+	 * @return the number of dispatch threads
+	 */
+	public int getDispatchThreads() {
+		return dispatchThreads;
+	}
+
+	/**
+	 * Sets how many threads received messages are handed to the
+	 * application on. With 0, every message is handled on the client's one
+	 * callback thread, so a slow handler holds up all the others. With more,
+	 * messages are spread over that many threads by their dispatch key:
+	 * messages with the same key are handled in the order they arrived,
+	 * one at a time, while messages with other keys may be handled at the
+	 * same time. The callback and message listeners must then be safe to
+	 * call from several threads. Each message is still acknowledged only
+	 * once its handler has returned.
+	 * <p>The default value is 0</p>
+	 * @see #setDispatchKey(IMqttDispatchKey)
+	 * @param dispatchThreads the number of dispatch threads
+	 */
+	public void setDispatchThreads(int dispatchThreads) {
+		if (dispatchThreads < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.dispatchThreads = dispatchThreads;
+	}
+
+	/**
+	 * Returns what chooses the messages that are kept in order.
+	 * @see #setDispatchKey(IMqttDispatchKey)
+	 * @return the dispatch key, or null if ordering is by topic
+	 */
+	public IMqttDispatchKey getDispatchKey() {
+		return dispatchKey;
+	}
+
+	/**
+	 * Sets what chooses the messages that are kept in order when there
+	 * are dispatch threads. By default messages are kept in order within
+	 * each topic.
+	 * @see #setDispatchThreads(int)
+	 * @param dispatchKey the dispatch key, or null to order by topic
+	 */
+	public void setDispatchKey(IMqttDispatchKey dispatchKey) {
+		this.dispatchKey = dispatchKey;
+	}
+
 	public Properties getDebug() {
 		final String strNull="null";
 		Properties p = new Properties();
@@ -535,6 +991,20 @@ public class MqttConnectOptions {
 		p.put("CleanSession", Boolean.valueOf(isCleanSession()));
 		p.put("ConTimeout", new Integer(getConnectionTimeout()));
 		p.put("KeepAliveInterval", new Integer(getKeepAliveInterval()));
+		p.put("ReceiveBufferPooling", Boolean.valueOf(isReceiveBufferPooling()));
+		p.put("MaxInboundPacketSize", new Integer(getMaxInboundPacketSize()));
+		p.put("StreamingThreshold", new Integer(getStreamingThreshold()));
+		p.put("SendBatchSize", new Integer(getSendBatchSize()));
+		p.put("SendBatchLatency", new Integer(getSendBatchLatency()));
+		p.put("TcpNoDelay", Boolean.valueOf(isTcpNoDelay()));
+		p.put("NonBlockingIO", Boolean.valueOf(isNonBlockingIO()));
+		p.put("PublishBufferSize", new Integer(getPublishBufferSize()));
+		p.put("PublishBufferPolicy", new Integer(getPublishBufferPolicy()));
+		p.put("PublishBlockTimeout", new Integer(getPublishBlockTimeout()));
+		p.put("AdaptiveInflight", Boolean.valueOf(isAdaptiveInflight()));
+		p.put("MinInflight", new Integer(getMinInflight()));
+		p.put("InboundQueueSize", new Integer(getInboundQueueSize()));
+		p.put("DispatchThreads", new Integer(getDispatchThreads()));
 		p.put("UserName", (getUserName() == null) ? strNull : getUserName());
 		p.put("WillDestination", (getWillDestination() == null) ? strNull : getWillDestination());
 		if (getSocketFactory()==null) {
@@ -139,6 +139,13 @@ public class MqttException extends Exception {
 	 */
 	public static final short REASON_CODE_CLIENT_CLOSED		           = 32111;
 	
+	/**
+	 * The server sent a packet larger than the maximum inbound packet size
+	 * set in the connect options. The connection has been closed.
+	 * @see MqttConnectOptions#setMaxInboundPacketSize(int)
+	 */
+	public static final short REASON_CODE_PACKET_TOO_LARGE             = 32112;
+	
 	/**
 	 * A request has been made to use a token that is already associated with
 	 * another action.  If the action is complete the reset() can ve called on the
@@ -0,0 +1,54 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution. 
+ *
+ * The Eclipse Public License is available at 
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at 
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * Contributors:
+ *    Dave Locke - initial API and implementation and/or initial documentation
+ */
+package org.eclipse.paho.client.mqttv3;
+
+import java.io.InputStream;
+
+/**
+ * A {@link MqttCallback} that can receive large message payloads as a
+ * stream rather than as a single array.
+ * <p>When a streaming threshold is set with
+ * {@link MqttConnectOptions#setStreamingThreshold(int)}, messages with larger
+ * payloads are delivered to
+ * {@link #messageArrived(String, MqttMessage, InputStream)}. All other
+ * messages are still delivered to
+ * {@link MqttCallback#messageArrived(String, MqttMessage)}.</p>
+ */
+public interface MqttStreamCallback extends MqttCallback {
+	/**
+	 * This method is called when a message with a payload above the
+	 * streaming threshold arrives from the server.
+	 *
+	 * <p>
+	 * The message gives the QoS, retained and duplicate flags of the
+	 * message. Its payload is only read into memory if
+	 * {@link MqttMessage#getPayload()} is called, so the payload should be
+	 * read from <code>payload</code> instead. The stream is closed, and the
+	 * payload discarded, when this method returns.</p>
+	 * <p>
+	 * As with {@link MqttCallback#messageArrived(String, MqttMessage)}, an
+	 * acknowledgment is not sent back to the server until this method
+	 * returns cleanly, and if it throws an <code>Exception</code> the client
+	 * will be shut down.</p>
+	 *
+	 * @param topic name of the topic on the message was published to
+	 * @param message the actual message
+	 * @param payload the payload of the message
+	 * @throws Exception if a terminal error has occurred, and the client should be
+	 * shut down.
+	 */
+	public void messageArrived(String topic, MqttMessage message, InputStream payload) throws Exception;
+}
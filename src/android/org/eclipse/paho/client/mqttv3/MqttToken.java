@@ -29,7 +29,7 @@ import org.eclipse.paho.client.mqttv3.internal.wire.MqttWireMessage;
  * @see IMqttToken
  */
 
-public class MqttToken implements IMqttToken {
+public class MqttToken implements IMqttToken, MqttTokenFuture.Provider {
 	/**
 	 * A reference to the the class that provides most of the implementation of the 
 	 * MqttToken.  MQTT application programs must not use the internal class.
@@ -59,6 +59,22 @@ public class MqttToken implements IMqttToken {
 		return internalTok.getActionCallback();
 	}
 
+	/**
+	 * Returns a non-blocking view of the action.
+	 * <p>The future completes when the action does, at the point its
+	 * listener is called, and lets further actions be chained on or timed
+	 * out without a thread waiting for each one. As the listener is called
+	 * after the token is marked complete, a thread returning from
+	 * {@link #waitForCompletion()} may briefly see the future not yet done.
+	 * The same future is returned each time.
+	 * </p>
+	 * @see MqttTokenFuture#of(IMqttToken)
+	 * @return the future for the action
+	 */
+	public MqttTokenFuture getFuture() {
+		return internalTok.getFuture(this);
+	}
+
 	public void waitForCompletion() throws MqttException {
 		internalTok.waitForCompletion(-1);
 	}
@@ -0,0 +1,302 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution. 
+ *
+ * The Eclipse Public License is available at 
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at 
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * Contributors:
+ *    Dave Locke - initial API and implementation and/or initial documentation
+ */
+package org.eclipse.paho.client.mqttv3;
+
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.Vector;
+
+import org.eclipse.paho.client.mqttv3.logging.Logger;
+import org.eclipse.paho.client.mqttv3.logging.LoggerFactory;
+
+/**
+ * A non-blocking view of an asynchronous action.
+ * <p>A future is obtained from {@link #of(IMqttToken)} and completes
+ * when the token's listener is called, just after the token itself
+ * completes, without any thread having to wait for it. Work that should
+ * follow the action is registered on the future and run by whichever thread
+ * completes it, which is normally the client's callback thread. Several
+ * actions can be chained, for example connect then subscribe then
+ * publish:</p>
+ * <pre>
+ *	MqttTokenFuture.of(client.connect(options))
+ *		.thenCompose(new MqttTokenFuture.Continuation() {
+ *			public IMqttToken run(IMqttToken connected) throws MqttException {
+ *				return client.subscribe("status/#", 1);
+ *			}
+ *		})
+ *		.withTimeout(10000)
+ *		.whenComplete(listener);
+ * </pre>
+ * <p>Like the listeners of the client, work registered on a future must not
+ * block or take long, as it holds up the delivery of other results.</p>
+ */
+public class MqttTokenFuture {
+	private static final String CLASS_NAME = MqttTokenFuture.class.getName();
+	private static final Logger log = LoggerFactory.getLogger(LoggerFactory.MQTT_CLIENT_MSG_CAT,CLASS_NAME);
+
+	/**
+	 * Starts the next action of a chain once the previous one has succeeded.
+	 */
+	public interface Continuation {
+		/**
+		 * @param previous the token of the action that succeeded
+		 * @return the token of the next action, or null if there is nothing
+		 * more to do
+		 * @throws MqttException if the next action could not be started
+		 */
+		public IMqttToken run(IMqttToken previous) throws MqttException;
+	}
+
+	/**
+	 * Implemented by tokens that offer a future view of their action.
+	 */
+	public interface Provider {
+		/**
+		 * @return the future for the action, the same one each time
+		 */
+		public MqttTokenFuture getFuture();
+	}
+
+	// One timer thread serves the timeouts of every future
+	private static Timer timer = null;
+
+	private boolean done = false;
+	private IMqttToken token;
+	private MqttException exception = null;
+	private Vector listeners = null;
+
+	/**
+	 * Constructs a future that is completed by the given token.
+	 * @param token the token of the action, which is reported to listeners
+	 */
+	public MqttTokenFuture(IMqttToken token) {
+		this.token = token;
+	}
+
+	/**
+	 * Returns the future view of a token's action. The tokens returned by
+	 * the client all provide one.
+	 * @param token the token of the action
+	 * @return the future for the action, the same one each time
+	 * @throws IllegalArgumentException if the token does not implement
+	 * {@link Provider}
+	 */
+	public static MqttTokenFuture of(IMqttToken token) {
+		if (!(token instanceof Provider)) {
+			throw new IllegalArgumentException("token does not provide a future");
+		}
+		return ((Provider) token).getFuture();
+	}
+
+	/**
+	 * Returns whether the action has finished, successfully or not.
+	 */
+	public synchronized boolean isDone() {
+		return done;
+	}
+
+	/**
+	 * Returns the token of the action. For a chained future this is the
+	 * token of the last action that was started.
+	 */
+	public synchronized IMqttToken getToken() {
+		return token;
+	}
+
+	/**
+	 * Returns why the action failed, or null if it has not finished or
+	 * succeeded.
+	 */
+	public synchronized MqttException getException() {
+		return exception;
+	}
+
+	/**
+	 * Registers a listener to be told once the action finishes. If it has
+	 * already finished the listener is called at once on the calling thread.
+	 * @param listener the listener to call
+	 * @return this future
+	 */
+	public MqttTokenFuture whenComplete(IMqttActionListener listener) {
+		IMqttToken doneToken;
+		MqttException doneException;
+		synchronized (this) {
+			if (!done) {
+				if (listeners == null) {
+					listeners = new Vector(2);
+				}
+				listeners.addElement(listener);
+				return this;
+			}
+			doneToken = token;
+			doneException = exception;
+		}
+		notifyListener(listener, doneToken, doneException);
+		return this;
+	}
+
+	/**
+	 * Returns a future for an action that is started once this one
+	 * succeeds. If this action fails, or the next one cannot be started, the
+	 * returned future fails with the same exception.
+	 * @param next starts the next action
+	 * @return a future that completes when the next action does
+	 */
+	public MqttTokenFuture thenCompose(final Continuation next) {
+		final MqttTokenFuture result = new MqttTokenFuture(null);
+		whenComplete(new IMqttActionListener() {
+			public void onSuccess(IMqttToken previous) {
+				IMqttToken nextToken;
+				try {
+					nextToken = next.run(previous);
+				} catch (MqttException ex) {
+					result.complete(previous, ex);
+					return;
+				} catch (RuntimeException ex) {
+					result.complete(previous, new MqttException(ex));
+					return;
+				}
+				if (nextToken == null) {
+					result.complete(previous, null);
+				} else {
+					try {
+						of(nextToken).whenComplete(result.completer());
+					} catch (IllegalArgumentException ex) {
+						result.complete(nextToken, new MqttException(ex));
+					}
+				}
+			}
+
+			public void onFailure(IMqttToken previous, Throwable ex) {
+				result.complete(previous, asMqttException(ex));
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Returns a future that completes as this one does, or fails with
+	 * {@link MqttException#REASON_CODE_CLIENT_TIMEOUT} if this one has not
+	 * finished within the timeout. The action itself carries on regardless.
+	 * @param timeout the time to wait, in milliseconds
+	 * @return a future that completes or times out
+	 */
+	public MqttTokenFuture withTimeout(long timeout) {
+		final MqttTokenFuture result = new MqttTokenFuture(getToken());
+		final TimerTask task = new TimerTask() {
+			public void run() {
+				result.complete(getToken(), new MqttException(MqttException.REASON_CODE_CLIENT_TIMEOUT));
+			}
+		};
+		schedule(task, timeout);
+		whenComplete(new IMqttActionListener() {
+			public void onSuccess(IMqttToken asyncActionToken) {
+				task.cancel();
+				result.complete(asyncActionToken, null);
+			}
+
+			public void onFailure(IMqttToken asyncActionToken, Throwable ex) {
+				task.cancel();
+				result.complete(asyncActionToken, asMqttException(ex));
+			}
+		});
+		return result;
+	}
+
+	private static MqttException asMqttException(Throwable ex) {
+		if (ex instanceof MqttException) {
+			return (MqttException) ex;
+		}
+		return new MqttException(ex);
+	}
+
+	private static synchronized void schedule(TimerTask task, long delay) {
+		if (timer == null) {
+			timer = new Timer("MQTT Future Timer", true);
+		}
+		timer.schedule(task, delay);
+	}
+
+	/**
+	 * Returns a listener that completes this future with the outcome it is
+	 * told of.
+	 */
+	private IMqttActionListener completer() {
+		return new IMqttActionListener() {
+			public void onSuccess(IMqttToken asyncActionToken) {
+				complete(asyncActionToken, null);
+			}
+
+			public void onFailure(IMqttToken asyncActionToken, Throwable ex) {
+				complete(asyncActionToken, asMqttException(ex));
+			}
+		};
+	}
+
+	/**
+	 * Completes the future and runs the registered listeners, unless it has
+	 * already completed. This is called by the client when the action
+	 * finishes; applications should not call it.
+	 * @param token the token of the action
+	 * @param ex why the action failed, or null if it succeeded
+	 * @return whether this call completed the future
+	 */
+	public boolean complete(IMqttToken token, MqttException ex) {
+		Vector toNotify;
+		synchronized (this) {
+			if (done) {
+				return false;
+			}
+			done = true;
+			if (token != null) {
+				this.token = token;
+			} else {
+				token = this.token;
+			}
+			exception = ex;
+			toNotify = listeners;
+			listeners = null;
+		}
+		if (toNotify != null) {
+			for (int i = 0; i < toNotify.size(); i++) {
+				notifyListener((IMqttActionListener) toNotify.elementAt(i), token, ex);
+			}
+		}
+		return true;
+	}
+
+	private void notifyListener(IMqttActionListener listener, IMqttToken token, MqttException ex) {
+		final String methodName = "notifyListener";
+		try {
+			if (ex == null) {
+				listener.onSuccess(token);
+			} else {
+				listener.onFailure(token, ex);
+			}
+		} catch (RuntimeException e) {
+			// The listener's problem must not stop the others being told
+			//@TRACE 119=listener threw exception
+			log.fine(CLASS_NAME, methodName, "119", null, e);
+		}
+	}
+
+	public String toString() {
+		synchronized (this) {
+			return "done=" + done + " exception=" + exception + " token=" + token;
+		}
+	}
+}
@@ -15,11 +15,8 @@
  */
 package org.eclipse.paho.client.mqttv3;
 
-import java.io.UnsupportedEncodingException;
-
 import org.eclipse.paho.client.mqttv3.internal.ClientComms;
 import org.eclipse.paho.client.mqttv3.internal.wire.MqttPublish;
-import org.eclipse.paho.client.mqttv3.util.Strings;
 
 /**
  * Represents a topic destination, used for publish/subscribe messaging.
@@ -60,6 +57,17 @@ public class MqttTopic {
 	private static final int MIN_TOPIC_LEN = 1;
 	private static final int MAX_TOPIC_LEN = 65535;
 	private static final char NUL = '\u0000';
+	private static final char TOPIC_LEVEL_SEPARATOR_CHAR = '/';
+	private static final char MULTI_LEVEL_WILDCARD_CHAR = '#';
+	private static final char SINGLE_LEVEL_WILDCARD_CHAR = '+';
+
+	// Topic names and filters recently found to be valid, so that strings
+	// used over and over are not checked every time. Each string can only
+	// occupy the slot its hash code picks, which keeps the caches bounded
+	// and lets them be read and written without a lock.
+	private static final int VALIDATION_CACHE_SIZE = 256;
+	private static final String[] validFilters = new String[VALIDATION_CACHE_SIZE];
+	private static final String[] validNames = new String[VALIDATION_CACHE_SIZE];
 	
 	private ClientComms comms;
 	private String name;
@@ -142,13 +150,15 @@ public class MqttTopic {
 	 */
 	public static void validate(String topicString, boolean wildcardAllowed) 
 			throws IllegalStateException, IllegalArgumentException{
-		int topicLen = 0;
-		try {
-			topicLen = topicString.getBytes("UTF-8").length;
-		} catch (UnsupportedEncodingException e) {
-			throw new IllegalStateException(e);
+		String[] cache = wildcardAllowed ? validFilters : validNames;
+		int slot = topicString.hashCode() & (VALIDATION_CACHE_SIZE - 1);
+		String cached = cache[slot];
+		if (cached == topicString || (cached != null && cached.equals(topicString))) {
+			return;
 		}
 
+		int topicLen = getUTF8Length(topicString);
+
 		// Spec: length check
 		// - All Topic Names and Topic Filters MUST be at least one character
 		// long
@@ -159,73 +169,102 @@ public class MqttTopic {
 					new Object[] { new Integer(MIN_TOPIC_LEN), new Integer(MAX_TOPIC_LEN) }));
 		}
 
-		// *******************************************************************************
-		// 1) This is a topic filter string that can contain wildcard characters
-		// *******************************************************************************
 		if (wildcardAllowed) {
-			// Only # or +
-			if (Strings.equalsAny(topicString, new String[] { MULTI_LEVEL_WILDCARD, SINGLE_LEVEL_WILDCARD })) {
-				return;
+			validateWildcards(topicString);
+		} else {
+			// *******************************************************************************
+			// This is a topic name string that MUST NOT contains any wildcard characters
+			// *******************************************************************************
+			for (int i = 0; i < topicString.length(); i++) {
+				char c = topicString.charAt(i);
+				if (c == MULTI_LEVEL_WILDCARD_CHAR || c == SINGLE_LEVEL_WILDCARD_CHAR) {
+					throw new IllegalArgumentException(
+							"The topic name MUST NOT contain any wildcard characters (#+)");
+				}
 			}
+		}
 
-			// 1) Check multi-level wildcard
-			// Rule:
-			// The multi-level wildcard can be specified only on its own or next
-			// to the topic level separator character.
+		// Only strings found to be valid are cached, and a later string
+		// with the same slot simply takes it over
+		cache[slot] = topicString;
+	}
 
-			// - Can only contains one multi-level wildcard character
-			// - The multi-level wildcard must be the last character used within
-			// the topic tree
-			if (Strings.countMatches(topicString, MULTI_LEVEL_WILDCARD) > 1
-					|| (topicString.contains(MULTI_LEVEL_WILDCARD) && !topicString
-							.endsWith(MULTI_LEVEL_WILDCARD_PATTERN))) {
-				throw new IllegalArgumentException(
-						"Invalid usage of multi-level wildcard in topic string: "
-								+ topicString);
+	/**
+	 * Returns the number of bytes the string encodes to in UTF-8, counting
+	 * an unpaired surrogate as the one byte it is replaced with.
+	 */
+	private static int getUTF8Length(String string) {
+		int length = 0;
+		int count = string.length();
+		for (int i = 0; i < count; i++) {
+			char c = string.charAt(i);
+			if (c < 0x80) {
+				length++;
+			} else if (c < 0x800) {
+				length += 2;
+			} else if (Character.isHighSurrogate(c) && i + 1 < count
+					&& Character.isLowSurrogate(string.charAt(i + 1))) {
+				length += 4;
+				i++;
+			} else if (Character.isSurrogate(c)) {
+				length++;
+			} else {
+				length += 3;
 			}
-
-			// 2) Check single-level wildcard
-			// Rule:
-			// The single-level wildcard can be used at any level in the topic
-			// tree, and in conjunction with the
-			// multilevel wildcard. It must be used next to the topic level
-			// separator, except when it is specified on
-			// its own.
-			validateSingleLevelWildcard(topicString);
-
-			return;
 		}
+		return length;
+	}
 
+	/**
+	 * Checks the wildcards of a topic filter in one pass.
+	 */
+	private static void validateWildcards(String topicString) {
+		int length = topicString.length();
 		// *******************************************************************************
-		// 2) This is a topic name string that MUST NOT contains any wildcard characters
+		// This is a topic filter string that can contain wildcard characters
 		// *******************************************************************************
-		if (Strings.containsAny(topicString, TOPIC_WILDCARDS)) {
-			throw new IllegalArgumentException(
-					"The topic name MUST NOT contain any wildcard characters (#+)");
+		// Only # or +
+		if (length == 1 && (topicString.charAt(0) == MULTI_LEVEL_WILDCARD_CHAR
+				|| topicString.charAt(0) == SINGLE_LEVEL_WILDCARD_CHAR)) {
+			return;
 		}
-	}
-	
-    private static void validateSingleLevelWildcard(String topicString) {
-        char singleLevelWildcardChar = SINGLE_LEVEL_WILDCARD.charAt(0);
-        char topicLevelSeparatorChar = TOPIC_LEVEL_SEPARATOR.charAt(0);
 
-        char[] chars = topicString.toCharArray();
-        int length = chars.length;
-        char prev = NUL, next = NUL;
-        for (int i = 0; i < length; i++) {
-            prev = (i - 1 >= 0) ? chars[i - 1] : NUL;
-            next = (i + 1 < length) ? chars[i + 1] : NUL;
+		// 1) Check multi-level wildcard
+		// Rule:
+		// The multi-level wildcard can be specified only on its own or next
+		// to the topic level separator character.
 
-            if (chars[i] == singleLevelWildcardChar) {
-                // prev and next can be only '/' or none
-                if (prev != topicLevelSeparatorChar && prev != NUL || next != topicLevelSeparatorChar && next != NUL) {
-                    throw new IllegalArgumentException(String.format(
-                            "Invalid usage of single-level wildcard in topic string '%s'!",
-                            new Object[] { topicString }));
-                }
-            }
-        }
-    }
+		// - Can only contains one multi-level wildcard character
+		// - The multi-level wildcard must be the last character used within
+		// the topic tree
+		int multiLevel = topicString.indexOf(MULTI_LEVEL_WILDCARD_CHAR);
+		if (multiLevel >= 0 && (multiLevel != length - 1 || length < 2
+				|| topicString.charAt(length - 2) != TOPIC_LEVEL_SEPARATOR_CHAR)) {
+			throw new IllegalArgumentException(
+					"Invalid usage of multi-level wildcard in topic string: "
+							+ topicString);
+		}
+
+		// 2) Check single-level wildcard
+		// Rule:
+		// The single-level wildcard can be used at any level in the topic
+		// tree, and in conjunction with the
+		// multilevel wildcard. It must be used next to the topic level
+		// separator, except when it is specified on
+		// its own.
+		for (int i = 0; i < length; i++) {
+			if (topicString.charAt(i) == SINGLE_LEVEL_WILDCARD_CHAR) {
+				// prev and next can be only '/' or none
+				char prev = (i > 0) ? topicString.charAt(i - 1) : NUL;
+				char next = (i + 1 < length) ? topicString.charAt(i + 1) : NUL;
+				if (prev != TOPIC_LEVEL_SEPARATOR_CHAR && prev != NUL || next != TOPIC_LEVEL_SEPARATOR_CHAR && next != NUL) {
+					throw new IllegalArgumentException(String.format(
+							"Invalid usage of single-level wildcard in topic string '%s'!",
+							new Object[] { topicString }));
+				}
+			}
+		}
+	}
     
 	/**
 	 * Check the supplied topic name and filter match
@@ -250,18 +289,19 @@ public class MqttTopic {
 	    
 	    while (curf < curf_end && curn < curn_end)
 	    {
-	        if (topicName.charAt(curn) == '/' && topicFilter.charAt(curf) != '/')
+	        char f = topicFilter.charAt(curf);
+	        char n = topicName.charAt(curn);
+	        if (n == TOPIC_LEVEL_SEPARATOR_CHAR && f != TOPIC_LEVEL_SEPARATOR_CHAR)
 	            break;
-	        if (topicFilter.charAt(curf) != '+' && topicFilter.charAt(curf) != '#' && 
-	        		topicFilter.charAt(curf) != topicName.charAt(curn))
+	        if (f != SINGLE_LEVEL_WILDCARD_CHAR && f != MULTI_LEVEL_WILDCARD_CHAR && f != n)
 	            break;
-	        if (topicFilter.charAt(curf) == '+')
+	        if (f == SINGLE_LEVEL_WILDCARD_CHAR)
 	        {   // skip until we meet the next separator, or end of string
 	            int nextpos = curn + 1;
-	            while (nextpos < curn_end && topicName.charAt(nextpos) != '/')
+	            while (nextpos < curn_end && topicName.charAt(nextpos) != TOPIC_LEVEL_SEPARATOR_CHAR)
 	                nextpos = ++curn + 1;
 	        }
-	        else if (topicFilter.charAt(curf) == '#')
+	        else if (f == MULTI_LEVEL_WILDCARD_CHAR)
 	            curn = curn_end - 1;    // skip until end of string
 	        curf++;
 	        curn++;
@@ -18,6 +18,7 @@
  */
 package org.eclipse.paho.client.mqttv3.internal;
 
+import java.io.File;
 import java.util.Enumeration;
 import java.util.Properties;
 import java.util.Vector;
@@ -34,13 +35,16 @@ import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
 import org.eclipse.paho.client.mqttv3.MqttPingSender;
 import org.eclipse.paho.client.mqttv3.MqttToken;
 import org.eclipse.paho.client.mqttv3.MqttTopic;
+import org.eclipse.paho.client.mqttv3.internal.wire.BufferPool;
 import org.eclipse.paho.client.mqttv3.internal.wire.MqttConnack;
 import org.eclipse.paho.client.mqttv3.internal.wire.MqttConnect;
 import org.eclipse.paho.client.mqttv3.internal.wire.MqttDisconnect;
 import org.eclipse.paho.client.mqttv3.internal.wire.MqttPublish;
 import org.eclipse.paho.client.mqttv3.internal.wire.MqttWireMessage;
+import org.eclipse.paho.client.mqttv3.internal.wire.TopicNameCache;
 import org.eclipse.paho.client.mqttv3.logging.Logger;
 import org.eclipse.paho.client.mqttv3.logging.LoggerFactory;
+import org.eclipse.paho.client.mqttv3.persist.MqttDefaultFilePersistence;
 
 /**
  * Handles client communications with the server.  Sends and receives MQTT V3
@@ -69,6 +73,8 @@ public class ClientComms {
 	private MqttClientPersistence	persistence;
 	private MqttPingSender			pingSender;
 	private CommsTokenStore 		tokenStore;
+	private BufferPool				receiveBufferPool = null;
+	private TopicNameCache			topicCache = new TopicNameCache();
 	private boolean 				stoppingComms = false;
 
 	private byte	conState = DISCONNECTED;
@@ -132,6 +138,18 @@ public class ClientComms {
 		}
 	}
 
+	/**
+	 * Sends a PUBACK, PUBREC or PUBCOMP. Acknowledgements are never seen
+	 * by the application, so no token is created or tracked for them.
+	 */
+	void internalSendAck(MqttWireMessage ack) throws MqttException {
+		final String methodName = "internalSendAck";
+		//@TRACE 200=internalSend key={0} message={1} token={2}
+		log.fine(CLASS_NAME, methodName, "200", new Object[]{ack.getKey(), ack, null});
+
+		this.clientState.send(ack, null);
+	}
+
 	/**
 	 * Sends a message to the broker if in connected state, but only waits for the message to be
 	 * stored, before returning.
@@ -220,6 +238,18 @@ public class ClientComms {
                 this.clientState.setKeepAliveSecs(conOptions.getKeepAliveInterval());
                 this.clientState.setCleanSession(conOptions.isCleanSession());
                 this.clientState.setMaxInflight(conOptions.getMaxInflight());
+                this.clientState.setPublishBuffer(conOptions.getPublishBufferSize(),
+                		conOptions.getPublishBufferPolicy(), conOptions.getPublishBlockTimeout());
+                this.clientState.setAdaptiveInflight(conOptions.isAdaptiveInflight(), conOptions.getMinInflight());
+                this.callback.setInboundQueueSize(conOptions.getInboundQueueSize());
+                this.callback.setDispatchThreads(conOptions.getDispatchThreads(), conOptions.getDispatchKey());
+                if (conOptions.isReceiveBufferPooling()) {
+                	if (receiveBufferPool == null) {
+                		receiveBufferPool = new BufferPool();
+                	}
+                } else {
+                	receiveBufferPool = null;
+                }
 
 				tokenStore.open();
 				ConnectBG conbg = new ConnectBG(this, token, connect);
@@ -260,6 +290,18 @@ public class ClientComms {
 		throw mex;
 	}
 
+	/**
+	 * Shuts down the connection to the server from a thread that must not
+	 * wait for other threads to stop, such as the shared network threads of
+	 * the non-blocking transport. The callback thread does the shutdown if it
+	 * is running, otherwise it is done on the calling thread.
+	 */
+	public void shutdownConnectionLater(MqttToken token, MqttException reason) {
+		if (callback == null || !callback.requestShutdown(token, reason)) {
+			shutdownConnection(token, reason);
+		}
+	}
+
 	/**
 	 * Shuts down the connection to the server.
 	 * This may have been invoked as a result of a user calling disconnect or
@@ -273,9 +315,10 @@ public class ClientComms {
 		MqttToken endToken = null; 		//Token to notify after disconnect completes
 
 		// This method could concurrently be invoked from many places only allow it
-		// to run once.
+		// to run once. The shared network threads of the non-blocking transport
+		// can report a lost connection after the client has been closed.
 		synchronized(conLock) {
-			if (stoppingComms || closePending) {
+			if (stoppingComms || closePending || isClosed()) {
 				return;
 			}
 			stoppingComms = true;
@@ -432,10 +475,11 @@ public class ClientComms {
 				//@TRACE 219=failed: already disconnecting
 				log.fine(CLASS_NAME,methodName,"219");
 				throw ExceptionHelper.createMqttException(MqttException.REASON_CODE_CLIENT_DISCONNECTING);
-			} else if (Thread.currentThread() == callback.getThread()) {
+			} else if (callback.isCallbackThread()) {
 				//@TRACE 210=failed: called on callback thread
 				log.fine(CLASS_NAME,methodName,"210");
-				// Not allowed to call disconnect() from the callback, as it will deadlock.
+				// Not allowed to call disconnect() from the callback or a dispatch
+				// worker, as stopping them would wait for this thread and deadlock.
 				throw ExceptionHelper.createMqttException(MqttException.REASON_CODE_CLIENT_DISCONNECT_PROHIBITED);
 			}
 
@@ -536,6 +580,13 @@ public class ClientComms {
 	public void setNetworkModules(NetworkModule[] networkModules) {
 		this.networkModules = networkModules;
 	}
+	/**
+	 * @return the number of publishes accepted but not yet sent
+	 */
+	public int getPendingPublishCount() {
+		return clientState.getPendingPublishCount();
+	}
+
 	public MqttDeliveryToken[] getPendingDeliveryTokens() {
 		return tokenStore.getOutstandingDelTokens();
 	}
@@ -560,6 +611,33 @@ public class ClientComms {
 		return clientState;
 	}
 
+	/**
+	 * Returns the pool inbound payloads are read into, or null if receive
+	 * buffer pooling is not enabled.
+	 */
+	BufferPool getReceiveBufferPool() {
+		return receiveBufferPool;
+	}
+
+	/**
+	 * Returns the cache the topic names of inbound messages are decoded through.
+	 */
+	TopicNameCache getTopicCache() {
+		return topicCache;
+	}
+
+	/**
+	 * Returns the directory that streamed payloads are spilled to: the
+	 * client's directory when file persistence is used, or null for the
+	 * system temporary directory.
+	 */
+	File getStreamingDirectory() {
+		if (persistence instanceof MqttDefaultFilePersistence) {
+			return ((MqttDefaultFilePersistence) persistence).getClientDirectory();
+		}
+		return null;
+	}
+
 	public MqttConnectOptions getConOptions() {
 		return conOptions;
 	}
@@ -570,6 +648,13 @@ public class ClientComms {
 		props.put("serverURI", getClient().getServerURI());
 		props.put("callback", callback);
 		props.put("stoppingComms", new Boolean(stoppingComms));
+		props.put("topicCacheHits", new Long(topicCache.getHits()));
+		props.put("topicCacheMisses", new Long(topicCache.getMisses()));
+		props.put("inboundQueueDepth", new Integer(callback.getInboundQueueDepth()));
+		props.put("maxInboundQueueDepth", new Integer(callback.getMaxInboundQueueDepth()));
+		props.put("inboundBlockedCount", new Integer(callback.getInboundBlockedCount()));
+		props.put("inboundBlockedTime", new Long(callback.getInboundBlockedTime()));
+		props.put("dispatchQueueDepth", new Integer(callback.getDispatchQueueDepth()));
 		return props;
 	}
 
@@ -618,9 +703,15 @@ public class ClientComms {
 				NetworkModule networkModule = networkModules[networkModuleIndex];
 				networkModule.start();
 				receiver = new CommsReceiver(clientComms, clientState, tokenStore, networkModule.getInputStream());
-				receiver.start("MQTT Rec: "+getClient().getClientId());
 				sender = new CommsSender(clientComms, clientState, tokenStore, networkModule.getOutputStream());
-				sender.start("MQTT Snd: "+getClient().getClientId());
+				if (networkModule instanceof NIONetworkModule) {
+					// Read and written by shared network threads rather than our own
+					((NIONetworkModule) networkModule).startReceiving(receiver, callback);
+					((NIONetworkModule) networkModule).startSending(sender);
+				} else {
+					receiver.start("MQTT Rec: "+getClient().getClientId());
+					sender.start("MQTT Snd: "+getClient().getClientId());
+				}
 				callback.start("MQTT Call: "+getClient().getClientId());				
 				internalSend(conPacket, conToken);
 			} catch (MqttException ex) {
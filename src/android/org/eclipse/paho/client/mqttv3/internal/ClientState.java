@@ -20,13 +20,19 @@
 package org.eclipse.paho.client.mqttv3.internal;
 
 import java.io.EOFException;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Enumeration;
 import java.util.Hashtable;
 import java.util.Properties;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.MqttBulkPersistence;
 import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttDeliveryToken;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
@@ -63,19 +69,20 @@ import org.eclipse.paho.client.mqttv3.logging.LoggerFactory;
  * 
  * 2) When the client or specifically ClientState is instantiated the messages are 
  * read from the persistent store into:
- * - outboundqos2 hashtable if a QoS 2 PUBLISH or PUBREL
- * - outboundqos1 hashtable if a QoS 1 PUBLISH
+ * - outboundqos2 table if a QoS 2 PUBLISH or PUBREL
+ * - outboundqos1 table if a QoS 1 PUBLISH
  * (see restoreState)
  * 
- * 3) On Connect, copy messages from the outbound hashtables to the pendingMessages or 
- * pendingFlows vector in messageid order.
+ * 3) On Connect, copy messages from the outbound tables to the pendingMessages or 
+ * pendingFlows queue in messageid order.
  * - Initial message publish goes onto the pendingmessages buffer. 
  * - PUBREL goes onto the pendingflows buffer
  * (see restoreInflightMessages)
  * 
  * 4) Sender thread reads messages from the pendingflows and pendingmessages buffer
- * one at a time.  The message is removed from the pendingbuffer but remains on the 
- * outbound* hashtable.  The hashtable is the place where the full set of outstanding 
+ * one at a time, connection control first and the rest by weighted turns
+ * (see FlowQueue).  The message is removed from the pendingbuffer but remains on the 
+ * outbound* table.  The table is the place where the full set of outstanding 
  * messages are stored in memory. (Persistence is only used at start up)
  *  
  * 5) Receiver thread - receives wire messages: 
@@ -90,6 +97,10 @@ import org.eclipse.paho.client.mqttv3.logging.LoggerFactory;
  * the wire it is possible for the receiving thread to receive the ack and to be processing 
  * the response before the sending side has finished processing.  For instance a connect may
  * be sent, the conack received before the connect notify send has been processed! 
+ * The tables and queues are not synchronized themselves: they are only touched
+ * holding queueLock, apart from the in-use message IDs which are guarded by the
+ * ClientState monitor. New publishes reach them through a lock-free inbox that
+ * is drained under queueLock, so publishing threads never wait for the lock.
  * 
  */
 public class ClientState {
@@ -99,13 +110,23 @@ public class ClientState {
 	private static final String PERSISTENCE_CONFIRMED_PREFIX = "sc-";
 	private static final String PERSISTENCE_RECEIVED_PREFIX = "r-";
 	
-	private static final int MIN_MSG_ID = 1;		// Lowest possible MQTT message ID to use
-	private static final int MAX_MSG_ID = 65535;	// Highest possible MQTT message ID to use
-	private int nextMsgId = MIN_MSG_ID - 1;			// The next available message ID to use
-	private Hashtable inUseMsgIds;					// Used to store a set of in-use message IDs
-
-	volatile private Vector pendingMessages;
-	volatile private Vector pendingFlows;
+	// Restoring at least this many persisted messages decodes them in parallel
+	private static final int PARALLEL_RESTORE_THRESHOLD = 1000;
+	private static final int MAX_RESTORE_THREADS = 4;
+	
+	private static final int MAX_MSG_ID = MessageIdAllocator.MAX_ID;	// Highest possible MQTT message ID to use
+	private MessageIdAllocator inUseMsgIds;			// Used to store a set of in-use message IDs
+
+	// The pending queues and the outbound and inbound tables are guarded by queueLock
+	volatile private ObjectDeque pendingMessages;
+	volatile private FlowQueue pendingFlows;
+	// Publishes handed over by application threads without taking queueLock.
+	// Only a holder of queueLock drains it, into the tables and pendingMessages.
+	private MpscQueue publishInbox = new MpscQueue();
+	// The thread waiting in get(), unparked when there may be work for it
+	private volatile Thread sender = null;
+	// Run instead when there may be work for a sender without a thread of its own
+	private volatile Runnable senderWakeup = null;
 	
 	private CommsTokenStore tokenStore;
 	private ClientComms clientComms = null;
@@ -115,8 +136,19 @@ public class ClientState {
 	private MqttClientPersistence persistence;
 	
 	private int maxInflight = 0;	
-	private int actualInFlight = 0;
-	private int inFlightPubRels = 0;
+	// Sizes the window within maxInflight when it is adaptive, otherwise null
+	private InflightWindow inflightWindow = null;
+	private AtomicInteger actualInFlight = new AtomicInteger(0);
+	private AtomicInteger inFlightPubRels = new AtomicInteger(0);
+	
+	// Publishes accepted but not yet taken by the sender, and the bound the
+	// publish buffer puts on them together with actualInFlight
+	private AtomicInteger pendingPublishes = new AtomicInteger(0);
+	private int publishBufferSize = 0;
+	private int publishBufferPolicy = MqttConnectOptions.PUBLISH_BUFFER_FAIL_FAST;
+	private int publishBlockTimeout = 0;
+	private Object publishSpace = new Object();
+	private AtomicInteger publishSpaceWaiters = new AtomicInteger(0);
 	
 	private Object queueLock = new Object();
 	private Object quiesceLock = new Object();
@@ -131,9 +163,9 @@ public class ClientState {
 
 	private boolean connected = false;
 	
-	private Hashtable outboundQoS2 = null;
-	private Hashtable outboundQoS1 = null;
-	private Hashtable inboundQoS2 = null;
+	private IntObjectMap outboundQoS2 = null;
+	private IntObjectMap outboundQoS1 = null;
+	private IntObjectMap inboundQoS2 = null;
 	
 	private MqttPingSender pingSender = null;
 
@@ -143,14 +175,12 @@ public class ClientState {
 		log.setResourceName(clientComms.getClient().getClientId());
 		log.finer(CLASS_NAME, "<Init>", "" );
 
-		inUseMsgIds = new Hashtable();
-		pendingFlows = new Vector();
-		outboundQoS2 = new Hashtable();
-		outboundQoS1 = new Hashtable();
-		inboundQoS2 = new Hashtable();
+		inUseMsgIds = new MessageIdAllocator();
+		pendingFlows = new FlowQueue();
+		outboundQoS2 = new IntObjectMap();
+		outboundQoS1 = new IntObjectMap();
+		inboundQoS2 = new IntObjectMap();
 		pingCommand = new MqttPingReq();
-		inFlightPubRels = 0;
-		actualInFlight = 0;
 		
 		this.persistence = persistence;
 		this.callback = callback;
@@ -163,8 +193,44 @@ public class ClientState {
 	
 	protected void setMaxInflight(int maxInflight) {
         this.maxInflight = maxInflight;
-        pendingMessages = new Vector(this.maxInflight);
+        setPendingMessages(new ObjectDeque(this.maxInflight));
     }
+	
+	/**
+	 * Sets whether the inflight window is sized from acknowledgement times,
+	 * starting afresh. Must be called after {@link #setMaxInflight(int)}.
+	 * @param adaptive true to adapt the window
+	 * @param minInflight the smallest the window may get
+	 */
+	protected void setAdaptiveInflight(boolean adaptive, int minInflight) {
+		inflightWindow = adaptive ? new InflightWindow(minInflight, maxInflight) : null;
+	}
+	
+	/**
+	 * @return the number of publishes that may be in flight now
+	 */
+	private int getInflightLimit() {
+		InflightWindow window = inflightWindow;
+		return (window != null) ? window.getSize() : maxInflight;
+	}
+	
+	/**
+	 * Sets how many publishes may wait for space in the inflight window and
+	 * what a publish does when there is no more room.
+	 * @see MqttConnectOptions#setPublishBufferPolicy(int)
+	 */
+	protected void setPublishBuffer(int size, int policy, int blockTimeout) {
+		this.publishBufferSize = size;
+		this.publishBufferPolicy = policy;
+		this.publishBlockTimeout = blockTimeout;
+	}
+	
+	/**
+	 * @return the number of publishes waiting to be sent
+	 */
+	protected int getPendingPublishCount() {
+		return pendingPublishes.get();
+	}
     protected void setKeepAliveSecs(long keepAliveSecs) {
 		this.keepAlive = keepAliveSecs*1000;
 	}
@@ -200,23 +266,26 @@ public class ClientState {
 		log.fine(CLASS_NAME, methodName,">");
 
 		persistence.clear();
-		inUseMsgIds.clear();
-		pendingMessages.clear();
-		pendingFlows.clear();
-		outboundQoS2.clear();
-		outboundQoS1.clear();
-		inboundQoS2.clear();
+		synchronized (queueLock) {
+			drainPublishes();
+			synchronized (this) {
+				inUseMsgIds.clear();
+			}
+			clearPendingMessages();
+			pendingFlows.clear();
+			outboundQoS2.clear();
+			outboundQoS1.clear();
+			inboundQoS2.clear();
+		}
 		tokenStore.clear();
 	}
 	
-	private MqttWireMessage restoreMessage(String key, MqttPersistable persistable) throws MqttException {
+	private MqttWireMessage restoreMessage(String key, Object decoded) throws MqttException {
 		final String methodName = "restoreMessage";
 		MqttWireMessage message = null;
 
-		try {
-			message = MqttWireMessage.createWireMessage(persistable);
-		}
-		catch (MqttException ex) {
+		if (decoded instanceof MqttException) {
+			MqttException ex = (MqttException) decoded;
 			//@TRACE 602=key={0} exception
 			log.fine(CLASS_NAME, methodName, "602", new Object[] {key}, ex);
 			if (ex.getCause() instanceof EOFException) {
@@ -228,6 +297,10 @@ public class ClientState {
 			else {
 				throw ex;
 			}
+		} else if (decoded instanceof RuntimeException) {
+			throw (RuntimeException) decoded;
+		} else {
+			message = (MqttWireMessage) decoded;
 		}
 		//@TRACE 601=key={0} message={1}
 		log.fine(CLASS_NAME, methodName, "601", new Object[]{key,message});
@@ -235,21 +308,83 @@ public class ClientState {
 	}
 
 	/**
-	 * Inserts a new message to the list, ensuring that list is ordered from lowest to highest in terms of the message id's.
-	 * @param list the list to insert the message into
-	 * @param newMsg the message to insert into the list
+	 * Decodes persisted data, without throwing.
+	 * @return the message, or the exception decoding it threw
 	 */
-	private void insertInOrder(Vector list, MqttWireMessage newMsg) {
-		int newMsgId = newMsg.getMessageId();
-		for (int i = 0; i < list.size(); i++) {
-			MqttWireMessage otherMsg = (MqttWireMessage) list.elementAt(i);
-			int otherMsgId = otherMsg.getMessageId();
-			if (otherMsgId > newMsgId) {
-				list.insertElementAt(newMsg, i);
-				return;
+	private static Object decode(MqttPersistable persistable) {
+		try {
+			return MqttWireMessage.createWireMessage(persistable);
+		} catch (MqttException ex) {
+			return ex;
+		} catch (RuntimeException ex) {
+			return ex;
+		}
+	}
+
+	/**
+	 * Decodes all of the persisted data, spreading the work over several
+	 * threads when there is enough of it.
+	 * @return for each entry, the message or the exception decoding it threw
+	 */
+	private Object[] decodeAll(final MqttPersistable[] persistables) {
+		final Object[] decoded = new Object[persistables.length];
+		int threadCount = Math.min(MAX_RESTORE_THREADS, Runtime.getRuntime().availableProcessors());
+		if (persistables.length < PARALLEL_RESTORE_THRESHOLD || threadCount < 2) {
+			for (int i = 0; i < persistables.length; i++) {
+				decoded[i] = decode(persistables[i]);
+			}
+			return decoded;
+		}
+		
+		// Each thread takes every threadCount'th entry; this one takes the first share
+		Thread[] threads = new Thread[threadCount - 1];
+		for (int t = 0; t < threads.length; t++) {
+			final int first = t + 1;
+			final int step = threadCount;
+			threads[t] = new Thread(new Runnable() {
+				public void run() {
+					for (int i = first; i < persistables.length; i += step) {
+						decoded[i] = decode(persistables[i]);
+					}
+				}
+			}, "MQTT Restore: " + clientComms.getClient().getClientId());
+			threads[t].start();
+		}
+		for (int i = 0; i < persistables.length; i += threadCount) {
+			decoded[i] = decode(persistables[i]);
+		}
+		for (int t = 0; t < threads.length; t++) {
+			boolean interrupted = false;
+			while (threads[t].isAlive()) {
+				try {
+					threads[t].join();
+				} catch (InterruptedException ex) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
 			}
 		}
-		list.addElement(newMsg);
+		return decoded;
+	}
+
+	/**
+	 * Sorts messages by message id, lowest first.
+	 * @param list the messages to sort, which is sorted in place
+	 */
+	private void sortByMessageId(Vector list) {
+		Object[] sorted = list.toArray();
+		Arrays.sort(sorted, new Comparator() {
+			public int compare(Object a, Object b) {
+				int idA = ((MqttWireMessage) a).getMessageId();
+				int idB = ((MqttWireMessage) b).getMessageId();
+				return (idA < idB) ? -1 : ((idA == idB) ? 0 : 1);
+			}
+		});
+		for (int i = 0; i < sorted.length; i++) {
+			list.setElementAt(sorted[i], i);
+		}
 	}
 
 	/**
@@ -304,40 +439,61 @@ public class ClientState {
 	 */
 	protected void restoreState() throws MqttException {
 		final String methodName = "restoreState";
-		Enumeration messageKeys = persistence.keys();
-		MqttPersistable persistable;
+		Enumeration messageKeys;
 		String key;
-		int highestMsgId = nextMsgId;
+		int highestMsgId = inUseMsgIds.getLastId();
 		Vector orphanedPubRels = new Vector();
 		//@TRACE 600=>
 		log.fine(CLASS_NAME, methodName, "600");
 		
-		while (messageKeys.hasMoreElements()) {
-			key = (String) messageKeys.nextElement();
-			persistable = persistence.get(key);
-			MqttWireMessage message = restoreMessage(key, persistable);
+		// Read everything in one go if the persistence can, otherwise key by key
+		Hashtable entries;
+		if (persistence instanceof MqttBulkPersistence) {
+			entries = ((MqttBulkPersistence) persistence).getAll();
+		} else {
+			entries = new Hashtable();
+			messageKeys = persistence.keys();
+			while (messageKeys.hasMoreElements()) {
+				key = (String) messageKeys.nextElement();
+				entries.put(key, persistence.get(key));
+			}
+		}
+		String[] keys = new String[entries.size()];
+		MqttPersistable[] persistables = new MqttPersistable[keys.length];
+		Hashtable index = new Hashtable(Math.max(11, keys.length * 2));
+		messageKeys = entries.keys();
+		for (int i = 0; messageKeys.hasMoreElements(); i++) {
+			keys[i] = (String) messageKeys.nextElement();
+			persistables[i] = (MqttPersistable) entries.get(keys[i]);
+			index.put(keys[i], new Integer(i));
+		}
+		Object[] decoded = decodeAll(persistables);
+		
+		for (int i = 0; i < keys.length; i++) {
+			key = keys[i];
+			MqttWireMessage message = restoreMessage(key, decoded[i]);
 			if (message != null) {
 				if (key.startsWith(PERSISTENCE_RECEIVED_PREFIX)) {
 					//@TRACE 604=inbound QoS 2 publish key={0} message={1}
 					log.fine(CLASS_NAME,methodName,"604", new Object[]{key,message});
 
 					// The inbound messages that we have persisted will be QoS 2 
-					inboundQoS2.put(new Integer(message.getMessageId()),message);
+					inboundQoS2.put(message.getMessageId(), message);
 				} else if (key.startsWith(PERSISTENCE_SENT_PREFIX)) {
 					MqttPublish sendMessage = (MqttPublish) message;
 					highestMsgId = Math.max(sendMessage.getMessageId(), highestMsgId);
-					if (persistence.containsKey(getSendConfirmPersistenceKey(sendMessage))) {
-						MqttPersistable persistedConfirm = persistence.get(getSendConfirmPersistenceKey(sendMessage));
+					Integer confirmIndex = (Integer) index.get(getSendConfirmPersistenceKey(sendMessage));
+					if (confirmIndex != null) {
 						// QoS 2, and CONFIRM has already been sent...
 						// NO DUP flag is allowed for 3.1.1 spec while it's not clear for 3.1 spec
 						// So we just remove DUP
-						MqttPubRel confirmMessage = (MqttPubRel) restoreMessage(key, persistedConfirm);
+						MqttPubRel confirmMessage = (MqttPubRel) restoreMessage(key, decoded[confirmIndex.intValue()]);
 						if (confirmMessage != null) {
 							// confirmMessage.setDuplicate(true); // REMOVED
 							//@TRACE 605=outbound QoS 2 pubrel key={0} message={1}
 							log.fine(CLASS_NAME,methodName, "605", new Object[]{key,message});
 
-							outboundQoS2.put(new Integer(confirmMessage.getMessageId()), confirmMessage);
+							outboundQoS2.put(confirmMessage.getMessageId(), confirmMessage);
 						} else {
 							//@TRACE 606=outbound QoS 2 completed key={0} message={1}
 							log.fine(CLASS_NAME,methodName, "606", new Object[]{key,message});
@@ -350,21 +506,21 @@ public class ClientState {
 							//@TRACE 607=outbound QoS 2 publish key={0} message={1}
 							log.fine(CLASS_NAME,methodName, "607", new Object[]{key,message});
 							
-							outboundQoS2.put(new Integer(sendMessage.getMessageId()),sendMessage);
+							outboundQoS2.put(sendMessage.getMessageId(), sendMessage);
 						} else {
 							//@TRACE 608=outbound QoS 1 publish key={0} message={1}
 							log.fine(CLASS_NAME,methodName, "608", new Object[]{key,message});
 
-							outboundQoS1.put(new Integer(sendMessage.getMessageId()),sendMessage);
+							outboundQoS1.put(sendMessage.getMessageId(), sendMessage);
 						}
 					}
 					MqttDeliveryToken tok = tokenStore.restoreToken(sendMessage);
 					tok.internalTok.setClient(clientComms.getClient());
-					inUseMsgIds.put(new Integer(sendMessage.getMessageId()),new Integer(sendMessage.getMessageId()));
+					inUseMsgIds.markInUse(sendMessage.getMessageId());
 				}
 				else if (key.startsWith(PERSISTENCE_CONFIRMED_PREFIX)) {
 					MqttPubRel pubRelMessage = (MqttPubRel) message;
-					if (!persistence.containsKey(getSendPersistenceKey(pubRelMessage))) {
+					if (!index.containsKey(getSendPersistenceKey(pubRelMessage))) {
 						orphanedPubRels.addElement(key);
 					}
 				}
@@ -380,49 +536,85 @@ public class ClientState {
 			persistence.remove(key);
 		}
 		
-		nextMsgId = highestMsgId;
+		inUseMsgIds.setLastId(highestMsgId);
 	}
 	
 	private void restoreInflightMessages() {
 		final String methodName = "restoreInflightMessages";
-		pendingMessages = new Vector(this.maxInflight);
-		pendingFlows = new Vector();
+		Vector messages = new Vector(this.maxInflight);
+		Vector flows = new Vector();
 
-		Enumeration keys = outboundQoS2.keys();
-		while (keys.hasMoreElements()) {
-			Object key = keys.nextElement();
-			MqttWireMessage msg = (MqttWireMessage) outboundQoS2.get(key);
+		int[] keys = outboundQoS2.keys();
+		for (int i = 0; i < keys.length; i++) {
+			Integer key = new Integer(keys[i]);
+			MqttWireMessage msg = (MqttWireMessage) outboundQoS2.get(keys[i]);
 			if (msg instanceof MqttPublish) {
 				//@TRACE 610=QoS 2 publish key={0}
 				log.fine(CLASS_NAME,methodName, "610", new Object[]{key});
                 // set DUP flag only for PUBLISH, but NOT for PUBREL (spec 3.1.1)
 				msg.setDuplicate(true);  
-				insertInOrder(pendingMessages, (MqttPublish)msg);
+				messages.addElement(msg);
 			} else if (msg instanceof MqttPubRel) {
 				//@TRACE 611=QoS 2 pubrel key={0}
 				log.fine(CLASS_NAME,methodName, "611", new Object[]{key});
 
-				insertInOrder(pendingFlows, (MqttPubRel)msg);
+				flows.addElement(msg);
 			}
 		}
 		keys = outboundQoS1.keys();
-		while (keys.hasMoreElements()) {
-			Object key = keys.nextElement();
-			MqttPublish msg = (MqttPublish)outboundQoS1.get(key);
+		for (int i = 0; i < keys.length; i++) {
+			Integer key = new Integer(keys[i]);
+			MqttPublish msg = (MqttPublish)outboundQoS1.get(keys[i]);
 			msg.setDuplicate(true);
 			//@TRACE 612=QoS 1 publish key={0}
 			log.fine(CLASS_NAME,methodName, "612", new Object[]{key});
 
-			insertInOrder(pendingMessages, msg);
+			messages.addElement(msg);
 		}
+		sortByMessageId(messages);
+		sortByMessageId(flows);
 		
-		this.pendingFlows = reOrder(pendingFlows);
-		this.pendingMessages = reOrder(pendingMessages);
+		flows = reOrder(flows);
+		FlowQueue flowQueue = new FlowQueue();
+		for (int i = 0; i < flows.size(); i++) {
+			flowQueue.addLast((MqttWireMessage) flows.elementAt(i));
+		}
+		this.pendingFlows = flowQueue;
+		setPendingMessages(toDeque(reOrder(messages), this.maxInflight));
+	}
+	
+	/**
+	 * Replaces the pending publishes, keeping their count in step.
+	 * Must be called holding queueLock once the client is in use.
+	 */
+	private void setPendingMessages(ObjectDeque messages) {
+		int previous = (pendingMessages == null) ? 0 : pendingMessages.size();
+		pendingMessages = messages;
+		pendingPublishes.addAndGet(messages.size() - previous);
+		publishSpaceFreed();
+	}
+	
+	/**
+	 * Removes all the pending publishes. Must be called holding queueLock.
+	 */
+	private void clearPendingMessages() {
+		pendingPublishes.addAndGet(-pendingMessages.size());
+		pendingMessages.clear();
+		publishSpaceFreed();
+	}
+	
+	private ObjectDeque toDeque(Vector list, int initialCapacity) {
+		ObjectDeque deque = new ObjectDeque(Math.max(initialCapacity, list.size()));
+		for (int i = 0; i < list.size(); i++) {
+			deque.addLast(list.elementAt(i));
+		}
+		return deque;
 	}
 	
 	/**
-	 * Submits a message for delivery. This method will block until there is
-	 * room in the inFlightWindow for the message. The message is put into
+	 * Submits a message for delivery. If there is no room for a publish in
+	 * the inFlightWindow or the publish buffer this method fails or blocks,
+	 * depending on the publish buffer policy. The message is put into
 	 * persistence before returning.
 	 * 
 	 * @param message  the message to send
@@ -442,32 +634,48 @@ public class ClientState {
 		}
 			
 		if (message instanceof MqttPublish) {
-			synchronized (queueLock) {
-				if (actualInFlight >= this.maxInflight) {
+			// Publishes don't take queueLock: they are persisted and handed
+			// to the sender through publishInbox, which it drains under the lock.
+			if (publishBufferPolicy == MqttConnectOptions.PUBLISH_BUFFER_FAIL_FAST) {
+				int inFlight = actualInFlight.get();
+				if (inFlight >= getInflightLimit()) {
 					//@TRACE 613= sending {0} msgs at max inflight window
-					log.fine(CLASS_NAME, methodName, "613", new Object[]{new Integer(actualInFlight)});
-
+					log.fine(CLASS_NAME, methodName, "613", new Object[]{new Integer(inFlight)});
+	
 					throw new MqttException(MqttException.REASON_CODE_MAX_INFLIGHT);
 				}
-				
-				MqttMessage innerMessage = ((MqttPublish) message).getMessage();
-				//@TRACE 628=pending publish key={0} qos={1} message={2}
-				log.fine(CLASS_NAME,methodName,"628", new Object[]{new Integer(message.getMessageId()), new Integer(innerMessage.getQos()), message});
-
-				switch(innerMessage.getQos()) {
-					case 2:
-						outboundQoS2.put(new Integer(message.getMessageId()), message);
-						persistence.put(getSendPersistenceKey(message), (MqttPublish) message);
-						break;
-					case 1:
-						outboundQoS1.put(new Integer(message.getMessageId()), message);
-						persistence.put(getSendPersistenceKey(message), (MqttPublish) message);
-						break;
+				pendingPublishes.incrementAndGet();
+			} else if (!reservePublish()) {
+				// Space is only freed by acknowledgements that the callback
+				// thread completes, so a publish made from a callback must not
+				// wait for it: it gets the async behaviour instead.
+				if (publishBufferPolicy == MqttConnectOptions.PUBLISH_BUFFER_ASYNC
+						|| (callback != null && callback.isCallbackThread())) {
+					//@TRACE 653=publish buffer full: pendingPublishes={0} actualInFlight={1}
+					log.fine(CLASS_NAME, methodName, "653", new Object[]{new Integer(pendingPublishes.get()), new Integer(actualInFlight.get())});
+					
+					throw new MqttException(MqttException.REASON_CODE_MAX_INFLIGHT);
+				}
+				waitForPublishSpace();
+			}
+			
+			MqttMessage innerMessage = ((MqttPublish) message).getMessage();
+			//@TRACE 628=pending publish key={0} qos={1} message={2}
+			log.fine(CLASS_NAME,methodName,"628", new Object[]{new Integer(message.getMessageId()), new Integer(innerMessage.getQos()), message});
+
+			try {
+				if (innerMessage.getQos() > 0) {
+					persistence.put(getSendPersistenceKey(message), (MqttPublish) message);
 				}
-				tokenStore.saveToken(token, message);
-				pendingMessages.addElement(message);
-				queueLock.notifyAll();
+			} catch (MqttPersistenceException ex) {
+				// Give back the space reserved for the message
+				pendingPublishes.decrementAndGet();
+				publishSpaceFreed();
+				throw ex;
 			}
+			tokenStore.saveToken(token, message);
+			publishInbox.offer(message);
+			wakeSender();
 		} else {
 			//@TRACE 615=pending send key={0} message {1}
 			log.fine(CLASS_NAME,methodName,"615", new Object[]{new Integer(message.getMessageId()), message});
@@ -477,15 +685,17 @@ public class ClientState {
 					// Add the connect action at the head of the pending queue ensuring it jumps
 					// ahead of any of other pending actions.
 					tokenStore.saveToken(token, message);
-					pendingFlows.insertElementAt(message,0);
-					queueLock.notifyAll();
+					pendingFlows.addFirst(message);
 				}
+				wakeSender();
 			} else {
 				if (message instanceof MqttPingReq) {
 					this.pingCommand = message;
 				}
 				else if (message instanceof MqttPubRel) {
-					outboundQoS2.put(new Integer(message.getMessageId()), message);
+					synchronized (queueLock) {
+						outboundQoS2.put(message.getMessageId(), message);
+					}
 					persistence.put(getSendConfirmPersistenceKey(message), (MqttPubRel) message);
 				}
 				else if (message instanceof MqttPubComp)  {
@@ -496,13 +706,125 @@ public class ClientState {
 					if ( !(message instanceof MqttAck )) {
 						tokenStore.saveToken(token, message);
 					}
-					pendingFlows.addElement(message);
-					queueLock.notifyAll();
+					pendingFlows.addLast(message);
 				}
+				wakeSender();
+			}
+		}
+	}
+	
+	/**
+	 * Moves the publishes handed over by {@link #send(MqttWireMessage, MqttToken)}
+	 * into the outbound tables and the pending queue, in the order they were
+	 * sent. Must be called holding queueLock.
+	 */
+	private void drainPublishes() {
+		MqttWireMessage message;
+		while ((message = (MqttWireMessage) publishInbox.poll()) != null) {
+			switch (((MqttPublish) message).getMessage().getQos()) {
+				case 2:
+					outboundQoS2.put(message.getMessageId(), message);
+					break;
+				case 1:
+					outboundQoS1.put(message.getMessageId(), message);
+					break;
 			}
+			pendingMessages.addLast(message);
 		}
 	}
 	
+	/**
+	 * Takes space for a publish if there is room for it in the inflight
+	 * window or the publish buffer.
+	 * @return true if the space was taken
+	 */
+	private boolean reservePublish() {
+		int limit = getInflightLimit() + publishBufferSize;
+		// Count the publish first so that concurrent publishers can't
+		// both take the last space
+		if (pendingPublishes.incrementAndGet() + actualInFlight.get() <= limit) {
+			return true;
+		}
+		pendingPublishes.decrementAndGet();
+		return false;
+	}
+	
+	/**
+	 * Waits until space for a publish can be taken, for up to the publish
+	 * block timeout.
+	 * @throws MqttException if the client disconnects or the timeout passes
+	 */
+	private void waitForPublishSpace() throws MqttException {
+		final String methodName = "waitForPublishSpace";
+		//@TRACE 652=waiting for space to publish: pendingPublishes={0} actualInFlight={1}
+		log.fine(CLASS_NAME, methodName, "652", new Object[]{new Integer(pendingPublishes.get()), new Integer(actualInFlight.get())});
+
+		long deadline = System.currentTimeMillis() + publishBlockTimeout;
+		synchronized (publishSpace) {
+			publishSpaceWaiters.incrementAndGet();
+			try {
+				while (!reservePublish()) {
+					if (!connected) {
+						throw ExceptionHelper.createMqttException(MqttException.REASON_CODE_CLIENT_NOT_CONNECTED);
+					}
+					long wait = 0;
+					if (publishBlockTimeout > 0) {
+						wait = deadline - System.currentTimeMillis();
+						if (wait <= 0) {
+							//@TRACE 653=publish buffer full: pendingPublishes={0} actualInFlight={1}
+							log.fine(CLASS_NAME, methodName, "653", new Object[]{new Integer(pendingPublishes.get()), new Integer(actualInFlight.get())});
+							
+							throw new MqttException(MqttException.REASON_CODE_MAX_INFLIGHT);
+						}
+					}
+					publishSpace.wait(wait);
+				}
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new MqttException(ex);
+			} finally {
+				publishSpaceWaiters.decrementAndGet();
+			}
+		}
+	}
+	
+	/**
+	 * Wakes publishers waiting for space, if there are any. Called after
+	 * the pending or inflight publishes have gone down.
+	 */
+	private void publishSpaceFreed() {
+		if (publishSpaceWaiters.get() > 0) {
+			synchronized (publishSpace) {
+				publishSpace.notifyAll();
+			}
+		}
+	}
+	
+	/**
+	 * Wakes the sender thread if it is waiting in {@link #get()}, or tells
+	 * a sender without a thread of its own that there may be work for it.
+	 */
+	private void wakeSender() {
+		Runnable wakeup = senderWakeup;
+		if (wakeup != null) {
+			wakeup.run();
+			return;
+		}
+		Thread thread = sender;
+		if (thread != null) {
+			LockSupport.unpark(thread);
+		}
+	}
+	
+	/**
+	 * Sets the task to run when there may be work for a sender that has no
+	 * thread of its own to wait in {@link #get()}. The task must not block.
+	 * @param wakeup the task, or null when the sender stops
+	 */
+	protected void setSenderWakeup(Runnable wakeup) {
+		this.senderWakeup = wakeup;
+	}
+	
 	/**
 	 * This removes the MqttSend message from the outbound queue and persistence.
 	 * @param message
@@ -511,15 +833,19 @@ public class ClientState {
 	protected void undo(MqttPublish message) throws MqttPersistenceException {
 		final String methodName = "undo";
 		synchronized (queueLock) {
+			drainPublishes();
 			//@TRACE 618=key={0} QoS={1} 
 			log.fine(CLASS_NAME,methodName,"618", new Object[]{new Integer(message.getMessageId()), new Integer(message.getMessage().getQos())});
 			
 			if (message.getMessage().getQos() == 1) {
-				outboundQoS1.remove(new Integer(message.getMessageId()));
+				outboundQoS1.remove(message.getMessageId());
 			} else {
-				outboundQoS2.remove(new Integer(message.getMessageId()));
+				outboundQoS2.remove(message.getMessageId());
+			}
+			if (pendingMessages.remove(message)) {
+				pendingPublishes.decrementAndGet();
+				publishSpaceFreed();
 			}
-			pendingMessages.removeElement(message);
 			persistence.remove(getSendPersistenceKey(message));
 			tokenStore.removeToken(message);
 			checkQuiesceLock();
@@ -611,7 +937,9 @@ public class ClientState {
                     	token.setActionCallback(pingCallback);
                     }
                     tokenStore.saveToken(token, pingCommand);
-                    pendingFlows.insertElementAt(pingCommand, 0);
+                    synchronized (queueLock) {
+                    	pendingFlows.addFirst(pingCommand);
+                    }
 
                     nextPingTime = getKeepAlive();
 
@@ -644,74 +972,128 @@ public class ClientState {
 	protected MqttWireMessage get() throws MqttException {
 		final String methodName = "get";
 		MqttWireMessage result = null;
+		boolean woken = false;
 
-		synchronized (queueLock) {
-			while (result == null) {
+		sender = Thread.currentThread();
+		while (result == null) {
+			synchronized (queueLock) {
+				drainPublishes();
 				
 				// If there is no work wait until there is work.
 				// If the inflight window is full and no flows are pending wait until space is freed.
-				// In both cases queueLock will be notified.
-				if ((pendingMessages.isEmpty() && pendingFlows.isEmpty()) || 
-					(pendingFlows.isEmpty() && actualInFlight >= this.maxInflight)) {
-					try {
-						//@TRACE 644=wait for new work or for space in the inflight window 
-						log.fine(CLASS_NAME,methodName, "644");						
- 
-						queueLock.wait();
+				// In both cases the sender is unparked.
+				if (woken || !(pendingFlows.isEmpty() && 
+						(pendingMessages.isEmpty() || actualInFlight.get() >= getInflightLimit()))) {
+					// Handle the case where not connected. This should only be the case if: 
+					// - in the process of disconnecting / shutting down
+					// - in the process of connecting
+					if (!connected && 
+							(pendingFlows.isEmpty() || !(pendingFlows.peekFirst() instanceof MqttConnect))) {
+						//@TRACE 621=no outstanding flows and not connected
+						log.fine(CLASS_NAME,methodName,"621");
 						
-						//@TRACE 647=new work or ping arrived 
-						log.fine(CLASS_NAME,methodName, "647");
-					} catch (InterruptedException e) {
+						return null;
 					}
-				}
-				
-				// Handle the case where not connected. This should only be the case if: 
-				// - in the process of disconnecting / shutting down
-				// - in the process of connecting
-				if (!connected && 
-						(pendingFlows.isEmpty() || !((MqttWireMessage)pendingFlows.elementAt(0) instanceof MqttConnect))) {
-					//@TRACE 621=no outstanding flows and not connected
-					log.fine(CLASS_NAME,methodName,"621");
+	
+					// Check if there is a need to send a ping to keep the session alive. 
+					// Note this check is done before processing messages. If not done first
+					// an app that only publishes QoS 0 messages will prevent keepalive processing
+					// from functioning. 
+//					checkForActivity(); //Use pinger, don't check here
 					
-					return null;
+					// Now process any queued flows or messages
+					result = takeNext();
+					if (result != null) {
+						break;
+					}
 				}
+			}
+			
+			//@TRACE 644=wait for new work or for space in the inflight window 
+			log.fine(CLASS_NAME,methodName, "644");						
 
-				// Check if there is a need to send a ping to keep the session alive. 
-				// Note this check is done before processing messages. If not done first
-				// an app that only publishes QoS 0 messages will prevent keepalive processing
-				// from functioning. 
-//				checkForActivity(); //Use pinger, don't check here
-				
-				// Now process any queued flows or messages
-				if (!pendingFlows.isEmpty()) {
-					// Process the first "flow" in the queue
-					result = (MqttWireMessage)pendingFlows.remove(0);
-					if (result instanceof MqttPubRel) {
-						inFlightPubRels++;
-
-						//@TRACE 617=+1 inflightpubrels={0}
-						log.fine(CLASS_NAME,methodName,"617", new Object[]{new Integer(inFlightPubRels)});
-					}
-		
-					checkQuiesceLock();
-				} else if (!pendingMessages.isEmpty()) {
-					// If the inflight window is full then messages are not 
-					// processed until the inflight window has space. 
-					if (actualInFlight < this.maxInflight) {
-						// The in flight window is not full so process the 
-						// first message in the queue
-						result = (MqttWireMessage)pendingMessages.elementAt(0);
-						pendingMessages.removeElementAt(0);
-						actualInFlight++;
+			// Parking outside queueLock lets publishers and acks carry on
+			// without contending for it; an unpark that comes first is not lost.
+			LockSupport.park(this);
+			woken = true;
+			
+			//@TRACE 647=new work or ping arrived 
+			log.fine(CLASS_NAME,methodName, "647");
+		}
+		return result;
+	}
 	
-						//@TRACE 623=+1 actualInFlight={0}
-						log.fine(CLASS_NAME,methodName,"623",new Object[]{new Integer(actualInFlight)});
-					} else {
-						//@TRACE 622=inflight window full
-						log.fine(CLASS_NAME,methodName,"622");				
-					}
-				}			
+	/**
+	 * Returns the next message to send without waiting, as {@link #get()}
+	 * would return it once there is one. Used by a sender without a thread
+	 * of its own each time it is woken.
+	 * @return the next message to send, or null if there is none ready or
+	 * the client is disconnected
+	 */
+	protected MqttWireMessage getNoWait() throws MqttException {
+		synchronized (queueLock) {
+			drainPublishes();
+			if (!connected && 
+					(pendingFlows.isEmpty() || !(pendingFlows.peekFirst() instanceof MqttConnect))) {
+				return null;
 			}
+			return takeNext();
+		}
+	}
+	
+	/**
+	 * Returns the next message to send if one can be sent straight away,
+	 * without waiting. The CommsSender uses this to gather further messages
+	 * into a batch before it flushes the network.
+	 * @return the next message to send, or null if there is none ready
+	 */
+	protected MqttWireMessage poll() throws MqttException {
+		synchronized (queueLock) {
+			if (!connected) {
+				return null;
+			}
+			drainPublishes();
+			return takeNext();
+		}
+	}
+	
+	/**
+	 * Removes the next flow, or message if the inflight window has space,
+	 * from the pending queues. Which goes next is decided by priority and
+	 * by weighted turns between the lanes (see {@link FlowQueue}).
+	 * Must be called holding queueLock.
+	 * @return the message, or null if nothing can be sent yet
+	 */
+	private MqttWireMessage takeNext() throws MqttException {
+		final String methodName = "takeNext";
+		MqttWireMessage result = null;
+		// If the inflight window is full then messages are not 
+		// processed until the inflight window has space. 
+		boolean publishReady = !pendingMessages.isEmpty() && actualInFlight.get() < getInflightLimit();
+		int lane = pendingFlows.nextLane(publishReady);
+		if (lane == FlowQueue.PUBLISH) {
+			// The in flight window is not full so process the 
+			// first message in the queue
+			result = (MqttWireMessage)pendingMessages.removeFirst();
+			int inFlight = actualInFlight.incrementAndGet();
+			pendingPublishes.decrementAndGet();
+
+			//@TRACE 623=+1 actualInFlight={0}
+			log.fine(CLASS_NAME,methodName,"623",new Object[]{new Integer(inFlight)});
+		} else if (lane >= 0) {
+			// Process the first "flow" in the lane
+			result = pendingFlows.removeFirst(lane);
+			if (result instanceof MqttPubRel) {
+				int pubRels = inFlightPubRels.incrementAndGet();
+
+				//@TRACE 617=+1 inflightpubrels={0}
+				log.fine(CLASS_NAME,methodName,"617", new Object[]{new Integer(pubRels)});
+			}
+
+			checkQuiesceLock();
+		} else if (!pendingMessages.isEmpty()) {
+			//@TRACE 622=inflight window full
+			log.fine(CLASS_NAME,methodName,"622");				
 		}
 		return result;
 	}
@@ -770,15 +1152,15 @@ public class ClientState {
 	/**
 	 * Called by the CommsSender when a message has been sent
 	 * @param message
+	 * @param token the token the message was sent with
 	 */
-	protected void notifySent(MqttWireMessage message) {
+	protected void notifySent(MqttWireMessage message, MqttToken token) {
 		final String methodName = "notifySent";
 		
 		this.lastOutboundActivity = System.currentTimeMillis();
 		//@TRACE 625=key={0}
 		log.fine(CLASS_NAME,methodName,"625",new Object[]{message.getKey()});
 		
-		MqttToken token = tokenStore.getToken(message);
 		token.internalTok.notifySent();
         if (message instanceof MqttPingReq) {
             synchronized (pingOutstandingLock) {
@@ -807,14 +1189,13 @@ public class ClientState {
 
 	private void decrementInFlight() {
 		final String methodName = "decrementInFlight";
-		synchronized (queueLock) {
-			actualInFlight--;
-			//@TRACE 646=-1 actualInFlight={0}
-			log.fine(CLASS_NAME,methodName,"646",new Object[]{new Integer(actualInFlight)});
-			
-			if (!checkQuiesceLock()) {
-				queueLock.notifyAll();
-			}
+		int inFlight = actualInFlight.decrementAndGet();
+		//@TRACE 646=-1 actualInFlight={0}
+		log.fine(CLASS_NAME,methodName,"646",new Object[]{new Integer(inFlight)});
+		
+		publishSpaceFreed();
+		if (!checkQuiesceLock()) {
+			wakeSender();
 		}
 	}
 	
@@ -824,7 +1205,7 @@ public class ClientState {
 		int tokC = tokenStore.count();
 		if (quiescing && tokC == 0 && pendingFlows.size() == 0 && callback.isQuiesced()) {
 			//@TRACE 626=quiescing={0} actualInFlight={1} pendingFlows={2} inFlightPubRels={3} callbackQuiesce={4} tokens={5}
-			log.fine(CLASS_NAME,methodName,"626",new Object[]{new Boolean(quiescing), new Integer(actualInFlight), new Integer(pendingFlows.size()), new Integer(inFlightPubRels), Boolean.valueOf(callback.isQuiesced()), new Integer(tokC)});
+			log.fine(CLASS_NAME,methodName,"626",new Object[]{new Boolean(quiescing), new Integer(actualInFlight.get()), new Integer(pendingFlows.size()), new Integer(inFlightPubRels.get()), Boolean.valueOf(callback.isQuiesced()), new Integer(tokC)});
 			synchronized (quiesceLock) {
 				quiesceLock.notifyAll();
 			}
@@ -860,6 +1241,15 @@ public class ClientState {
 		MqttToken token = tokenStore.getToken(ack);
 		MqttException mex = null;
 
+		InflightWindow window = inflightWindow;
+		if (window != null && token != null && 
+				(ack instanceof MqttPubAck || ack instanceof MqttPubRec || ack instanceof MqttPubComp)) {
+			long sentTime = token.internalTok.takeSentTime();
+			if (sentTime != 0) {
+				window.ackReceived(System.nanoTime() - sentTime, actualInFlight.get());
+			}
+		}
+
 		if (token == null) {
 			// @TRACE 662=no message found for ack id={0}
 			log.fine(CLASS_NAME, methodName, "662", new Object[] {
@@ -891,14 +1281,15 @@ public class ClientState {
 			int rc = ((MqttConnack) ack).getReturnCode();
 			if (rc == 0) {
 				synchronized (queueLock) {
+					drainPublishes();
 					if (cleanSession) {
 						clearState();
 						// Add the connect token back in so that users can be  
 						// notified when connect completes.
 						tokenStore.saveToken(token,ack);
 					}
-					inFlightPubRels = 0;
-					actualInFlight = 0;
+					inFlightPubRels.set(0);
+					actualInFlight.set(0);
 					restoreInflightMessages();
 					connected();
 				}
@@ -912,9 +1303,7 @@ public class ClientState {
 			tokenStore.removeToken(ack);
 
 			// Notify the sender thread that there maybe work for it to do now
-			synchronized (queueLock) {
-				queueLock.notifyAll();
-			}
+			wakeSender();
 		} else {
 			// Sub ack or unsuback
 			notifyResult(ack, token, mex);
@@ -948,12 +1337,16 @@ public class ClientState {
 				case 1:
 					if (callback != null) {
 						callback.messageArrived(send);
+					} else {
+						CommsCallback.release(send);
 					}
 					break;
 				case 2:
 					persistence.put(getReceivedPersistenceKey(message),
 							(MqttPublish) message);
-					inboundQoS2.put(new Integer(send.getMessageId()), send);
+					synchronized (queueLock) {
+						inboundQoS2.put(send.getMessageId(), send);
+					}
 					this.send(new MqttPubRec(send), null);
 					break;
 
@@ -961,8 +1354,10 @@ public class ClientState {
 					//should NOT reach here
 				}
 			} else if (message instanceof MqttPubRel) {
-				MqttPublish sendMsg = (MqttPublish) inboundQoS2
-						.get(new Integer(message.getMessageId()));
+				MqttPublish sendMsg;
+				synchronized (queueLock) {
+					sendMsg = (MqttPublish) inboundQoS2.get(message.getMessageId());
+				}
 				if (sendMsg != null) {
 					if (callback != null) {
 						callback.messageArrived(sendMsg);
@@ -974,6 +1369,9 @@ public class ClientState {
 					this.send(pubComp, null);
 				}
 			}
+		} else if (message instanceof MqttPublish) {
+			// The message won't be delivered, so free its payload
+			CommsCallback.release((MqttPublish) message);
 		}
 	}
 
@@ -1002,7 +1400,9 @@ public class ClientState {
 			if (ack instanceof MqttPubAck) {
 				// QoS 1 - user notified now remove from persistence...
 				persistence.remove(getSendPersistenceKey(message));
-				outboundQoS1.remove(new Integer(ack.getMessageId()));
+				synchronized (queueLock) {
+					outboundQoS1.remove(ack.getMessageId());
+				}
 				decrementInFlight();
 				releaseMessageId(message.getMessageId());
 				tokenStore.removeToken(message);
@@ -1013,9 +1413,11 @@ public class ClientState {
 				// QoS 2 - user notified now remove from persistence...
 				persistence.remove(getSendPersistenceKey(message));
 				persistence.remove(getSendConfirmPersistenceKey(message));
-				outboundQoS2.remove(new Integer(ack.getMessageId()));
+				synchronized (queueLock) {
+					outboundQoS2.remove(ack.getMessageId());
+				}
 
-				inFlightPubRels--;
+				int pubRels = inFlightPubRels.decrementAndGet();
 				decrementInFlight();
 				releaseMessageId(message.getMessageId());
 				tokenStore.removeToken(message);
@@ -1023,7 +1425,7 @@ public class ClientState {
 				// @TRACE 645=removed QoS 2 publish/pubrel. key={0}, -1 inFlightPubRels={1}
 				log.fine(CLASS_NAME, methodName, "645", new Object[] {
 						new Integer(ack.getMessageId()),
-						new Integer(inFlightPubRels) });
+						new Integer(pubRels) });
 			}
 
 			checkQuiesceLock();
@@ -1122,8 +1524,11 @@ public class ClientState {
 				clearState();
 			}
 
-			pendingMessages.clear();
-			pendingFlows.clear();
+			synchronized (queueLock) {
+				drainPublishes();
+				clearPendingMessages();
+				pendingFlows.clear();
+			}
 			synchronized (pingOutstandingLock) {
 				// Reset pingOutstanding to allow reconnects to assume no previous ping.
 			    pingOutstanding = 0;
@@ -1140,7 +1545,7 @@ public class ClientState {
 	 * @param msgId A message ID that can be freed up for re-use.
 	 */
 	private synchronized void releaseMessageId(int msgId) {
-		inUseMsgIds.remove(new Integer(msgId));
+		inUseMsgIds.release(msgId);
 	}
 
 	/**
@@ -1150,25 +1555,11 @@ public class ClientState {
 	 * @return the next MQTT message ID to use
 	 */
 	private synchronized int getNextMessageId() throws MqttException {
-		int startingMessageId = nextMsgId;
-		// Allow two complete passes of the message ID range. This gives
-		// any asynchronous releases a chance to occur
-		int loopCount = 0;
-	    do {
-	        nextMsgId++;
-	        if ( nextMsgId > MAX_MSG_ID ) {
-	            nextMsgId = MIN_MSG_ID;
-	        }
-	        if (nextMsgId == startingMessageId) {
-	        	loopCount++;
-	        	if (loopCount == 2) {
-	        		throw ExceptionHelper.createMqttException(MqttException.REASON_CODE_NO_MESSAGE_IDS_AVAILABLE);
-	        	}
-	        }
-	    } while( inUseMsgIds.containsKey( new Integer(nextMsgId) ) );
-	    Integer id = new Integer(nextMsgId);
-	    inUseMsgIds.put(id, id);
-	    return nextMsgId;
+		int id = inUseMsgIds.allocate();
+		if (id == 0) {
+			throw ExceptionHelper.createMqttException(MqttException.REASON_CODE_NO_MESSAGE_IDS_AVAILABLE);
+		}
+		return id;
 	}
 	
 	/**
@@ -1198,7 +1589,7 @@ public class ClientState {
 					int tokc = tokenStore.count();
 					if (tokc > 0 || pendingFlows.size() >0 || !callback.isQuiesced()) {
 						//@TRACE 639=wait for outstanding: actualInFlight={0} pendingFlows={1} inFlightPubRels={2} tokens={3}
-						log.fine(CLASS_NAME, methodName,"639", new Object[]{new Integer(actualInFlight), new Integer(pendingFlows.size()), new Integer(inFlightPubRels), new Integer(tokc)});
+						log.fine(CLASS_NAME, methodName,"639", new Object[]{new Integer(actualInFlight.get()), new Integer(pendingFlows.size()), new Integer(inFlightPubRels.get()), new Integer(tokc)});
 
 						// wait for outstanding in flight messages to complete and
 						// any pending flows to complete
@@ -1213,10 +1604,11 @@ public class ClientState {
 			// Quiesce time up or inflight messages delivered.  Ensure pending delivery
 			// vectors are cleared ready for disconnect to be sent as the final flow.
 			synchronized (queueLock) {
-				pendingMessages.clear();				
+				drainPublishes();
+				actualInFlight.set(0);
+				clearPendingMessages();
 				pendingFlows.clear();
 				quiescing = false;
-				actualInFlight = 0;
 			}
 			//@TRACE 640=finished
 			log.fine(CLASS_NAME, methodName, "640");
@@ -1225,11 +1617,9 @@ public class ClientState {
 
 	public void notifyQueueLock() {
 		final String methodName = "notifyQueueLock";
-		synchronized (queueLock) {
-			//@TRACE 638=notifying queueLock holders
-			log.fine(CLASS_NAME,methodName,"638");
-			queueLock.notifyAll();
-		}
+		//@TRACE 638=notifying queueLock holders
+		log.fine(CLASS_NAME,methodName,"638");
+		wakeSender();
 	}
 
 	protected void deliveryComplete(MqttPublish message) throws MqttPersistenceException {
@@ -1239,7 +1629,9 @@ public class ClientState {
 		log.fine(CLASS_NAME,methodName,"641", new Object[]{new Integer(message.getMessageId())});
 		
 		persistence.remove(getReceivedPersistenceKey(message));
-		inboundQoS2.remove(new Integer(message.getMessageId()));
+		synchronized (queueLock) {
+			inboundQoS2.remove(message.getMessageId());
+		}
 	}
 	
 	protected void deliveryComplete(int messageId) throws MqttPersistenceException {
@@ -1249,7 +1641,9 @@ public class ClientState {
 		log.fine(CLASS_NAME,methodName,"641", new Object[]{new Integer(messageId)});
 		
 		persistence.remove(getReceivedPersistenceKey(messageId));
-		inboundQoS2.remove(new Integer(messageId));
+		synchronized (queueLock) {
+			inboundQoS2.remove(messageId);
+		}
 	}
 	
 	/**
@@ -1258,19 +1652,24 @@ public class ClientState {
 	 * disconnect / connect cycle. 
 	 */
 	protected void close() {
-		inUseMsgIds.clear();
-		pendingMessages.clear();
-		pendingFlows.clear();
-		outboundQoS2.clear();
-		outboundQoS1.clear();
-		inboundQoS2.clear();
+		synchronized (queueLock) {
+			drainPublishes();
+			synchronized (this) {
+				inUseMsgIds.clear();
+				inUseMsgIds = null;
+			}
+			pendingMessages.clear();
+			pendingFlows.clear();
+			outboundQoS2.clear();
+			outboundQoS1.clear();
+			inboundQoS2.clear();
+			pendingMessages = null;
+			pendingFlows = null;
+			outboundQoS2 = null;
+			outboundQoS1 = null;
+			inboundQoS2 = null;
+		}
 		tokenStore.clear();
-		inUseMsgIds = null;
-		pendingMessages = null;
-		pendingFlows = null;
-		outboundQoS2 = null;
-		outboundQoS1 = null;
-		inboundQoS2 = null;
 		tokenStore = null;
 		callback = null;
 		clientComms = null;
@@ -1280,20 +1679,33 @@ public class ClientState {
 	
 	public Properties getDebug() {
 		Properties props = new Properties();
-		props.put("In use msgids", inUseMsgIds);
-		props.put("pendingMessages", pendingMessages);
-		props.put("pendingFlows", pendingFlows);
+		synchronized (queueLock) {
+			drainPublishes();
+			synchronized (this) {
+				props.put("In use msgids", inUseMsgIds.toString());
+			}
+			props.put("pendingMessages", pendingMessages.toString());
+			props.put("pendingFlows", pendingFlows.toString());
+			props.put("outboundQoS2", outboundQoS2.toString());
+			props.put("outboundQoS1", outboundQoS1.toString());
+			props.put("inboundQoS2", inboundQoS2.toString());
+		}
 		props.put("maxInflight", new Integer(maxInflight));
-		props.put("nextMsgID", new Integer(nextMsgId));
-		props.put("actualInFlight", new Integer(actualInFlight));
-		props.put("inFlightPubRels", new Integer(inFlightPubRels));
+		InflightWindow window = inflightWindow;
+		if (window != null) {
+			props.put("inflightWindow", new Integer(window.getSize()));
+			props.put("ackRttMicros", new Long(window.getSmoothedRtt()));
+			props.put("minAckRttMicros", new Long(window.getMinRtt()));
+		}
+		props.put("nextMsgID", new Integer(inUseMsgIds.getLastId()));
+		props.put("actualInFlight", new Integer(actualInFlight.get()));
+		props.put("inFlightPubRels", new Integer(inFlightPubRels.get()));
+		props.put("pendingPublishes", new Integer(pendingPublishes.get()));
+		props.put("publishBufferSize", new Integer(publishBufferSize));
 		props.put("quiescing", Boolean.valueOf(quiescing));
 		props.put("pingoutstanding", new Integer(pingOutstanding));
 		props.put("lastOutboundActivity", new Long(lastOutboundActivity));
 		props.put("lastInboundActivity", new Long(lastInboundActivity));
-		props.put("outboundQoS2", outboundQoS2);
-		props.put("outboundQoS1", outboundQoS1);
-		props.put("inboundQoS2", inboundQoS2);
 		props.put("tokens", tokenStore);
 		return props;
 	}
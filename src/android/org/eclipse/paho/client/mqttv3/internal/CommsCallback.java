@@ -17,21 +17,24 @@
  */
 package org.eclipse.paho.client.mqttv3.internal;
 
-import java.util.Enumeration;
-import java.util.Hashtable;
+import java.io.InputStream;
 import java.util.Vector;
 
 import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttDispatchKey;
 import org.eclipse.paho.client.mqttv3.IMqttMessageListener;
+import org.eclipse.paho.client.mqttv3.MqttBatchCallback;
 import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttDeliveryToken;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.MqttStreamCallback;
 import org.eclipse.paho.client.mqttv3.MqttToken;
-import org.eclipse.paho.client.mqttv3.MqttTopic;
 import org.eclipse.paho.client.mqttv3.internal.wire.MqttPubAck;
 import org.eclipse.paho.client.mqttv3.internal.wire.MqttPubComp;
 import org.eclipse.paho.client.mqttv3.internal.wire.MqttPublish;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttReceivedMessage;
 import org.eclipse.paho.client.mqttv3.logging.Logger;
 import org.eclipse.paho.client.mqttv3.logging.LoggerFactory;
 
@@ -44,26 +47,47 @@ public class CommsCallback implements Runnable {
 	private static final String CLASS_NAME = CommsCallback.class.getName();
 	private static final Logger log = LoggerFactory.getLogger(LoggerFactory.MQTT_CLIENT_MSG_CAT, CLASS_NAME);
 
-	private static final int INBOUND_QUEUE_SIZE = 10;
 	private MqttCallback mqttCallback;
-	private Hashtable callbacks; // topicFilter -> messageHandler
+	private SubscriptionTrie callbacks; // topicFilter -> messageHandler
 	private ClientComms clientComms;
-	private Vector messageQueue;
+	// Inbound messages waiting for the callback thread, guarded by spaceAvailable
+	private int inboundQueueSize = MqttConnectOptions.INBOUND_QUEUE_SIZE_DEFAULT;
+	private ObjectDeque messageQueue;
+	// The number of messages on the queue, readable without the lock
+	private volatile int queueDepth = 0;
 	private Vector completeQueue;
 	public boolean running = false;
 	private boolean quiescing = false;
 	private Object lifecycle = new Object();
 	private Thread callbackThread;
 	private Object workAvailable = new Object();
+	// Whether the callback thread is waiting on workAvailable
+	private boolean callbackWaiting = false;
 	private Object spaceAvailable = new Object();
+	// The number of threads waiting on spaceAvailable in messageArrived
+	private int spaceWaiters = 0;
+	private Runnable spaceWaiter = null;
+	private long spaceWaiterSince = 0;
+	// Inbound queue statistics, guarded by spaceAvailable
+	private int maxQueueDepth = 0;
+	private long blockedTime = 0;
+	private int blockedCount = 0;
 	private ClientState clientState;
 	private boolean manualAcks = false;
+	// Hands messages to worker threads when dispatch threads are set
+	private int dispatchThreads = 0;
+	private IMqttDispatchKey dispatchKey = null;
+	private volatile MessageDispatcher dispatcher = null;
+	// A shutdown handed to the callback thread, guarded by workAvailable
+	private boolean shutdownRequested = false;
+	private MqttToken shutdownToken = null;
+	private MqttException shutdownReason = null;
 
 	CommsCallback(ClientComms clientComms) {
 		this.clientComms = clientComms;
-		this.messageQueue = new Vector(INBOUND_QUEUE_SIZE);
-		this.completeQueue = new Vector(INBOUND_QUEUE_SIZE);
-		this.callbacks = new Hashtable();
+		this.messageQueue = new ObjectDeque(inboundQueueSize);
+		this.completeQueue = new Vector();
+		this.callbacks = new SubscriptionTrie();
 		log.setResourceName(clientComms.getClient().getClientId());
 	}
 
@@ -71,6 +95,36 @@ public class CommsCallback implements Runnable {
 		this.clientState = clientState;
 	}
 
+	/**
+	 * Sets how many inbound messages can wait for the callback thread
+	 * before the receiver has to wait for space.
+	 */
+	public void setInboundQueueSize(int inboundQueueSize) {
+		synchronized (spaceAvailable) {
+			this.inboundQueueSize = inboundQueueSize;
+			if (messageQueue.isEmpty()) {
+				messageQueue = new ObjectDeque(inboundQueueSize);
+			}
+			// A bigger queue may have room for a waiting receiver
+			signalSpaceAvailable();
+		}
+	}
+
+	/**
+	 * Sets how many worker threads messages are handed to the application
+	 * on, taking effect when the callback is next started. With no threads
+	 * messages are handed over on the callback thread.
+	 * @param dispatchThreads the number of worker threads, or 0
+	 * @param dispatchKey chooses which messages are kept in order, or null
+	 * to keep them in order within each topic
+	 */
+	public void setDispatchThreads(int dispatchThreads, IMqttDispatchKey dispatchKey) {
+		synchronized (lifecycle) {
+			this.dispatchThreads = dispatchThreads;
+			this.dispatchKey = dispatchKey;
+		}
+	}
+
 	/**
 	 * Starts up the Callback thread.
 	 */
@@ -79,11 +133,23 @@ public class CommsCallback implements Runnable {
 			if (!running) {
 				// Preparatory work before starting the background thread.
 				// For safety ensure any old events are cleared.
-				messageQueue.clear();
+				dropQueuedMessages();
 				completeQueue.clear();
 
 				running = true;
 				quiescing = false;
+				synchronized (workAvailable) {
+					shutdownRequested = false;
+					shutdownToken = null;
+					shutdownReason = null;
+				}
+				if (dispatchThreads > 0) {
+					dispatcher = new MessageDispatcher(this, dispatchThreads, inboundQueueSize, dispatchKey,
+							clientComms.getClient().getClientId());
+					dispatcher.start("MQTT Dispatch: " + clientComms.getClient().getClientId());
+				} else {
+					dispatcher = null;
+				}
 				callbackThread = new Thread(this, threadName);
 				callbackThread.start();
 			}
@@ -101,6 +167,12 @@ public class CommsCallback implements Runnable {
 				// @TRACE 700=stopping
 				log.fine(CLASS_NAME, methodName, "700");
 				running = false;
+				releaseSpaceWaiters();
+				if (dispatcher != null) {
+					// Also releases the callback thread if it is waiting to
+					// dispatch a message
+					dispatcher.stop();
+				}
 				if (!Thread.currentThread().equals(callbackThread)) {
 					try {
 						synchronized (workAvailable) {
@@ -114,6 +186,8 @@ public class CommsCallback implements Runnable {
 					} catch (InterruptedException ex) {
 					}
 				}
+				// Messages still queued won't be delivered now
+				dropQueuedMessages();
 			}
 			callbackThread = null;
 			// @TRACE 703=stopped
@@ -121,6 +195,20 @@ public class CommsCallback implements Runnable {
 		}
 	}
 
+	/**
+	 * Empties the queue of inbound messages, releasing the messages that
+	 * will now not be delivered.
+	 */
+	private void dropQueuedMessages() {
+		synchronized (spaceAvailable) {
+			MqttPublish message;
+			while ((message = (MqttPublish) messageQueue.removeFirst()) != null) {
+				release(message);
+			}
+			queueDepth = 0;
+		}
+	}
+
 	public void setCallback(MqttCallback mqttCallback) {
 		this.mqttCallback = mqttCallback;
 	}
@@ -136,16 +224,25 @@ public class CommsCallback implements Runnable {
 				// If no work is currently available, then wait until there is some...
 				try {
 					synchronized (workAvailable) {
-						if (running && messageQueue.isEmpty()
-								&& completeQueue.isEmpty()) {
+						if (running && queueDepth == 0
+								&& completeQueue.isEmpty() && !shutdownRequested) {
 							// @TRACE 704=wait for workAvailable
 							log.fine(CLASS_NAME, methodName, "704");
-							workAvailable.wait();
+							callbackWaiting = true;
+							try {
+								workAvailable.wait();
+							} finally {
+								callbackWaiting = false;
+							}
 						}
 					}
 				} catch (InterruptedException e) {
 				}
 
+				if (running && runRequestedShutdown()) {
+					continue;
+				}
+
 				if (running) {
 					// Check for deliveryComplete callbacks...
 					MqttToken token = null;
@@ -161,19 +258,46 @@ public class CommsCallback implements Runnable {
 					}
 					
 					// Check for messageArrived callbacks...
-					MqttPublish message = null;
-					synchronized (messageQueue) {
-					    if (!messageQueue.isEmpty()) {
-						    // Note, there is a window on connect where a publish
-						    // could arrive before we've
-						    // finished the connect logic.
-							message = (MqttPublish) messageQueue.elementAt(0);
-
-							messageQueue.removeElementAt(0);
-					    }
-					}
-					if (null != message) {
-						handleMessage(message);
+					if (dispatcher == null && mqttCallback instanceof MqttBatchCallback) {
+						MqttPublish[] batch = null;
+						synchronized (spaceAvailable) {
+							int count = messageQueue.size();
+							if (count > 0) {
+								batch = new MqttPublish[count];
+								for (int i = 0; i < count; i++) {
+									batch[i] = (MqttPublish) messageQueue.removeFirst();
+								}
+								queueDepth = 0;
+								signalSpaceAvailable();
+							}
+						}
+						if (null != batch) {
+							handleBatch(batch);
+						}
+					} else {
+						MqttPublish message = null;
+						synchronized (spaceAvailable) {
+							// Note, there is a window on connect where a publish
+							// could arrive before we've
+							// finished the connect logic.
+							message = (MqttPublish) messageQueue.removeFirst();
+							if (message != null) {
+								queueDepth = messageQueue.size();
+								// The message is off the queue, so its slot can
+								// be filled while it is handled
+								signalSpaceAvailable();
+							}
+						}
+						if (null != message) {
+							if (dispatcher != null) {
+								if (!dispatcher.dispatch(message)) {
+									// The dispatcher is stopping, so the message won't be handled
+									release(message);
+								}
+							} else {
+								handleMessage(message);
+							}
+						}
 					}
 				}
 
@@ -187,21 +311,58 @@ public class CommsCallback implements Runnable {
 				// @TRACE 714=callback threw exception
 				log.fine(CLASS_NAME, methodName, "714", null, ex);
 				running = false;
+				releaseSpaceWaiters();
 				clientComms.shutdownConnection(null, new MqttException(ex));
-				
-			} finally {
-			    synchronized (spaceAvailable) {
-                    // Notify the spaceAvailable lock, to say that there's now
-                    // some space on the queue...
-
-                    // @TRACE 706=notify spaceAvailable
-                    log.fine(CLASS_NAME, methodName, "706");
-                    spaceAvailable.notifyAll();
-                }
 			}
 		}
 	}
 
+	/**
+	 * Has the callback thread shut the connection down, for a thread that
+	 * must not wait for the shutdown itself, such as the shared network
+	 * threads of the non-blocking transport.
+	 * @return false if the callback thread is not running, in which case
+	 * the caller must shut down the connection itself
+	 */
+	public boolean requestShutdown(MqttToken token, MqttException reason) {
+		final String methodName = "requestShutdown";
+		synchronized (workAvailable) {
+			if (!running) {
+				return false;
+			}
+			if (!shutdownRequested) {
+				shutdownRequested = true;
+				shutdownToken = token;
+				shutdownReason = reason;
+			}
+			// @TRACE 725=shutdown requested
+			log.fine(CLASS_NAME, methodName, "725");
+			workAvailable.notifyAll();
+		}
+		return true;
+	}
+
+	/**
+	 * Shuts the connection down if another thread has asked for it.
+	 * @return whether the connection was shut down
+	 */
+	private boolean runRequestedShutdown() {
+		MqttToken token;
+		MqttException reason;
+		synchronized (workAvailable) {
+			if (!shutdownRequested) {
+				return false;
+			}
+			shutdownRequested = false;
+			token = shutdownToken;
+			reason = shutdownReason;
+			shutdownToken = null;
+			shutdownReason = null;
+		}
+		clientComms.shutdownConnection(token, reason);
+		return true;
+	}
+
 	private void handleActionComplete(MqttToken token)
 			throws MqttException {
 		final String methodName = "handleActionComplete";
@@ -229,6 +390,7 @@ public class CommsCallback implements Runnable {
 				// Now call async action completion callbacks
 				fireActionEvent(token);
 			}
+			token.internalTok.notifyFuture();
 			
 			// Set notified so we don't tell the user again about this action.
  			if ( token.isComplete() ){
@@ -306,31 +468,157 @@ public class CommsCallback implements Runnable {
 	 */
 	public void messageArrived(MqttPublish sendMessage) {
 		final String methodName = "messageArrived";
-		if (mqttCallback != null || callbacks.size() > 0) {
+		if (mqttCallback != null || !callbacks.isEmpty()) {
 			// If we already have enough messages queued up in memory, wait
 			// until some more queue space becomes available. This helps 
 			// the client protect itself from getting flooded by messages 
 			// from the server.
+			boolean queued = false;
 			synchronized (spaceAvailable) {
-				while (running && !quiescing && messageQueue.size() >= INBOUND_QUEUE_SIZE) {
+				if (running && !quiescing && messageQueue.size() >= inboundQueueSize) {
+					long start = System.currentTimeMillis();
+					spaceWaiters++;
 					try {
-						// @TRACE 709=wait for spaceAvailable
-						log.fine(CLASS_NAME, methodName, "709");
-						spaceAvailable.wait(200);
-					} catch (InterruptedException ex) {
+						while (running && !quiescing && messageQueue.size() >= inboundQueueSize) {
+							try {
+								// @TRACE 709=wait for spaceAvailable
+								log.fine(CLASS_NAME, methodName, "709");
+								spaceAvailable.wait();
+							} catch (InterruptedException ex) {
+							}
+						}
+					} finally {
+						spaceWaiters--;
 					}
+					blockedTime += System.currentTimeMillis() - start;
+					blockedCount++;
+				}
+				if (!quiescing) {
+					messageQueue.addLast(sendMessage);
+					queueDepth = messageQueue.size();
+					if (queueDepth > maxQueueDepth) {
+						maxQueueDepth = queueDepth;
+					}
+					queued = true;
 				}
 			}
-			if (!quiescing) {
-				messageQueue.addElement(sendMessage);
+			if (queued) {
 				// Notify the CommsCallback thread that there's work to do...
 				synchronized (workAvailable) {
-					// @TRACE 710=new msg avail, notify workAvailable
-					log.fine(CLASS_NAME, methodName, "710");
-					workAvailable.notifyAll();
+					if (callbackWaiting) {
+						// @TRACE 710=new msg avail, notify workAvailable
+						log.fine(CLASS_NAME, methodName, "710");
+						workAvailable.notifyAll();
+					}
 				}
+			} else {
+				release(sendMessage);
+			}
+		} else {
+			// Nothing will handle the message
+			release(sendMessage);
+		}
+	}
+
+	/**
+	 * Returns whether a message arriving now would have to wait for space
+	 * on the queue of inbound messages.
+	 */
+	public boolean isQueueFull() {
+		return (mqttCallback != null || !callbacks.isEmpty())
+				&& running && !quiescing && queueDepth >= inboundQueueSize;
+	}
+
+	/**
+	 * Runs a task once there is space on the queue of inbound messages, for
+	 * a receiver that cannot wait in {@link #messageArrived(MqttPublish)}.
+	 * The task runs straight away if there is space already, otherwise on
+	 * the callback thread, so it must not block. Only one task is held.
+	 */
+	public void notifyWhenSpaceAvailable(Runnable task) {
+		synchronized (spaceAvailable) {
+			if (isQueueFull()) {
+				spaceWaiter = task;
+				spaceWaiterSince = System.currentTimeMillis();
+				return;
 			}
 		}
+		task.run();
+	}
+
+	private void releaseSpaceWaiter() {
+		// Must be called holding the spaceAvailable lock
+		if (spaceWaiter != null && !isQueueFull()) {
+			Runnable task = spaceWaiter;
+			spaceWaiter = null;
+			blockedTime += System.currentTimeMillis() - spaceWaiterSince;
+			blockedCount++;
+			task.run();
+		}
+	}
+
+	/**
+	 * Tells a receiver waiting for space on the queue of inbound messages
+	 * that it may have some. Must be called holding the spaceAvailable
+	 * lock.
+	 */
+	private void signalSpaceAvailable() {
+		final String methodName = "signalSpaceAvailable";
+		if (spaceWaiters > 0) {
+			// @TRACE 706=notify spaceAvailable
+			log.fine(CLASS_NAME, methodName, "706");
+			spaceAvailable.notifyAll();
+		}
+		releaseSpaceWaiter();
+	}
+
+	/**
+	 * Releases any receiver waiting for space once the callback thread has
+	 * stopped taking messages.
+	 */
+	private void releaseSpaceWaiters() {
+		synchronized (spaceAvailable) {
+			spaceAvailable.notifyAll();
+			releaseSpaceWaiter();
+		}
+	}
+
+	/**
+	 * Returns the number of inbound messages waiting for the callback
+	 * thread.
+	 */
+	public int getInboundQueueDepth() {
+		return queueDepth;
+	}
+
+	/**
+	 * Returns the most inbound messages that have been waiting for the
+	 * callback thread at once.
+	 */
+	public int getMaxInboundQueueDepth() {
+		synchronized (spaceAvailable) {
+			return maxQueueDepth;
+		}
+	}
+
+	/**
+	 * Returns the total time, in milliseconds, that receivers have waited
+	 * for space on the queue of inbound messages.
+	 */
+	public long getInboundBlockedTime() {
+		synchronized (spaceAvailable) {
+			return blockedTime;
+		}
+	}
+
+	/**
+	 * Returns the number of times a receiver has had to wait for space on
+	 * the queue of inbound messages.
+	 */
+	public int getInboundBlockedCount() {
+		synchronized (spaceAvailable) {
+			return blockedCount;
+		}
 	}
 
 	/**
@@ -346,17 +634,44 @@ public class CommsCallback implements Runnable {
 			log.fine(CLASS_NAME, methodName, "711");
 			// Unblock anything waiting for space...
 			spaceAvailable.notifyAll();
+			releaseSpaceWaiter();
 		}
 	}
 
 	public boolean isQuiesced() {
-		if (quiescing && completeQueue.size() == 0 && messageQueue.size() == 0) {
+		MessageDispatcher dispatcher = this.dispatcher;
+		if (quiescing && completeQueue.size() == 0 && queueDepth == 0
+				&& (dispatcher == null || dispatcher.isIdle())) {
 			return true;
 		}
 		return false;
 	}
 
-	private void handleMessage(MqttPublish publishMessage)
+	/**
+	 * Called by a dispatcher worker when a message handler has thrown.
+	 */
+	void dispatchFailed(Throwable ex) {
+		clientComms.shutdownConnection(null, new MqttException(ex));
+	}
+
+	/**
+	 * Called by a dispatcher worker after it has handled a message.
+	 */
+	void dispatchDone() {
+		if (quiescing) {
+			clientState.checkQuiesceLock();
+		}
+	}
+
+	/**
+	 * Returns the number of messages waiting for dispatcher workers.
+	 */
+	public int getDispatchQueueDepth() {
+		MessageDispatcher dispatcher = this.dispatcher;
+		return (dispatcher == null) ? 0 : dispatcher.getQueueDepth();
+	}
+
+	void handleMessage(MqttPublish publishMessage)
 			throws MqttException, Exception {
 		final String methodName = "handleMessage";
 		// If quisecing process any pending messages.
@@ -366,32 +681,94 @@ public class CommsCallback implements Runnable {
 		// @TRACE 713=call messageArrived key={0} topic={1}
 		log.fine(CLASS_NAME, methodName, "713", new Object[] {
 				new Integer(publishMessage.getMessageId()), destName });
-		deliverMessage(destName, publishMessage.getMessageId(),
-				publishMessage.getMessage());
-
-		if (!this.manualAcks) {
-			if (publishMessage.getMessage().getQos() == 1) {
-				this.clientComms.internalSend(new MqttPubAck(publishMessage),
-						new MqttToken(clientComms.getClient().getClientId()));
-			} else if (publishMessage.getMessage().getQos() == 2) {
-				this.clientComms.deliveryComplete(publishMessage);
-				MqttPubComp pubComp = new MqttPubComp(publishMessage);
-				this.clientComms.internalSend(pubComp, new MqttToken(
-						clientComms.getClient().getClientId()));
+		try {
+			deliverMessage(destName, publishMessage.getMessageId(),
+					publishMessage.getMessage());
+
+			if (!this.manualAcks) {
+				acknowledge(publishMessage);
 			}
+		} finally {
+			// Delivery and acknowledgement are done, so a pooled payload can
+			// go back to the pool unless the application has retained it
+			release(publishMessage);
+		}
+	}
+
+	/**
+	 * Hands a batch of messages to the batch callback in one call, after
+	 * giving any that per-subscription listeners handle to them, and then
+	 * acknowledges the whole batch.
+	 */
+	private void handleBatch(MqttPublish[] batch) throws Exception {
+		final String methodName = "handleBatch";
+		try {
+			String[] topics = new String[batch.length];
+			MqttMessage[] messages = new MqttMessage[batch.length];
+			int count = 0;
+			for (int i = 0; i < batch.length; i++) {
+				String destName = batch[i].getTopicName();
+				MqttMessage message = batch[i].getMessage();
+				if (!deliverToListeners(destName, batch[i].getMessageId(), message)) {
+					message.setId(batch[i].getMessageId());
+					topics[count] = destName;
+					messages[count] = message;
+					count++;
+				}
+			}
+			if (count > 0) {
+				if (count < batch.length) {
+					String[] someTopics = new String[count];
+					MqttMessage[] someMessages = new MqttMessage[count];
+					System.arraycopy(topics, 0, someTopics, 0, count);
+					System.arraycopy(messages, 0, someMessages, 0, count);
+					topics = someTopics;
+					messages = someMessages;
+				}
+				// @TRACE 724=call messagesArrived count={0}
+				log.fine(CLASS_NAME, methodName, "724", new Object[] { new Integer(count) });
+				((MqttBatchCallback) mqttCallback).messagesArrived(topics, messages);
+			}
+
+			if (!this.manualAcks) {
+				for (int i = 0; i < batch.length; i++) {
+					acknowledge(batch[i]);
+				}
+			}
+		} finally {
+			for (int i = 0; i < batch.length; i++) {
+				release(batch[i]);
+			}
+		}
+	}
+
+	private void acknowledge(MqttPublish publishMessage) throws MqttException {
+		if (publishMessage.getMessage().getQos() == 1) {
+			this.clientComms.internalSendAck(new MqttPubAck(publishMessage));
+		} else if (publishMessage.getMessage().getQos() == 2) {
+			this.clientComms.deliveryComplete(publishMessage);
+			this.clientComms.internalSendAck(new MqttPubComp(publishMessage));
+		}
+	}
+
+	/**
+	 * Gives up the client's reference to the payload of a message that has
+	 * been delivered or discarded, so a pooled array can go back to the
+	 * pool and a spilled payload's file can be deleted.
+	 */
+	static void release(MqttPublish publishMessage) {
+		if (publishMessage.getMessage() instanceof MqttReceivedMessage) {
+			((MqttReceivedMessage) publishMessage.getMessage()).release();
 		}
 	}
 	
 	public void messageArrivedComplete(int messageId, int qos) 
 		throws MqttException {
 		if (qos == 1) {
-			this.clientComms.internalSend(new MqttPubAck(messageId),
-					new MqttToken(clientComms.getClient().getClientId()));
+			this.clientComms.internalSendAck(new MqttPubAck(messageId));
 		} else if (qos == 2) {
 			this.clientComms.deliveryComplete(messageId);
-			MqttPubComp pubComp = new MqttPubComp(messageId);
-			this.clientComms.internalSend(pubComp, new MqttToken(
-					clientComms.getClient().getClientId()));
+			this.clientComms.internalSendAck(new MqttPubComp(messageId));
 		}
 	}
 
@@ -430,6 +807,18 @@ public class CommsCallback implements Runnable {
 		return callbackThread;
 	}
 
+	/**
+	 * Returns whether the current thread is one that calls the application:
+	 * the callback thread or a dispatcher worker.
+	 */
+	protected boolean isCallbackThread() {
+		if (Thread.currentThread() == callbackThread) {
+			return true;
+		}
+		MessageDispatcher dispatcher = this.dispatcher;
+		return dispatcher != null && dispatcher.isWorkerThread();
+	}
+
 
 	public void setMessageListener(String topicFilter, IMqttMessageListener messageListener) {
 		this.callbacks.put(topicFilter, messageListener);
@@ -445,24 +834,44 @@ public class CommsCallback implements Runnable {
 	}
 	
 	
-	protected boolean deliverMessage(String topicName, int messageId, MqttMessage aMessage) throws Exception
-	{		
+	/**
+	 * Gives a message to the per-subscription listeners whose filters
+	 * match its topic.
+	 * @return whether any listener was given the message
+	 */
+	private boolean deliverToListeners(String topicName, int messageId, MqttMessage aMessage) throws Exception {
 		boolean delivered = false;
-		
-		Enumeration keys = callbacks.keys();
-		while (keys.hasMoreElements()) {
-			String topicFilter = (String)keys.nextElement();
-			if (MqttTopic.isMatched(topicFilter, topicName)) {
+		if (!callbacks.isEmpty()) {
+			Vector listeners = new Vector(2);
+			callbacks.match(topicName, listeners);
+			for (int i = 0; i < listeners.size(); i++) {
 				aMessage.setId(messageId);
-				((IMqttMessageListener)(callbacks.get(topicFilter))).messageArrived(topicName, aMessage);
+				((IMqttMessageListener) listeners.elementAt(i)).messageArrived(topicName, aMessage);
 				delivered = true;
 			}
 		}
+		return delivered;
+	}
+
+	protected boolean deliverMessage(String topicName, int messageId, MqttMessage aMessage) throws Exception
+	{		
+		boolean delivered = deliverToListeners(topicName, messageId, aMessage);
 		
 		/* if the message hasn't been delivered to a per subscription handler, give it to the default handler */
 		if (mqttCallback != null && !delivered) {
 			aMessage.setId(messageId);
-			mqttCallback.messageArrived(topicName, aMessage);
+			if (mqttCallback instanceof MqttStreamCallback && aMessage instanceof MqttReceivedMessage
+					&& ((MqttReceivedMessage) aMessage).isPayloadInFile()) {
+				// The payload was spilled to a file as it arrived, so hand it over as a stream
+				InputStream payload = ((MqttReceivedMessage) aMessage).getPayloadStream();
+				try {
+					((MqttStreamCallback) mqttCallback).messageArrived(topicName, aMessage, payload);
+				} finally {
+					payload.close();
+				}
+			} else {
+				mqttCallback.messageArrived(topicName, aMessage);
+			}
 			delivered = true;
 		}
 		
@@ -40,10 +40,14 @@ public class CommsReceiver implements Runnable {
 	private MqttInputStream in;
 	private CommsTokenStore tokenStore = null;
 	private Thread recThread = null;
-	private volatile boolean receiving;
+	private boolean nonBlocking = false;
 	
 	public CommsReceiver(ClientComms clientComms, ClientState clientState,CommsTokenStore tokenStore, InputStream in) {
 		this.in = new MqttInputStream(clientState, in);
+		this.in.setBufferPool(clientComms.getReceiveBufferPool());
+		this.in.setTopicCache(clientComms.getTopicCache());
+		this.in.setMaxPacketSize(clientComms.getConOptions().getMaxInboundPacketSize());
+		this.in.setStreaming(clientComms.getConOptions().getStreamingThreshold(), clientComms.getStreamingDirectory());
 		this.clientComms = clientComms;
 		this.clientState = clientState;
 		this.tokenStore = tokenStore;
@@ -66,6 +70,23 @@ public class CommsReceiver implements Runnable {
 		}
 	}
 
+	/**
+	 * Starts the Receiver without a thread of its own. Packets are read
+	 * by a {@link NetworkSelector} worker calling {@link #receiveNext()} whenever
+	 * the network has data.
+	 */
+	public void startNonBlocking() {
+		final String methodName = "startNonBlocking";
+		//@TRACE 855=starting
+		log.fine(CLASS_NAME,methodName, "855");
+		synchronized (lifecycle) {
+			if (!running) {
+				running = true;
+				nonBlocking = true;
+			}
+		}
+	}
+
 	/**
 	 * Stops the Receiver's thread.  This call will block.
 	 */
@@ -76,8 +97,7 @@ public class CommsReceiver implements Runnable {
 			log.fine(CLASS_NAME,methodName, "850");
 			if (running) {
 				running = false;
-				receiving = false;
-				if (!Thread.currentThread().equals(recThread)) {
+				if (recThread != null && !Thread.currentThread().equals(recThread)) {
 					try {
 						// Wait for the thread to finish.
 						recThread.join();
@@ -97,62 +117,90 @@ public class CommsReceiver implements Runnable {
 	 */
 	public void run() {
 		final String methodName = "run";
-		MqttToken token = null;
 		
 		while (running && (in != null)) {
-			try {
-				//@TRACE 852=network read message
-				log.fine(CLASS_NAME,methodName,"852");
-				receiving = in.available() > 0;
-				MqttWireMessage message = in.readMqttWireMessage();
-				receiving = false;
-				
-				if (message instanceof MqttAck) {
-					token = tokenStore.getToken(message);
-					if (token!=null) {
-						synchronized (token) {
-							// Ensure the notify processing is done under a lock on the token
-							// This ensures that the send processing can complete  before the 
-							// receive processing starts! ( request and ack and ack processing
-							// can occur before request processing is complete if not!
-							clientState.notifyReceivedAck((MqttAck)message);
-						}
-					} else {
-						// It its an ack and there is no token then something is not right.
-						// An ack should always have a token assoicated with it.
-						throw new MqttException(MqttException.REASON_CODE_UNEXPECTED_ERROR);
+			receive(false);
+		}
+		
+		//@TRACE 854=<
+		log.fine(CLASS_NAME,methodName,"854");
+	}
+	
+	/**
+	 * Handles the next message from the server if all of it has arrived,
+	 * without blocking.
+	 * @return true if a message was handled, false if more data is needed
+	 * or the receiver has stopped
+	 */
+	public boolean receiveNext() {
+		if (running && (in != null)) {
+			return receive(true);
+		}
+		return false;
+	}
+	
+	private boolean receive(boolean noWait) {
+		final String methodName = "receive";
+		MqttToken token = null;
+		try {
+			//@TRACE 852=network read message
+			log.fine(CLASS_NAME,methodName,"852");
+			MqttWireMessage message = noWait ? in.readMqttWireMessageNoWait() : in.readMqttWireMessage();
+			if (message == null) {
+				return false;
+			}
+			
+			if (message instanceof MqttAck) {
+				token = tokenStore.getToken(message);
+				if (token!=null) {
+					synchronized (token) {
+						// Ensure the notify processing is done under a lock on the token
+						// This ensures that the send processing can complete  before the 
+						// receive processing starts! ( request and ack and ack processing
+						// can occur before request processing is complete if not!
+						clientState.notifyReceivedAck((MqttAck)message);
 					}
 				} else {
-					// A new message has arrived
-					clientState.notifyReceivedMsg(message);
+					// It its an ack and there is no token then something is not right.
+					// An ack should always have a token assoicated with it.
+					throw new MqttException(MqttException.REASON_CODE_UNEXPECTED_ERROR);
 				}
+			} else {
+				// A new message has arrived
+				clientState.notifyReceivedMsg(message);
 			}
-			catch (MqttException ex) {
-				//@TRACE 856=Stopping, MQttException
-				log.fine(CLASS_NAME,methodName,"856",null,ex);
-				running = false;
-				// Token maybe null but that is handled in shutdown
-				clientComms.shutdownConnection(token, ex);
-			} 
-			catch (IOException ioe) {
-				//@TRACE 853=Stopping due to IOException
-				log.fine(CLASS_NAME,methodName,"853");
+			return true;
+		}
+		catch (MqttException ex) {
+			//@TRACE 856=Stopping, MQttException
+			log.fine(CLASS_NAME,methodName,"856",null,ex);
+			running = false;
+			// Token maybe null but that is handled in shutdown
+			shutdownConnection(token, ex);
+		} 
+		catch (IOException ioe) {
+			//@TRACE 853=Stopping due to IOException
+			log.fine(CLASS_NAME,methodName,"853");
 
-				running = false;
-				// An EOFException could be raised if the broker processes the 
-				// DISCONNECT and ends the socket before we complete. As such,
-				// only shutdown the connection if we're not already shutting down.
-				if (!clientComms.isDisconnecting()) {
-					clientComms.shutdownConnection(token, new MqttException(MqttException.REASON_CODE_CONNECTION_LOST, ioe));
-				}
-			}
-			finally {
-				receiving = false;
+			running = false;
+			// An EOFException could be raised if the broker processes the 
+			// DISCONNECT and ends the socket before we complete. As such,
+			// only shutdown the connection if we're not already shutting down.
+			if (!clientComms.isDisconnecting()) {
+				shutdownConnection(token, new MqttException(MqttException.REASON_CODE_CONNECTION_LOST, ioe));
 			}
 		}
-		
-		//@TRACE 854=<
-		log.fine(CLASS_NAME,methodName,"854");
+		return false;
+	}
+	
+	private void shutdownConnection(MqttToken token, MqttException reason) {
+		if (nonBlocking) {
+			// A network worker thread is shared with other connections, so
+			// must not wait for this one's threads to stop
+			clientComms.shutdownConnectionLater(token, reason);
+		} else {
+			clientComms.shutdownConnection(token, reason);
+		}
 	}
 	
 	public boolean isRunning() {
@@ -165,6 +213,6 @@ public class CommsReceiver implements Runnable {
 	 * @return true if the receiver is receiving data, false otherwise.
 	 */
 	public boolean isReceiving() {
-		return receiving;
+		return running && in.isReceiving();
 	}
 }
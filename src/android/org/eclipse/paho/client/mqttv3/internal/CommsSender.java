@@ -17,6 +17,7 @@ package org.eclipse.paho.client.mqttv3.internal;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.Vector;
 
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttToken;
@@ -40,9 +41,21 @@ public class CommsSender implements Runnable {
 	private ClientComms clientComms = null;
 	private CommsTokenStore tokenStore = null;
 	private Thread 	sendThread		= null;
+	private boolean	nonBlocking		= false;
+	// Held while a batch is sent by a network worker thread
+	private Object	sendLock		= new Object();
+	// Messages written in the current batch that are waiting for the flush,
+	// and the tokens they were written with
+	private Vector	sent			= new Vector();
+	private Vector	sentTokens		= new Vector();
+	private int		batchSize;
+	private long	batchLatency;
 	
 	public CommsSender(ClientComms clientComms, ClientState clientState, CommsTokenStore tokenStore, OutputStream out) {
-		this.out = new MqttOutputStream(clientState, out);
+		// A batch size of 0 flushes after every message
+		this.batchSize = clientComms.getConOptions().getSendBatchSize();
+		this.batchLatency = (batchSize > 0) ? clientComms.getConOptions().getSendBatchLatency() : 0;
+		this.out = new MqttOutputStream(clientState, out, batchSize);
 		this.clientComms = clientComms;
 		this.clientState = clientState;
 		this.tokenStore = tokenStore;
@@ -62,6 +75,21 @@ public class CommsSender implements Runnable {
 		}
 	}
 
+	/**
+	 * Starts the Sender without a thread of its own. Batches are sent by
+	 * a {@link NetworkSelector} worker calling {@link #sendNext()}, which
+	 * <code>wakeup</code> must arrange whenever there may be work to send.
+	 */
+	public void startNonBlocking(Runnable wakeup) {
+		synchronized (lifecycle) {
+			if (!running) {
+				running = true;
+				nonBlocking = true;
+				clientState.setSenderWakeup(wakeup);
+			}
+		}
+	}
+
 	/**
 	 * Stops the Sender's thread.  This call will block.
 	 */
@@ -71,7 +99,13 @@ public class CommsSender implements Runnable {
 		synchronized (lifecycle) {
 			//@TRACE 800=stopping sender
 			log.fine(CLASS_NAME,methodName,"800");
-			if (running) {
+			if (nonBlocking) {
+				// Wait for a batch being sent on a network worker thread
+				synchronized (sendLock) {
+					running = false;
+				}
+				clientState.setSenderWakeup(null);
+			} else if (running) {
 				running = false;
 				if (!Thread.currentThread().equals(sendThread)) {
 					try {
@@ -97,33 +131,7 @@ public class CommsSender implements Runnable {
 			try {
 				message = clientState.get();
 				if (message != null) {
-					//@TRACE 802=network send key={0} msg={1}
-					log.fine(CLASS_NAME,methodName,"802", new Object[] {message.getKey(),message});
-
-					if (message instanceof MqttAck) {
-						out.write(message);
-						out.flush();
-					} else {
-						MqttToken token = tokenStore.getToken(message);
-						// While quiescing the tokenstore can be cleared so need 
-						// to check for null for the case where clear occurs
-						// while trying to send a message.
-						if (token != null) {
-							synchronized (token) {
-								out.write(message);
-								try {
-									out.flush();
-								} catch (IOException ex) {
-									// The flush has been seen to fail on disconnect of a SSL socket
-									// as disconnect is in progress this should not be treated as an error
-									if (!(message instanceof MqttDisconnect)) {
-										throw ex;
-									}
-								}
-								clientState.notifySent(message);
-							}
-						}
-					}
+					sendBatch(message);
 				} else { // null message
 					//@TRACE 803=get message returned null, stopping}
 					log.fine(CLASS_NAME,methodName,"803");
@@ -141,6 +149,112 @@ public class CommsSender implements Runnable {
 		log.fine(CLASS_NAME, methodName,"805");
 
 	}
+	
+	/**
+	 * Sends the next batch of messages if one is ready, without waiting
+	 * for one. Called by a network worker thread when the sender has no
+	 * thread of its own and there may be work for it.
+	 * @return true if a batch was sent, false if there was nothing ready
+	 * or the sender has stopped
+	 */
+	public boolean sendNext() {
+		MqttWireMessage message = null;
+		Exception failure = null;
+		synchronized (sendLock) {
+			if (!running) {
+				return false;
+			}
+			try {
+				message = clientState.getNoWait();
+				if (message == null) {
+					return false;
+				}
+				sendBatch(message);
+				return true;
+			} catch (Exception ex) {
+				running = false;
+				failure = ex;
+			}
+		}
+		// Shut down outside sendLock, which stop() waits for
+		handleRunException(message, failure);
+		return false;
+	}
+	
+	/**
+	 * Reports a failure to write data left over from an earlier batch,
+	 * which the network module writes once the network can take it.
+	 */
+	public void writeFailed(IOException ex) {
+		synchronized (sendLock) {
+			if (!running) {
+				return;
+			}
+			running = false;
+		}
+		handleRunException(null, ex);
+	}
+	
+	/**
+	 * Writes a message, and any others that are ready if batching is
+	 * enabled, then flushes once.
+	 */
+	private void sendBatch(MqttWireMessage message) throws MqttException, IOException {
+		final String methodName = "sendBatch";
+		long batchEnd = System.currentTimeMillis() + batchLatency;
+		int batchBytes = 0;
+		boolean disconnecting = false;
+		sent.removeAllElements();
+		sentTokens.removeAllElements();
+		while (message != null) {
+			//@TRACE 802=network send key={0} msg={1}
+			log.fine(CLASS_NAME,methodName,"802", new Object[] {message.getKey(),message});
+
+			if (message instanceof MqttAck) {
+				batchBytes += out.write(message);
+			} else {
+				MqttToken token = tokenStore.getToken(message);
+				// While quiescing the tokenstore can be cleared so need 
+				// to check for null for the case where clear occurs
+				// while trying to send a message.
+				if (token != null) {
+					synchronized (token) {
+						batchBytes += out.write(message);
+					}
+					sent.addElement(message);
+					sentTokens.addElement(token);
+					disconnecting |= message instanceof MqttDisconnect;
+				}
+			}
+			if (batchBytes >= batchSize || System.currentTimeMillis() >= batchEnd) {
+				break;
+			}
+			message = clientState.poll();
+		}
+		
+		try {
+			out.flush();
+		} catch (IOException ex) {
+			// The flush has been seen to fail on disconnect of a SSL socket
+			// as disconnect is in progress this should not be treated as an error
+			if (!disconnecting) {
+				throw ex;
+			}
+		}
+		// Tokens are only told the message has been sent once it has been
+		// flushed. By then the response may have arrived and the message
+		// ID been reused, so use the token the message was written with
+		// and skip it if it has been completed in the meantime.
+		for (int i = 0; i < sent.size(); i++) {
+			message = (MqttWireMessage) sent.elementAt(i);
+			MqttToken token = (MqttToken) sentTokens.elementAt(i);
+			synchronized (token) {
+				if (!token.isComplete() && !token.internalTok.isCompletePending()) {
+					clientState.notifySent(message, token);
+				}
+			}
+		}
+	}
 
 	private void handleRunException(MqttWireMessage message, Exception ex) {
 		final String methodName = "handleRunException";
@@ -154,6 +268,16 @@ public class CommsSender implements Runnable {
 		}
 
 		running = false;
-		clientComms.shutdownConnection(null, mex);
+		if (nonBlocking) {
+			// A network worker thread is shared with other connections, so
+			// must not wait for this one's threads to stop
+			clientComms.shutdownConnectionLater(null, mex);
+		} else {
+			clientComms.shutdownConnection(null, mex);
+		}
+	}
+	
+	public boolean isRunning() {
+		return running;
 	}
 }
@@ -47,22 +47,57 @@ public class CommsTokenStore {
 	private static final String CLASS_NAME = CommsTokenStore.class.getName();
 	private static final Logger log = LoggerFactory.getLogger(LoggerFactory.MQTT_CLIENT_MSG_CAT, CLASS_NAME);
 
-	// Maps message-specific data (usually message IDs) to tokens
-	private Hashtable tokens;
+	// Message IDs are spread over this many independently locked maps, so
+	// the threads sending and the thread receiving acks rarely contend
+	private static final int STRIPES = 8;
+
+	// Maps message IDs to tokens, striped by the low bits of the ID
+	private IntObjectMap[] stripes;
+	// Maps the fixed keys of connect, ping and disconnect, which carry no
+	// message ID, to tokens
+	private Hashtable namedTokens;
 	private String logContext;
-	private MqttException closedResponse = null;
+	private volatile MqttException closedResponse = null;
 
 	public CommsTokenStore(String logContext) {
 		final String methodName = "<Init>";
 
 		log.setResourceName(logContext);
-		this.tokens = new Hashtable();
+		this.stripes = new IntObjectMap[STRIPES];
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new IntObjectMap();
+		}
+		this.namedTokens = new Hashtable();
 		this.logContext = logContext;
 		//@TRACE 308=<>
 		log.fine(CLASS_NAME,methodName,"308");//,new Object[]{message});
 
 	}
 
+	private IntObjectMap stripe(int messageId) {
+		return stripes[messageId & (STRIPES - 1)];
+	}
+
+	/**
+	 * Returns the message ID a string key stands for, or 0 if it is one of
+	 * the fixed keys.
+	 */
+	private static int parseKey(String key) {
+		int length = key.length();
+		if (length == 0 || length > 5) {
+			return 0;
+		}
+		int id = 0;
+		for (int i = 0; i < length; i++) {
+			char c = key.charAt(i);
+			if (c < '0' || c > '9') {
+				return 0;
+			}
+			id = id * 10 + (c - '0');
+		}
+		return id;
+	}
+
 	/**
 	 * Based on the message type that has just been received return the associated
 	 * token from the token store or null if one does not exist.
@@ -70,18 +105,38 @@ public class CommsTokenStore {
 	 * @return token for the requested message
 	 */
 	public MqttToken getToken(MqttWireMessage message) {
-		String key = message.getKey(); 
-		return (MqttToken)tokens.get(key);
+		int id = message.getMessageId();
+		if (id == 0) {
+			return (MqttToken)namedTokens.get(message.getKey());
+		}
+		return getToken(id);
 	}
 
 	public MqttToken getToken(String key) {
-		return (MqttToken)tokens.get(key);
+		if (null == key) {
+			return null;
+		}
+		int id = parseKey(key);
+		if (id == 0) {
+			return (MqttToken)namedTokens.get(key);
+		}
+		return getToken(id);
 	}
 
+	public MqttToken getToken(int messageId) {
+		IntObjectMap map = stripe(messageId);
+		synchronized(map) {
+			return (MqttToken)map.get(messageId);
+		}
+	}
 	
 	public MqttToken removeToken(MqttWireMessage message) {
 		if (message != null) {
-			return removeToken(message.getKey());
+			int id = message.getMessageId();
+			if (id == 0) {
+				return removeToken(message.getKey());
+			}
+			return removeToken(id);
 		}
 		return null;
 	}
@@ -92,11 +147,31 @@ public class CommsTokenStore {
 		log.fine(CLASS_NAME,methodName,"306",new Object[]{key});
 		
 		if ( null != key ){
-		    return (MqttToken) tokens.remove(key);
+			int id = parseKey(key);
+			if (id == 0) {
+				return (MqttToken) namedTokens.remove(key);
+			}
+			IntObjectMap map = stripe(id);
+			synchronized(map) {
+				return (MqttToken) map.remove(id);
+			}
 		}
 		
 		return null;
 	}
+
+	public MqttToken removeToken(int messageId) {
+		final String methodName = "removeToken";
+		if (log.isLoggable(Logger.FINE)) {
+			//@TRACE 306=key={0}
+			log.fine(CLASS_NAME,methodName,"306",new Object[]{new Integer(messageId)});
+		}
+
+		IntObjectMap map = stripe(messageId);
+		synchronized(map) {
+			return (MqttToken) map.remove(messageId);
+		}
+	}
 		
 	/**
 	 * Restores a token after a client restart.  This method could be called
@@ -106,18 +181,19 @@ public class CommsTokenStore {
 	protected MqttDeliveryToken restoreToken(MqttPublish message) {
 		final String methodName = "restoreToken";
 		MqttDeliveryToken token;
-		synchronized(tokens) {
-			String key = new Integer(message.getMessageId()).toString();
-			if (this.tokens.containsKey(key)) {
-				token = (MqttDeliveryToken)this.tokens.get(key);
+		int id = message.getMessageId();
+		IntObjectMap map = stripe(id);
+		synchronized(map) {
+			token = (MqttDeliveryToken)map.get(id);
+			if (token != null) {
 				//@TRACE 302=existing key={0} message={1} token={2}
-				log.fine(CLASS_NAME,methodName, "302",new Object[]{key, message,token});
+				log.fine(CLASS_NAME,methodName, "302",new Object[]{new Integer(id), message,token});
 			} else {
 				token = new MqttDeliveryToken(logContext);
-				token.internalTok.setKey(key);
-				this.tokens.put(key, token);
+				token.internalTok.setKey(id);
+				map.put(id, token);
 				//@TRACE 303=creating new token key={0} message={1} token={2}
-				log.fine(CLASS_NAME,methodName,"303",new Object[]{key, message, token});
+				log.fine(CLASS_NAME,methodName,"303",new Object[]{new Integer(id), message, token});
 			}
 		}
 		return token;
@@ -128,15 +204,30 @@ public class CommsTokenStore {
 	protected void saveToken(MqttToken token, MqttWireMessage message) throws MqttException {
 		final String methodName = "saveToken";
 
-		synchronized(tokens) {
-			if (closedResponse == null) {
+		int id = message.getMessageId();
+		if (id == 0) {
+			synchronized(namedTokens) {
+				if (closedResponse != null) {
+					throw closedResponse;
+				}
 				String key = message.getKey();
 				//@TRACE 300=key={0} message={1}
 				log.fine(CLASS_NAME,methodName,"300",new Object[]{key, message});
-				
+
 				saveToken(token,key);
-			} else {
-				throw closedResponse;
+			}
+		} else {
+			IntObjectMap map = stripe(id);
+			synchronized(map) {
+				if (closedResponse != null) {
+					throw closedResponse;
+				}
+				if (log.isLoggable(Logger.FINE)) {
+					//@TRACE 300=key={0} message={1}
+					log.fine(CLASS_NAME,methodName,"300",new Object[]{new Integer(id), message});
+				}
+				token.internalTok.setKey(id);
+				map.put(id, token);
 			}
 		}
 	}
@@ -144,79 +235,100 @@ public class CommsTokenStore {
 	protected void saveToken(MqttToken token, String key) {
 		final String methodName = "saveToken";
 
-		synchronized(tokens) {
-			//@TRACE 307=key={0} token={1}
-			log.fine(CLASS_NAME,methodName,"307",new Object[]{key,token.toString()});
+		//@TRACE 307=key={0} token={1}
+		log.fine(CLASS_NAME,methodName,"307",new Object[]{key,token.toString()});
+		int id = parseKey(key);
+		if (id == 0) {
 			token.internalTok.setKey(key);
-			this.tokens.put(key, token);
+			namedTokens.put(key, token);
+		} else {
+			IntObjectMap map = stripe(id);
+			synchronized(map) {
+				token.internalTok.setKey(id);
+				map.put(id, token);
+			}
 		}
 	}
 
 	protected void quiesce(MqttException quiesceResponse) {
 		final String methodName = "quiesce";
 
-		synchronized(tokens) {
-			//@TRACE 309=resp={0}
-			log.fine(CLASS_NAME,methodName,"309",new Object[]{quiesceResponse});
+		//@TRACE 309=resp={0}
+		log.fine(CLASS_NAME,methodName,"309",new Object[]{quiesceResponse});
 
-			closedResponse = quiesceResponse;
+		closedResponse = quiesceResponse;
+		// Saves check the response while holding their map's lock, so once
+		// each lock has been passed through no further save can slip in
+		synchronized(namedTokens) {
+		}
+		for (int i = 0; i < STRIPES; i++) {
+			synchronized(stripes[i]) {
+			}
 		}
 	}
 	
 	public void open() {
 		final String methodName = "open";
 
-		synchronized(tokens) {
-			//@TRACE 310=>
-			log.fine(CLASS_NAME,methodName,"310");
+		//@TRACE 310=>
+		log.fine(CLASS_NAME,methodName,"310");
 
-			closedResponse = null;
+		closedResponse = null;
+	}
+
+	/**
+	 * Returns every token in the store. Each map is copied under its own
+	 * lock, so the result is not a snapshot of the whole store at one
+	 * instant.
+	 */
+	private Vector allTokens() {
+		Vector list = new Vector();
+		Enumeration enumeration = namedTokens.elements();
+		while(enumeration.hasMoreElements()) {
+			list.addElement(enumeration.nextElement());
+		}
+		for (int i = 0; i < STRIPES; i++) {
+			Object[] values;
+			synchronized(stripes[i]) {
+				values = stripes[i].values();
+			}
+			for (int j = 0; j < values.length; j++) {
+				list.addElement(values[j]);
+			}
 		}
+		return list;
 	}
 
 	public MqttDeliveryToken[] getOutstandingDelTokens() {
 		final String methodName = "getOutstandingDelTokens";
 
-		synchronized(tokens) {
-			//@TRACE 311=>
-			log.fine(CLASS_NAME,methodName,"311");
-
-			Vector list = new Vector();
-			Enumeration enumeration = tokens.elements();
-			MqttToken token;
-			while(enumeration.hasMoreElements()) {
-				token = (MqttToken)enumeration.nextElement();
-				if (token != null 
-					&& token instanceof MqttDeliveryToken 
-					&& !token.internalTok.isNotified()) {
-					
-					list.addElement(token);
-				}
+		//@TRACE 311=>
+		log.fine(CLASS_NAME,methodName,"311");
+
+		Vector list = new Vector();
+		Enumeration enumeration = allTokens().elements();
+		MqttToken token;
+		while(enumeration.hasMoreElements()) {
+			token = (MqttToken)enumeration.nextElement();
+			if (token != null 
+				&& token instanceof MqttDeliveryToken 
+				&& !token.internalTok.isNotified()) {
+				
+				list.addElement(token);
 			}
-	
-			MqttDeliveryToken[] result = new MqttDeliveryToken[list.size()];
-			return (MqttDeliveryToken[]) list.toArray(result);
 		}
+
+		MqttDeliveryToken[] result = new MqttDeliveryToken[list.size()];
+		return (MqttDeliveryToken[]) list.toArray(result);
 	}
 	
 	public Vector getOutstandingTokens() {
 		final String methodName = "getOutstandingTokens";
 
-		synchronized(tokens) {
-			//@TRACE 312=>
-			log.fine(CLASS_NAME,methodName,"312");
-
-			Vector list = new Vector();
-			Enumeration enumeration = tokens.elements();
-			MqttToken token;
-			while(enumeration.hasMoreElements()) {
-				token = (MqttToken)enumeration.nextElement();
-				if (token != null) {
-						list.addElement(token);
-				}
-			}
-			return list;
-		}
+		//@TRACE 312=>
+		log.fine(CLASS_NAME,methodName,"312");
+
+		return allTokens();
 	}
 
 	/**
@@ -225,28 +337,34 @@ public class CommsTokenStore {
 	public void clear() {
 		final String methodName = "clear";
 		//@TRACE 305=> {0} tokens
-		log.fine(CLASS_NAME, methodName, "305", new Object[] {new Integer(tokens.size())});
-		synchronized(tokens) {
-			tokens.clear();
+		log.fine(CLASS_NAME, methodName, "305", new Object[] {new Integer(count())});
+		namedTokens.clear();
+		for (int i = 0; i < STRIPES; i++) {
+			synchronized(stripes[i]) {
+				stripes[i].clear();
+			}
 		}
 	}
 	
 	public int count() {
-		synchronized(tokens) {
-			return tokens.size();
+		int count = namedTokens.size();
+		for (int i = 0; i < STRIPES; i++) {
+			synchronized(stripes[i]) {
+				count += stripes[i].size();
+			}
 		}
+		return count;
 	}
+
 	public String toString() {
 		String lineSep = System.getProperty("line.separator","\n");
 		StringBuffer toks = new StringBuffer();
-		synchronized(tokens) {
-			Enumeration enumeration = tokens.elements();
-			MqttToken token;
-			while(enumeration.hasMoreElements()) {
-				token = (MqttToken)enumeration.nextElement();
-					toks.append("{"+token.internalTok+"}"+lineSep);
-			}
-			return toks.toString();
+		Enumeration enumeration = allTokens().elements();
+		MqttToken token;
+		while(enumeration.hasMoreElements()) {
+			token = (MqttToken)enumeration.nextElement();
+				toks.append("{"+token.internalTok+"}"+lineSep);
 		}
+		return toks.toString();
 	}
 }
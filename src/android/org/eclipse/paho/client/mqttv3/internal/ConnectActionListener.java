@@ -89,6 +89,7 @@ public class ConnectActionListener implements IMqttActionListener {
       userToken.setUserContext(userContext);
       userCallback.onSuccess(userToken);
     }
+    userToken.internalTok.notifyFuture();
   }
 
   /**
@@ -143,6 +144,7 @@ public class ConnectActionListener implements IMqttActionListener {
         userToken.setUserContext(userContext);
         userCallback.onFailure(userToken, exception);
       }
+      userToken.internalTok.notifyFuture();
     }
   }
 
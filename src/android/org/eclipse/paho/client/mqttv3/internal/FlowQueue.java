@@ -0,0 +1,167 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution. 
+ *
+ * The Eclipse Public License is available at 
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at 
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * Contributors:
+ *    Dave Locke - initial API and implementation and/or initial documentation
+ */
+package org.eclipse.paho.client.mqttv3.internal;
+
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttWireMessage;
+
+/**
+ * The queue of outbound flows, that is everything other than publishes,
+ * split into lanes by priority. It also decides when the queue of
+ * publishes, which is kept elsewhere, gets its turn.
+ * 
+ * Connection control flows, CONNECT and PINGREQ, always go first, so that
+ * a ping is never held up behind a backlog and mistaken for a dead
+ * connection. Acknowledgements, subscription requests and publishes then
+ * share what is left by weighted round robin. Each round they may send up
+ * to 4, 2 and 1 messages respectively, taken in that order, so a busy lane
+ * gets most of the sending but can't starve the others. A DISCONNECT is
+ * held back until the acknowledgements and subscription requests have gone,
+ * and then goes ahead of any publishes, as nothing can be sent after it.
+ * 
+ * This class is not thread safe, callers must hold a lock of their own.
+ */
+public class FlowQueue {
+	public static final int CONTROL = 0;
+	public static final int ACK = 1;
+	public static final int SUBSCRIPTION = 2;
+	public static final int PUBLISH = 3;
+	// DISCONNECT waits in a lane of its own
+	private static final int CLOSING = 4;
+
+	// Messages each lane may send per round; control is not rationed
+	private static final int[] WEIGHTS = {0, 4, 2, 1};
+
+	private ObjectDeque[] lanes = new ObjectDeque[CLOSING + 1];
+	private int[] credits = new int[WEIGHTS.length];
+	private int size = 0;
+
+	public FlowQueue() {
+		for (int i = 0; i < lanes.length; i++) {
+			if (i != PUBLISH) {
+				lanes[i] = new ObjectDeque();
+			}
+		}
+	}
+
+	private static int laneOf(MqttWireMessage message) {
+		switch (message.getType()) {
+			case MqttWireMessage.MESSAGE_TYPE_CONNECT:
+			case MqttWireMessage.MESSAGE_TYPE_PINGREQ:
+				return CONTROL;
+			case MqttWireMessage.MESSAGE_TYPE_PUBACK:
+			case MqttWireMessage.MESSAGE_TYPE_PUBREC:
+			case MqttWireMessage.MESSAGE_TYPE_PUBREL:
+			case MqttWireMessage.MESSAGE_TYPE_PUBCOMP:
+				return ACK;
+			case MqttWireMessage.MESSAGE_TYPE_DISCONNECT:
+				return CLOSING;
+			default:
+				return SUBSCRIPTION;
+		}
+	}
+
+	/**
+	 * Adds a flow to the tail of its lane.
+	 */
+	public void addLast(MqttWireMessage message) {
+		lanes[laneOf(message)].addLast(message);
+		size++;
+	}
+
+	/**
+	 * Adds a flow to the head of its lane.
+	 */
+	public void addFirst(MqttWireMessage message) {
+		lanes[laneOf(message)].addFirst(message);
+		size++;
+	}
+
+	/**
+	 * Returns the flow that is sent first if no publish is ready, without
+	 * removing it.
+	 * @return the flow, or null if there are none
+	 */
+	public MqttWireMessage peekFirst() {
+		for (int i = 0; i < lanes.length; i++) {
+			if (lanes[i] != null && !lanes[i].isEmpty()) {
+				return (MqttWireMessage) lanes[i].peekFirst();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Chooses the lane to send from next, using up one of its messages for
+	 * the round.
+	 * @param publishReady whether a publish is waiting and may be sent
+	 * @return the lane, {@link #PUBLISH} if it is the turn of the publishes,
+	 * or -1 if there is nothing to send
+	 */
+	public int nextLane(boolean publishReady) {
+		if (!lanes[CONTROL].isEmpty()) {
+			return CONTROL;
+		}
+		if (!lanes[CLOSING].isEmpty() && lanes[ACK].isEmpty() && lanes[SUBSCRIPTION].isEmpty()) {
+			// Nothing is sent after a DISCONNECT, publishes included
+			return CLOSING;
+		}
+		for (int round = 0; round < 2; round++) {
+			for (int i = ACK; i <= PUBLISH; i++) {
+				boolean ready = (i == PUBLISH) ? publishReady : !lanes[i].isEmpty();
+				if (ready && credits[i] > 0) {
+					credits[i]--;
+					return i;
+				}
+			}
+			// Every lane with work has had its share, so start a new round
+			for (int i = ACK; i <= PUBLISH; i++) {
+				credits[i] = WEIGHTS[i];
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Removes the flow at the head of a lane.
+	 * @param lane the lane returned by {@link #nextLane(boolean)}
+	 * @return the flow
+	 */
+	public MqttWireMessage removeFirst(int lane) {
+		size--;
+		return (MqttWireMessage) lanes[lane].removeFirst();
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public void clear() {
+		for (int i = 0; i < lanes.length; i++) {
+			if (lanes[i] != null) {
+				lanes[i].clear();
+			}
+		}
+		size = 0;
+	}
+
+	public String toString() {
+		return "control=" + lanes[CONTROL] + " ack=" + lanes[ACK] + " subscription=" + lanes[SUBSCRIPTION] + " closing=" + lanes[CLOSING];
+	}
+}
@@ -0,0 +1,139 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution. 
+ *
+ * The Eclipse Public License is available at 
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at 
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * Contributors:
+ *    Dave Locke - initial API and implementation and/or initial documentation
+ */
+package org.eclipse.paho.client.mqttv3.internal;
+
+/**
+ * Sizes the inflight window from the time publishes take to be
+ * acknowledged.
+ * 
+ * The window starts small and doubles every round trip, as long as it is
+ * full, until acknowledgements start to take noticeably longer than the
+ * quickest one seen recently. Time spent queued at the server or in the network
+ * then shows up as extra round trip time, and the window is halved, at most
+ * once a round trip. After that it grows by one message a round trip while
+ * the round trip time stays low. The window never goes outside the bounds
+ * it is given.
+ * 
+ * The quickest round trip is only remembered for a limited time, so that
+ * a lasting rise in the base round trip time, such as a mobile device
+ * moving to another network, is not taken as congestion for ever.
+ * 
+ * The size may be read from any thread; the rest is synchronized.
+ */
+public class InflightWindow {
+	// The window starts at this size, if the bounds allow it
+	private static final int INITIAL_SIZE = 10;
+	// Queueing delay below this is not taken as a sign of congestion
+	private static final long MIN_QUEUE_DELAY_NANOS = 20000000L;
+	// The quickest round trip is taken from roughly this long a period
+	private static final long MIN_RTT_PERIOD_NANOS = 10000000000L;
+
+	private final int minSize;
+	private final int maxSize;
+	private volatile int size;
+	// Window growth, in messages, not yet added to the size
+	private double growth = 0;
+	private boolean slowStart = true;
+
+	private long smoothedRtt = 0;
+	private long minRtt = Long.MAX_VALUE;
+	// The quickest round trip since the period started
+	private long periodMinRtt = Long.MAX_VALUE;
+	private long periodStart = 0;
+	private long lastDecrease = 0;
+	private long samples = 0;
+
+	/**
+	 * @param minSize the smallest the window may get
+	 * @param maxSize the largest the window may get
+	 */
+	public InflightWindow(int minSize, int maxSize) {
+		this.minSize = Math.min(minSize, maxSize);
+		this.maxSize = maxSize;
+		this.size = Math.max(this.minSize, Math.min(INITIAL_SIZE, maxSize));
+	}
+
+	/**
+	 * @return the number of publishes that may be in flight
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Takes account of the time an acknowledgement took to arrive.
+	 * @param rttNanos the time from sending the message to its acknowledgement
+	 * @param inFlight the number of publishes in flight when it arrived
+	 */
+	public synchronized void ackReceived(long rttNanos, int inFlight) {
+		long now = System.nanoTime();
+		if (samples++ == 0) {
+			periodStart = now;
+		}
+		if (rttNanos < minRtt) {
+			minRtt = rttNanos;
+		}
+		if (rttNanos < periodMinRtt) {
+			periodMinRtt = rttNanos;
+		}
+		if (now - periodStart > MIN_RTT_PERIOD_NANOS) {
+			// Forget round trips from before the period, so the minimum
+			// covers between one and two periods
+			minRtt = periodMinRtt;
+			periodMinRtt = Long.MAX_VALUE;
+			periodStart = now;
+		}
+		// Exponentially weighted moving average, as TCP uses
+		smoothedRtt = (smoothedRtt == 0) ? rttNanos : smoothedRtt + (rttNanos - smoothedRtt) / 8;
+
+		long queueDelay = smoothedRtt - minRtt;
+		if (queueDelay > Math.max(minRtt, MIN_QUEUE_DELAY_NANOS)) {
+			if (now - lastDecrease > smoothedRtt) {
+				size = Math.max(minSize, size / 2);
+				growth = 0;
+				slowStart = false;
+				lastDecrease = now;
+			}
+		} else if (inFlight + 1 >= size && size < maxSize) {
+			// Only grow a window that is being used to the full
+			growth += slowStart ? 1 : 1.0 / size;
+			if (growth >= 1) {
+				size = Math.min(maxSize, size + (int) growth);
+				growth -= (int) growth;
+			}
+		}
+	}
+
+	/**
+	 * @return the smoothed acknowledgement time in microseconds, or 0 if
+	 * nothing has been acknowledged yet
+	 */
+	public synchronized long getSmoothedRtt() {
+		return smoothedRtt / 1000;
+	}
+
+	/**
+	 * @return the quickest acknowledgement time seen recently in microseconds, or 0 if
+	 * nothing has been acknowledged yet
+	 */
+	public synchronized long getMinRtt() {
+		return (samples == 0) ? 0 : minRtt / 1000;
+	}
+
+	public synchronized String toString() {
+		return "size=" + size + " [" + minSize + ".." + maxSize + "] srtt=" + getSmoothedRtt() + "us minRtt=" + getMinRtt() + "us";
+	}
+}
@@ -0,0 +1,214 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution. 
+ *
+ * The Eclipse Public License is available at 
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at 
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * Contributors:
+ *    Dave Locke - initial API and implementation and/or initial documentation
+ */
+package org.eclipse.paho.client.mqttv3.internal;
+
+/**
+ * A map from int keys, such as MQTT message IDs, to objects. Keys are kept
+ * in an open-addressed table rather than boxed into Integers, so putting
+ * and getting entries allocates nothing once the table has grown to fit.
+ * 
+ * This class is not thread safe, callers must hold a lock of their own.
+ */
+public class IntObjectMap {
+	private static final int INITIAL_CAPACITY = 16;
+
+	// An entry is free when its value is null
+	private int[] keys;
+	private Object[] values;
+	private int mask;
+	private int shift;
+	private int size = 0;
+
+	public IntObjectMap() {
+		this(INITIAL_CAPACITY);
+	}
+
+	/**
+	 * Constructs a map with room for at least the given number of entries
+	 * before it needs to grow.
+	 */
+	public IntObjectMap(int expectedSize) {
+		int capacity = INITIAL_CAPACITY;
+		// Keep the table no more than half full
+		while (capacity < expectedSize * 2) {
+			capacity <<= 1;
+		}
+		allocate(capacity);
+	}
+
+	private void allocate(int capacity) {
+		keys = new int[capacity];
+		values = new Object[capacity];
+		mask = capacity - 1;
+		shift = 32 - Integer.numberOfTrailingZeros(capacity);
+	}
+
+	/**
+	 * Message IDs in use tend to be a run of consecutive numbers. Indexing
+	 * by their low bits would pack them into one long run of slots, which
+	 * every removal would have to scan, so the keys are scattered instead.
+	 */
+	private int slot(int key) {
+		return (key * 0x9E3779B9) >>> shift;
+	}
+
+	private int indexOf(int key) {
+		int i = slot(key);
+		while (values[i] != null) {
+			if (keys[i] == key) {
+				return i;
+			}
+			i = (i + 1) & mask;
+		}
+		return -1;
+	}
+
+	public Object get(int key) {
+		int i = indexOf(key);
+		return (i < 0) ? null : values[i];
+	}
+
+	public boolean containsKey(int key) {
+		return indexOf(key) >= 0;
+	}
+
+	/**
+	 * Maps the key to the value, which must not be null.
+	 * @return the value previously mapped to the key, or null
+	 */
+	public Object put(int key, Object value) {
+		if (value == null) {
+			throw new NullPointerException();
+		}
+		int i = slot(key);
+		while (values[i] != null) {
+			if (keys[i] == key) {
+				Object old = values[i];
+				values[i] = value;
+				return old;
+			}
+			i = (i + 1) & mask;
+		}
+		keys[i] = key;
+		values[i] = value;
+		if (++size * 2 > keys.length) {
+			rehash(keys.length * 2);
+		}
+		return null;
+	}
+
+	/**
+	 * Removes the key from the map.
+	 * @return the value that was mapped to the key, or null
+	 */
+	public Object remove(int key) {
+		int i = indexOf(key);
+		if (i < 0) {
+			return null;
+		}
+		Object old = values[i];
+		size--;
+		// Shift back any entries further along the run that would no longer
+		// be found once this slot is empty
+		int free = i;
+		int j = (i + 1) & mask;
+		while (values[j] != null) {
+			int home = slot(keys[j]);
+			if (((j - home) & mask) >= ((j - free) & mask)) {
+				keys[free] = keys[j];
+				values[free] = values[j];
+				free = j;
+			}
+			j = (j + 1) & mask;
+		}
+		values[free] = null;
+		return old;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public void clear() {
+		if (size > 0) {
+			for (int i = 0; i < values.length; i++) {
+				values[i] = null;
+			}
+			size = 0;
+		}
+	}
+
+	/**
+	 * Returns the keys of the map, in no particular order.
+	 */
+	public int[] keys() {
+		int[] result = new int[size];
+		int n = 0;
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] != null) {
+				result[n++] = keys[i];
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the values of the map, in no particular order.
+	 */
+	public Object[] values() {
+		Object[] result = new Object[size];
+		int n = 0;
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] != null) {
+				result[n++] = values[i];
+			}
+		}
+		return result;
+	}
+
+	private void rehash(int capacity) {
+		int[] oldKeys = keys;
+		Object[] oldValues = values;
+		allocate(capacity);
+		for (int i = 0; i < oldValues.length; i++) {
+			if (oldValues[i] != null) {
+				int j = slot(oldKeys[i]);
+				while (values[j] != null) {
+					j = (j + 1) & mask;
+				}
+				keys[j] = oldKeys[i];
+				values[j] = oldValues[i];
+			}
+		}
+	}
+
+	public String toString() {
+		StringBuffer sb = new StringBuffer("{");
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] != null) {
+				if (sb.length() > 1) {
+					sb.append(", ");
+				}
+				sb.append(keys[i]).append('=').append(values[i]);
+			}
+		}
+		return sb.append('}').toString();
+	}
+}
@@ -0,0 +1,235 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution. 
+ *
+ * The Eclipse Public License is available at 
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at 
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * Contributors:
+ *    Dave Locke - initial API and implementation and/or initial documentation
+ */
+package org.eclipse.paho.client.mqttv3.internal;
+
+import org.eclipse.paho.client.mqttv3.IMqttDispatchKey;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttPublish;
+import org.eclipse.paho.client.mqttv3.logging.Logger;
+import org.eclipse.paho.client.mqttv3.logging.LoggerFactory;
+
+/**
+ * Hands inbound messages to the application on a number of worker threads.
+ * Each message goes to the worker chosen by its dispatch key, so messages
+ * with the same key are handled in order by one thread while messages with
+ * other keys are handled alongside them. Each message is acknowledged by
+ * its worker once its handler has returned.
+ */
+public class MessageDispatcher {
+	private static final String CLASS_NAME = MessageDispatcher.class.getName();
+	private static final Logger log = LoggerFactory.getLogger(LoggerFactory.MQTT_CLIENT_MSG_CAT, CLASS_NAME);
+
+	private CommsCallback callback;
+	private IMqttDispatchKey dispatchKey;
+	private Worker[] workers;
+	// The number of messages each worker may have waiting
+	private int queueSize;
+	private volatile boolean running = false;
+
+	public MessageDispatcher(CommsCallback callback, int threads, int queueSize, IMqttDispatchKey dispatchKey, String clientId) {
+		log.setResourceName(clientId);
+		this.callback = callback;
+		this.queueSize = queueSize;
+		this.dispatchKey = dispatchKey;
+		this.workers = new Worker[threads];
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new Worker();
+		}
+	}
+
+	public int getThreads() {
+		return workers.length;
+	}
+
+	public void start(String threadName) {
+		running = true;
+		for (int i = 0; i < workers.length; i++) {
+			workers[i].start(threadName + "-" + i);
+		}
+	}
+
+	/**
+	 * Stops the worker threads, dropping and releasing any messages they
+	 * have not started on, and waits for them to finish. A worker calling
+	 * this does not wait for itself.
+	 */
+	public void stop() {
+		final String methodName = "stop";
+		//@TRACE 721=stopping dispatcher
+		log.fine(CLASS_NAME, methodName, "721");
+		running = false;
+		for (int i = 0; i < workers.length; i++) {
+			workers[i].stop();
+		}
+	}
+
+	/**
+	 * Queues a message for the worker its key maps to, waiting while that
+	 * worker's queue is full.
+	 * @return false if the dispatcher stopped before the message was queued
+	 */
+	public boolean dispatch(MqttPublish message) {
+		Object key = null;
+		if (dispatchKey != null) {
+			key = dispatchKey.getDispatchKey(message.getTopicName(), message.getMessage());
+		}
+		if (key == null) {
+			key = message.getTopicName();
+		}
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		return workers[(h & 0x7fffffff) % workers.length].add(message);
+	}
+
+	/**
+	 * Returns whether every worker has handled all the messages given to it.
+	 */
+	public boolean isIdle() {
+		for (int i = 0; i < workers.length; i++) {
+			if (!workers[i].isIdle()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns whether the current thread is one of the workers.
+	 */
+	public boolean isWorkerThread() {
+		Thread current = Thread.currentThread();
+		for (int i = 0; i < workers.length; i++) {
+			if (workers[i].thread == current) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the number of messages waiting for the workers.
+	 */
+	public int getQueueDepth() {
+		int depth = 0;
+		for (int i = 0; i < workers.length; i++) {
+			depth += workers[i].getQueueDepth();
+		}
+		return depth;
+	}
+
+	private class Worker implements Runnable {
+		private ObjectDeque queue = new ObjectDeque(queueSize);
+		private boolean busy = false;
+		private Thread thread = null;
+
+		void start(String name) {
+			synchronized (this) {
+				drop();
+				busy = false;
+			}
+			thread = new Thread(this, name);
+			thread.start();
+		}
+
+		void stop() {
+			Thread toJoin;
+			synchronized (this) {
+				toJoin = thread;
+				notifyAll();
+			}
+			if (toJoin != null && toJoin != Thread.currentThread()) {
+				try {
+					toJoin.join();
+				} catch (InterruptedException ex) {
+				}
+			}
+			thread = null;
+		}
+
+		synchronized boolean add(MqttPublish message) {
+			final String methodName = "add";
+			while (running && queue.size() >= queueSize) {
+				try {
+					//@TRACE 722=wait for dispatch queue space
+					log.fine(CLASS_NAME, methodName, "722");
+					wait();
+				} catch (InterruptedException ex) {
+				}
+			}
+			if (!running) {
+				return false;
+			}
+			queue.addLast(message);
+			notifyAll();
+			return true;
+		}
+
+		/**
+		 * Empties the queue, releasing the messages that will now not be
+		 * handled.
+		 */
+		private void drop() {
+			MqttPublish message;
+			while ((message = (MqttPublish) queue.removeFirst()) != null) {
+				CommsCallback.release(message);
+			}
+		}
+
+		synchronized boolean isIdle() {
+			return !busy && queue.isEmpty();
+		}
+
+		synchronized int getQueueDepth() {
+			return queue.size();
+		}
+
+		public void run() {
+			final String methodName = "run";
+			while (true) {
+				MqttPublish message;
+				synchronized (this) {
+					while (running && queue.isEmpty()) {
+						try {
+							wait();
+						} catch (InterruptedException ex) {
+						}
+					}
+					if (!running) {
+						drop();
+						return;
+					}
+					message = (MqttPublish) queue.removeFirst();
+					busy = true;
+					// Let the callback thread queue another message
+					notifyAll();
+				}
+				try {
+					callback.handleMessage(message);
+				} catch (Throwable ex) {
+					// Users code could throw an Error or Exception e.g. in the case
+					// of class NoClassDefFoundError
+					//@TRACE 723=dispatched message handler threw exception
+					log.fine(CLASS_NAME, methodName, "723", null, ex);
+					callback.dispatchFailed(ex);
+				} finally {
+					synchronized (this) {
+						busy = false;
+					}
+				}
+				callback.dispatchDone();
+			}
+		}
+	}
+}
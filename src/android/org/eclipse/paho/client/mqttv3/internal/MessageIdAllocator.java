@@ -0,0 +1,187 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution. 
+ *
+ * The Eclipse Public License is available at 
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at 
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * Contributors:
+ *    Dave Locke - initial API and implementation and/or initial documentation
+ */
+package org.eclipse.paho.client.mqttv3.internal;
+
+/**
+ * Hands out MQTT message IDs, keeping the set of IDs in use as a bitmap.
+ * 
+ * IDs are allocated in turn from a cursor that moves on from the last ID
+ * handed out. The next free ID is found a 64 bit word at a time, and a
+ * second, smaller bitmap of the words that are full lets the search skip
+ * over runs of IDs that are all in use. Finding an ID therefore takes
+ * about the same time whether a handful or almost all of them are in use.
+ * 
+ * This class is not thread safe, callers must hold a lock of their own.
+ */
+public class MessageIdAllocator {
+	public static final int MIN_ID = 1;
+	public static final int MAX_ID = 65535;
+
+	private static final int WORD_COUNT = (MAX_ID + 1) >>> 6;
+
+	// Bit n is set when ID n is in use. ID 0 is never valid so is always set.
+	private long[] inUse = new long[WORD_COUNT];
+	// Bit n is set when every ID in word n of inUse is in use
+	private long[] fullWords = new long[WORD_COUNT >>> 6];
+	private int count = 0;
+	private int lastId = MIN_ID - 1;
+
+	public MessageIdAllocator() {
+		inUse[0] = 1L;
+	}
+
+	/**
+	 * Allocates the next free ID after the last one allocated, wrapping
+	 * round at the top of the range, and marks it as in use.
+	 * @return the ID, or 0 if every ID is in use
+	 */
+	public int allocate() {
+		if (count == MAX_ID) {
+			return 0;
+		}
+		int id = (lastId < MAX_ID) ? findFree(lastId + 1) : -1;
+		if (id < 0) {
+			id = findFree(MIN_ID);
+		}
+		set(id);
+		lastId = id;
+		return id;
+	}
+
+	/**
+	 * Finds the lowest free ID that is at least <code>from</code>.
+	 * @return the ID, or -1 if there is none
+	 */
+	private int findFree(int from) {
+		int word = from >>> 6;
+		long free = ~inUse[word] & (-1L << (from & 63));
+		if (free == 0) {
+			word = findNonFullWord(word + 1);
+			if (word < 0) {
+				return -1;
+			}
+			free = ~inUse[word];
+		}
+		return (word << 6) + Long.numberOfTrailingZeros(free);
+	}
+
+	/**
+	 * Finds the first word of the bitmap, at or after the given one, that
+	 * has a free ID in it.
+	 * @return the index of the word, or -1 if there is none
+	 */
+	private int findNonFullWord(int from) {
+		if (from >= WORD_COUNT) {
+			return -1;
+		}
+		int summary = from >>> 6;
+		long notFull = ~fullWords[summary] & (-1L << (from & 63));
+		while (notFull == 0) {
+			if (++summary == fullWords.length) {
+				return -1;
+			}
+			notFull = ~fullWords[summary];
+		}
+		return (summary << 6) + Long.numberOfTrailingZeros(notFull);
+	}
+
+	private void set(int id) {
+		int word = id >>> 6;
+		inUse[word] |= 1L << (id & 63);
+		if (inUse[word] == -1L) {
+			fullWords[word >>> 6] |= 1L << (word & 63);
+		}
+		count++;
+	}
+
+	/**
+	 * Marks an ID as in use, such as one restored from persistence.
+	 */
+	public void markInUse(int id) {
+		if (id >= MIN_ID && id <= MAX_ID && !isInUse(id)) {
+			set(id);
+		}
+	}
+
+	/**
+	 * Releases an ID so that it can be allocated again. Releasing an ID that
+	 * is not in use does nothing.
+	 */
+	public void release(int id) {
+		if (id >= MIN_ID && id <= MAX_ID && isInUse(id)) {
+			int word = id >>> 6;
+			inUse[word] &= ~(1L << (id & 63));
+			fullWords[word >>> 6] &= ~(1L << (word & 63));
+			count--;
+		}
+	}
+
+	public boolean isInUse(int id) {
+		return (inUse[id >>> 6] & (1L << (id & 63))) != 0;
+	}
+
+	/**
+	 * Returns the number of IDs in use.
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Returns the ID most recently allocated, which allocation carries on
+	 * from.
+	 */
+	public int getLastId() {
+		return lastId;
+	}
+
+	/**
+	 * Sets the ID that allocation carries on from, such as the highest ID
+	 * restored from persistence.
+	 */
+	public void setLastId(int lastId) {
+		this.lastId = lastId;
+	}
+
+	/**
+	 * Releases every ID.
+	 */
+	public void clear() {
+		for (int i = 0; i < inUse.length; i++) {
+			inUse[i] = 0;
+		}
+		for (int i = 0; i < fullWords.length; i++) {
+			fullWords[i] = 0;
+		}
+		inUse[0] = 1L;
+		count = 0;
+	}
+
+	public String toString() {
+		StringBuffer sb = new StringBuffer("[");
+		if (count > 0) {
+			for (int id = MIN_ID; id <= MAX_ID; id++) {
+				if (isInUse(id)) {
+					if (sb.length() > 1) {
+						sb.append(", ");
+					}
+					sb.append(id);
+				}
+			}
+		}
+		return sb.append(']').toString();
+	}
+}
@@ -0,0 +1,72 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution. 
+ *
+ * The Eclipse Public License is available at 
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at 
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * Contributors:
+ *    Dave Locke - initial API and implementation and/or initial documentation
+ */
+package org.eclipse.paho.client.mqttv3.internal;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A linked first-in first-out queue that any number of threads can add to
+ * without taking a lock, and that one thread at a time takes from.
+ * 
+ * Adding swaps the new node in as the tail with a single atomic operation
+ * and then links the old tail to it. Until that link is made the new
+ * element is not yet visible to {@link #poll()}, so a producer must signal
+ * the consumer after {@link #offer(Object)} returns. Callers of
+ * {@link #poll()} must not run concurrently with each other.
+ */
+public class MpscQueue {
+	private static class Node {
+		private Object item;
+		private volatile Node next;
+		
+		private Node(Object item) {
+			this.item = item;
+		}
+	}
+	
+	private final AtomicReference tail;
+	// The consumer's position; its item has already been taken
+	private Node head;
+	
+	public MpscQueue() {
+		head = new Node(null);
+		tail = new AtomicReference(head);
+	}
+	
+	/**
+	 * Adds an element to the tail of the queue. Safe to call from any thread.
+	 */
+	public void offer(Object item) {
+		Node node = new Node(item);
+		Node previous = (Node) tail.getAndSet(node);
+		previous.next = node;
+	}
+	
+	/**
+	 * Removes the element at the head of the queue.
+	 * @return the element, or null if the queue is empty
+	 */
+	public Object poll() {
+		Node next = head.next;
+		if (next == null) {
+			return null;
+		}
+		Object item = next.item;
+		next.item = null;
+		head = next;
+		return item;
+	}
+}
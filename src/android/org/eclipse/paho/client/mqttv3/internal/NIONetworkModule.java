@@ -0,0 +1,372 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution. 
+ *
+ * The Eclipse Public License is available at 
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at 
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * Contributors:
+ *    Dave Locke - initial API and implementation and/or initial documentation
+ */
+package org.eclipse.paho.client.mqttv3.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.logging.Logger;
+import org.eclipse.paho.client.mqttv3.logging.LoggerFactory;
+
+/**
+ * A network module for connecting over TCP whose connection is watched by
+ * a shared {@link NetworkSelector} instead of threads of its own. The
+ * packets it reads are handled, and the packets to send are written, on
+ * the selector's shared worker threads.
+ * 
+ * The channel is connected in blocking mode and then switched to
+ * non-blocking mode. Bulk reads never block: the input stream returns 0
+ * when no data is available. Writes never block either: what the socket's
+ * send buffer can't take is kept until the selector finds the channel
+ * writable, and the sender is not given more to write until then.
+ */
+public class NIONetworkModule implements NetworkModule, NetworkSelector.Handler {
+	private static final String CLASS_NAME = NIONetworkModule.class.getName();
+	private static final Logger log = LoggerFactory.getLogger(LoggerFactory.MQTT_CLIENT_MSG_CAT,CLASS_NAME);
+
+	private SocketChannel channel;
+	private NetworkSelector selector;
+	private String host;
+	private int port;
+	private int conTimeout;
+	private boolean tcpNoDelay = false;
+	
+	private CommsReceiver receiver;
+	private CommsCallback callback;
+	private CommsSender sender;
+	private Selector readSelector;
+	// Bytes written that the channel could not take yet. Only the thread
+	// running sendTask writes, so these need no lock.
+	private byte[] backlog = new byte[0];
+	private int backlogStart = 0;
+	private int backlogEnd = 0;
+	// The number of times the sender has been woken since sendTask last
+	// found nothing to do
+	private AtomicInteger sendRequests = new AtomicInteger();
+	
+	/**
+	 * Constructs a new NIONetworkModule using the specified host and port.
+	 */
+	public NIONetworkModule(String host, int port, String resourceContext) {
+		log.setResourceName(resourceContext);
+		this.host = host;
+		this.port = port;
+	}
+
+	/**
+	 * Starts the module, by connecting a socket channel to the server.
+	 */
+	public void start() throws IOException, MqttException {
+		final String methodName = "start";
+		try {
+			// @TRACE 252=connect to host {0} port {1} timeout {2}
+			log.fine(CLASS_NAME,methodName, "252", new Object[] {host, new Integer(port), new Long(conTimeout*1000)});
+			selector = NetworkSelector.getInstance();
+			channel = SocketChannel.open();
+			channel.socket().connect(new InetSocketAddress(host, port), conTimeout*1000);
+			
+			// TCP_NODELAY on means we do not use Nagle's algorithm
+			channel.socket().setTcpNoDelay(tcpNoDelay);
+			channel.configureBlocking(false);
+		}
+		catch (ConnectException ex) {
+			//@TRACE 250=Failed to create TCP socket
+			log.fine(CLASS_NAME,methodName,"250",null,ex);
+			throw new MqttException(MqttException.REASON_CODE_SERVER_CONNECT_ERROR, ex);
+		}
+	}
+
+	public InputStream getInputStream() throws IOException {
+		return new ChannelInputStream();
+	}
+	
+	public OutputStream getOutputStream() throws IOException {
+		return new ChannelOutputStream();
+	}
+	
+	/**
+	 * Starts reading the connection through the selector, handing each
+	 * packet to the receiver on a worker thread.
+	 */
+	public void startReceiving(CommsReceiver receiver, CommsCallback callback) {
+		this.receiver = receiver;
+		this.callback = callback;
+		receiver.startNonBlocking();
+		selector.register(channel, SelectionKey.OP_READ, this);
+	}
+
+	/**
+	 * Starts writing the connection through the selector, with the sender
+	 * sending its batches on a worker thread whenever there is work for it
+	 * and the channel can take more.
+	 */
+	public void startSending(CommsSender sender) {
+		this.sender = sender;
+		sender.startNonBlocking(new Runnable() {
+			public void run() {
+				wakeSender();
+			}
+		});
+	}
+
+	/**
+	 * Stops the module, by closing the channel.
+	 */
+	public void stop() throws IOException {
+		if (channel != null) {
+			channel.close();
+			synchronized (this) {
+				if (readSelector != null) {
+					// Also wakes a reader waiting for a byte
+					readSelector.close();
+					readSelector = null;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Set the maximum time to wait for a socket to be established
+	 * @param timeout
+	 */
+	public void setConnectTimeout(int timeout) {
+		this.conTimeout = timeout;
+	}
+
+	/**
+	 * Set whether to disable Nagle's algorithm on the socket
+	 * @param tcpNoDelay
+	 */
+	public void setTcpNoDelay(boolean tcpNoDelay) {
+		this.tcpNoDelay = tcpNoDelay;
+	}
+
+	public String getServerURI() {
+		return "tcp://" + host + ":" + port;
+	}
+	
+	/**
+	 * Hands the reading of the channel to a worker thread. Handling a
+	 * packet can wait on persistence or on a token's lock, held perhaps by
+	 * a sender waiting for the selector to find its channel writable, so
+	 * it must not be done on the selector thread. Read interest is dropped
+	 * until the worker has read all it can, so only one worker reads the
+	 * channel at a time.
+	 */
+	public void readable(SelectionKey key) {
+		key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+		NetworkSelector.submit(receiveTask);
+	}
+	
+	private Runnable receiveTask = new Runnable() {
+		public void run() {
+			receive();
+		}
+	};
+	
+	/**
+	 * Handles the packets that have arrived, on a worker thread. Reading is
+	 * paused while the callback's queue of inbound messages is full.
+	 */
+	private void receive() {
+		while (receiver.isRunning()) {
+			if (callback.isQueueFull()) {
+				// Leave the data in the socket until the application catches up.
+				// Packets may already be buffered with nothing more to come, so
+				// read again once there is space rather than waiting on the channel.
+				callback.notifyWhenSpaceAvailable(new Runnable() {
+					public void run() {
+						NetworkSelector.submit(receiveTask);
+					}
+				});
+				return;
+			}
+			if (!receiver.receiveNext()) {
+				if (receiver.isRunning()) {
+					selector.setInterest(channel, SelectionKey.OP_READ, true);
+				}
+				return;
+			}
+		}
+	}
+	
+	public void writable(SelectionKey key) {
+		key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+		wakeSender();
+	}
+	
+	/**
+	 * Has the sender run on a worker thread, unless it is already due to.
+	 */
+	private void wakeSender() {
+		if (sendRequests.getAndIncrement() == 0) {
+			NetworkSelector.submit(sendTask);
+		}
+	}
+	
+	private Runnable sendTask = new Runnable() {
+		public void run() {
+			int requests;
+			do {
+				requests = sendRequests.get();
+				send();
+				// Run again if the sender was woken while it was sending
+			} while (!sendRequests.compareAndSet(requests, 0));
+		}
+	};
+	
+	/**
+	 * Writes what is left over from earlier batches, then has the sender
+	 * send batches until it has nothing ready or the channel is full.
+	 */
+	private void send() {
+		while (sender.isRunning()) {
+			try {
+				if (!writeBacklog()) {
+					// Carried on when the selector finds the channel writable
+					return;
+				}
+			} catch (IOException ex) {
+				sender.writeFailed(ex);
+				return;
+			}
+			if (!sender.sendNext()) {
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Writes as much of the backlog as the channel will take, asking the
+	 * selector to report when the channel is writable if some is left.
+	 * @return true if the backlog is empty
+	 */
+	private boolean writeBacklog() throws IOException {
+		if (backlogStart < backlogEnd) {
+			backlogStart += channel.write(ByteBuffer.wrap(backlog, backlogStart, backlogEnd - backlogStart));
+			if (backlogStart < backlogEnd) {
+				selector.setInterest(channel, SelectionKey.OP_WRITE, true);
+				return false;
+			}
+		}
+		backlogStart = 0;
+		backlogEnd = 0;
+		return true;
+	}
+	
+	/**
+	 * Adds bytes the channel could not take to the end of the backlog.
+	 */
+	private void addToBacklog(byte[] b, int off, int len) {
+		int pending = backlogEnd - backlogStart;
+		if (backlogEnd + len > backlog.length) {
+			byte[] target = (pending + len > backlog.length) ? new byte[Math.max(pending + len, backlog.length * 2)] : backlog;
+			System.arraycopy(backlog, backlogStart, target, 0, pending);
+			backlog = target;
+			backlogStart = 0;
+			backlogEnd = pending;
+		}
+		System.arraycopy(b, off, backlog, backlogEnd, len);
+		backlogEnd += len;
+	}
+	
+	/**
+	 * Waits until the channel has data to read or reaches end of stream.
+	 * A selector of its own, opened on first use, is used so that the
+	 * shared selector goes on handling only the reads the receiver drives.
+	 */
+	private void awaitReadable() throws IOException {
+		Selector waitSelector;
+		synchronized (this) {
+			if (!channel.isOpen()) {
+				throw new ClosedChannelException();
+			}
+			if (readSelector == null) {
+				readSelector = Selector.open();
+				channel.register(readSelector, SelectionKey.OP_READ);
+			}
+			waitSelector = this.readSelector;
+		}
+		try {
+			waitSelector.select();
+			waitSelector.selectedKeys().clear();
+		} catch (ClosedSelectorException ex) {
+			throw new ClosedChannelException();
+		}
+	}
+	
+	/**
+	 * Reads whatever the channel has available without blocking, except
+	 * that a single byte read waits for the byte.
+	 */
+	private class ChannelInputStream extends InputStream {
+		public int read() throws IOException {
+			byte[] one = new byte[1];
+			int count;
+			while ((count = read(one, 0, 1)) == 0) {
+				// A single byte can't be reported as unavailable, so wait for one
+				awaitReadable();
+			}
+			return (count < 0) ? -1 : (one[0] & 0xFF);
+		}
+		
+		public int read(byte[] b, int off, int len) throws IOException {
+			return channel.read(ByteBuffer.wrap(b, off, len));
+		}
+		
+		public void close() throws IOException {
+			NIONetworkModule.this.stop();
+		}
+	}
+	
+	/**
+	 * Writes what the channel will take straight away and adds the rest to
+	 * the backlog, so that it never waits.
+	 */
+	private class ChannelOutputStream extends OutputStream {
+		public void write(int b) throws IOException {
+			write(new byte[] {(byte) b}, 0, 1);
+		}
+		
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (backlogStart == backlogEnd) {
+				int count = channel.write(ByteBuffer.wrap(b, off, len));
+				off += count;
+				len -= count;
+			}
+			if (len > 0) {
+				// Keep the bytes in order behind any already waiting
+				addToBacklog(b, off, len);
+				selector.setInterest(channel, SelectionKey.OP_WRITE, true);
+			}
+		}
+		
+		public void close() throws IOException {
+			NIONetworkModule.this.stop();
+		}
+	}
+}
@@ -0,0 +1,199 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution. 
+ *
+ * The Eclipse Public License is available at 
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at 
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * Contributors:
+ *    Dave Locke - initial API and implementation and/or initial documentation
+ */
+package org.eclipse.paho.client.mqttv3.internal;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Vector;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.paho.client.mqttv3.logging.Logger;
+import org.eclipse.paho.client.mqttv3.logging.LoggerFactory;
+
+/**
+ * A thread that waits on a {@link Selector} for network events on behalf
+ * of many connections. A small, fixed set of these is shared by every
+ * {@link NIONetworkModule} in the process, so the number of threads
+ * reading from and writing to the network does not grow with the number
+ * of clients.
+ * 
+ * Work for a channel, such as registering it or changing its interest
+ * set, is run on the selector thread through {@link #execute(Runnable)}.
+ * Work that may block, such as handling the packets read from a channel,
+ * is run on a small, fixed set of worker threads through
+ * {@link #submit(Runnable)}, so the selector thread never waits on I/O or
+ * locks.
+ */
+public class NetworkSelector implements Runnable {
+	private static final String CLASS_NAME = NetworkSelector.class.getName();
+	private static final Logger log = LoggerFactory.getLogger(LoggerFactory.MQTT_CLIENT_MSG_CAT, CLASS_NAME);
+
+	private static final int THREAD_COUNT = 2;
+	private static NetworkSelector[] selectors = new NetworkSelector[THREAD_COUNT];
+	private static int next = 0;
+	
+	private static final int WORKER_COUNT = 4;
+	private static final long WORKER_KEEP_ALIVE = 60;
+	private static ThreadPoolExecutor workers = null;
+
+	/**
+	 * Receives the events of a channel registered with a selector. The
+	 * methods are called on the selector thread, so must not block.
+	 */
+	public interface Handler {
+		public void readable(SelectionKey key);
+		
+		public void writable(SelectionKey key);
+	}
+
+	private Selector selector;
+	private Vector tasks = new Vector();
+	private Thread selectorThread;
+	
+	/**
+	 * Returns one of the shared selectors, handing them out in turn.
+	 */
+	public static synchronized NetworkSelector getInstance() throws IOException {
+		int index = next;
+		next = (next + 1) % THREAD_COUNT;
+		if (selectors[index] == null) {
+			selectors[index] = new NetworkSelector("MQTT Selector " + index);
+		}
+		return selectors[index];
+	}
+	
+	/**
+	 * Runs a task on one of the worker threads shared by all the
+	 * selectors. The threads are started when needed and end after being
+	 * idle for a while.
+	 */
+	public static void submit(Runnable task) {
+		getWorkers().execute(task);
+	}
+	
+	private static synchronized ThreadPoolExecutor getWorkers() {
+		if (workers == null) {
+			workers = new ThreadPoolExecutor(WORKER_COUNT, WORKER_COUNT, WORKER_KEEP_ALIVE, TimeUnit.SECONDS,
+					new LinkedBlockingQueue(), new ThreadFactory() {
+				private int count = 0;
+				
+				public synchronized Thread newThread(Runnable task) {
+					Thread thread = new Thread(task, "MQTT Network Worker " + count++);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			workers.allowCoreThreadTimeOut(true);
+		}
+		return workers;
+	}
+	
+	private NetworkSelector(String threadName) throws IOException {
+		selector = Selector.open();
+		selectorThread = new Thread(this, threadName);
+		selectorThread.setDaemon(true);
+		selectorThread.start();
+	}
+	
+	/**
+	 * Registers a channel, which must be in non-blocking mode, for the
+	 * given events.
+	 */
+	public void register(final SelectableChannel channel, final int ops, final Handler handler) {
+		execute(new Runnable() {
+			public void run() {
+				try {
+					channel.register(selector, ops, handler);
+				} catch (ClosedChannelException ex) {
+					// The connection was stopped before it could be registered
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Adds events to, or removes them from, the interest set of a channel.
+	 */
+	public void setInterest(final SelectableChannel channel, final int ops, final boolean interested) {
+		execute(new Runnable() {
+			public void run() {
+				SelectionKey key = channel.keyFor(selector);
+				if (key != null && key.isValid()) {
+					if (interested) {
+						key.interestOps(key.interestOps() | ops);
+					} else {
+						key.interestOps(key.interestOps() & ~ops);
+					}
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Runs a task on the selector thread.
+	 */
+	public void execute(Runnable task) {
+		tasks.addElement(task);
+		selector.wakeup();
+	}
+	
+	/**
+	 * Returns whether the current thread is this selector's thread.
+	 */
+	public boolean isSelectorThread() {
+		return Thread.currentThread() == selectorThread;
+	}
+	
+	public void run() {
+		final String methodName = "run";
+		while (true) {
+			try {
+				selector.select();
+				while (!tasks.isEmpty()) {
+					Runnable task = (Runnable) tasks.remove(0);
+					task.run();
+				}
+				Iterator keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = (SelectionKey) keys.next();
+					keys.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					Handler handler = (Handler) key.attachment();
+					int ready = key.readyOps();
+					if ((ready & SelectionKey.OP_WRITE) != 0) {
+						handler.writable(key);
+					}
+					if ((ready & SelectionKey.OP_READ) != 0 && key.isValid()) {
+						handler.readable(key);
+					}
+				}
+			} catch (Throwable ex) {
+				// A failure in one connection must not stop the others
+				//@TRACE 270=selector loop exception
+				log.fine(CLASS_NAME, methodName, "270", null, ex);
+			}
+		}
+	}
+}
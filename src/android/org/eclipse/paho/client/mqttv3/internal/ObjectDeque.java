@@ -0,0 +1,151 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution. 
+ *
+ * The Eclipse Public License is available at 
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at 
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * Contributors:
+ *    Dave Locke - initial API and implementation and/or initial documentation
+ */
+package org.eclipse.paho.client.mqttv3.internal;
+
+/**
+ * A first-in first-out queue held in a circular array, which can also be
+ * added to at its head. Unlike a Vector, taking from the head does not
+ * shift the rest of the queue along.
+ * 
+ * This class is not thread safe, callers must hold a lock of their own.
+ */
+public class ObjectDeque {
+	private static final int INITIAL_CAPACITY = 16;
+
+	private Object[] elements;
+	private int head = 0;
+	private int size = 0;
+
+	public ObjectDeque() {
+		this(INITIAL_CAPACITY);
+	}
+
+	public ObjectDeque(int initialCapacity) {
+		int capacity = INITIAL_CAPACITY;
+		while (capacity < initialCapacity) {
+			capacity <<= 1;
+		}
+		elements = new Object[capacity];
+	}
+
+	public void addLast(Object element) {
+		if (size == elements.length) {
+			grow();
+		}
+		elements[(head + size) & (elements.length - 1)] = element;
+		size++;
+	}
+
+	public void addFirst(Object element) {
+		if (size == elements.length) {
+			grow();
+		}
+		head = (head - 1) & (elements.length - 1);
+		elements[head] = element;
+		size++;
+	}
+
+	/**
+	 * Returns the element at the head of the queue without removing it.
+	 * @return the element, or null if the queue is empty
+	 */
+	public Object peekFirst() {
+		return (size == 0) ? null : elements[head];
+	}
+
+	/**
+	 * Removes the element at the head of the queue.
+	 * @return the element, or null if the queue is empty
+	 */
+	public Object removeFirst() {
+		if (size == 0) {
+			return null;
+		}
+		Object element = elements[head];
+		elements[head] = null;
+		head = (head + 1) & (elements.length - 1);
+		size--;
+		return element;
+	}
+
+	/**
+	 * Returns the element the given distance from the head of the queue.
+	 */
+	public Object get(int index) {
+		if (index < 0 || index >= size) {
+			throw new ArrayIndexOutOfBoundsException(index);
+		}
+		return elements[(head + index) & (elements.length - 1)];
+	}
+
+	/**
+	 * Removes the first occurrence of the element, compared by identity.
+	 * @return true if the element was found
+	 */
+	public boolean remove(Object element) {
+		int mask = elements.length - 1;
+		for (int i = 0; i < size; i++) {
+			if (elements[(head + i) & mask] == element) {
+				// Close the gap by moving the later elements forward
+				for (int j = i; j < size - 1; j++) {
+					elements[(head + j) & mask] = elements[(head + j + 1) & mask];
+				}
+				elements[(head + size - 1) & mask] = null;
+				size--;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public void clear() {
+		int mask = elements.length - 1;
+		for (int i = 0; i < size; i++) {
+			elements[(head + i) & mask] = null;
+		}
+		head = 0;
+		size = 0;
+	}
+
+	private void grow() {
+		Object[] grown = new Object[elements.length * 2];
+		int mask = elements.length - 1;
+		for (int i = 0; i < size; i++) {
+			grown[i] = elements[(head + i) & mask];
+		}
+		elements = grown;
+		head = 0;
+	}
+
+	public String toString() {
+		StringBuffer sb = new StringBuffer("[");
+		for (int i = 0; i < size; i++) {
+			if (i > 0) {
+				sb.append(", ");
+			}
+			sb.append(get(i));
+		}
+		return sb.append(']').toString();
+	}
+}
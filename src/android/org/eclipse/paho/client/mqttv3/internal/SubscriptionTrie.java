@@ -0,0 +1,226 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution. 
+ *
+ * The Eclipse Public License is available at 
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at 
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * Contributors:
+ *    Dave Locke - initial API and implementation and/or initial documentation
+ */
+package org.eclipse.paho.client.mqttv3.internal;
+
+import java.util.Hashtable;
+import java.util.Vector;
+
+/**
+ * Maps topic filters to values, such as message listeners, and finds the
+ * values whose filters match a topic name. Filters are held in a tree with
+ * one level per topic level, so a match visits only the branches the topic
+ * could follow and costs in proportion to the depth of the topic rather
+ * than to the number of filters.
+ * 
+ * Matching gives the same results as {@link org.eclipse.paho.client.mqttv3.MqttTopic#isMatched(String, String)}:
+ * a <code>+</code> level matches one level that is not empty, and a
+ * <code>#</code> level matches the rest of the topic provided the first of
+ * the remaining levels is not empty. Filters are expected to have been
+ * validated already.
+ * 
+ * This class is thread safe.
+ */
+public class SubscriptionTrie {
+	private static final String SINGLE_LEVEL_WILDCARD = "+";
+	private static final String MULTI_LEVEL_WILDCARD = "#";
+
+	private static class Node {
+		// Children for literal levels, created when first needed
+		Hashtable children = null;
+		Node singleLevel = null;
+		// The value of the filter ending in # at this point, if any
+		Object multiLevelValue = null;
+		// The value of the filter ending at this node, if any
+		Object value = null;
+
+		boolean isEmpty() {
+			return value == null && multiLevelValue == null && singleLevel == null
+					&& (children == null || children.isEmpty());
+		}
+	}
+
+	private Node root = new Node();
+	private int size = 0;
+
+	/**
+	 * Splits a topic into its levels, keeping empty levels.
+	 */
+	private static String[] levels(String topic) {
+		int count = 1;
+		for (int i = 0; i < topic.length(); i++) {
+			if (topic.charAt(i) == '/') {
+				count++;
+			}
+		}
+		String[] result = new String[count];
+		int start = 0;
+		int n = 0;
+		for (int i = 0; i < topic.length(); i++) {
+			if (topic.charAt(i) == '/') {
+				result[n++] = topic.substring(start, i);
+				start = i + 1;
+			}
+		}
+		result[n] = topic.substring(start);
+		return result;
+	}
+
+	/**
+	 * Maps the filter to the value, which must not be null.
+	 * @return the value previously mapped to the filter, or null
+	 */
+	public synchronized Object put(String topicFilter, Object value) {
+		if (value == null) {
+			throw new NullPointerException();
+		}
+		String[] levels = levels(topicFilter);
+		Node node = root;
+		int last = levels.length - 1;
+		for (int i = 0; i < last; i++) {
+			node = child(node, levels[i], true);
+		}
+		Object old;
+		if (MULTI_LEVEL_WILDCARD.equals(levels[last])) {
+			old = node.multiLevelValue;
+			node.multiLevelValue = value;
+		} else {
+			node = child(node, levels[last], true);
+			old = node.value;
+			node.value = value;
+		}
+		if (old == null) {
+			size++;
+		}
+		return old;
+	}
+
+	private static Node child(Node node, String level, boolean create) {
+		if (SINGLE_LEVEL_WILDCARD.equals(level)) {
+			if (node.singleLevel == null && create) {
+				node.singleLevel = new Node();
+			}
+			return node.singleLevel;
+		}
+		Node child = (node.children == null) ? null : (Node) node.children.get(level);
+		if (child == null && create) {
+			if (node.children == null) {
+				node.children = new Hashtable();
+			}
+			child = new Node();
+			node.children.put(level, child);
+		}
+		return child;
+	}
+
+	/**
+	 * Removes the filter.
+	 * @return the value that was mapped to the filter, or null
+	 */
+	public synchronized Object remove(String topicFilter) {
+		String[] levels = levels(topicFilter);
+		Node[] path = new Node[levels.length + 1];
+		Node node = root;
+		path[0] = node;
+		int last = levels.length - 1;
+		for (int i = 0; i < last && node != null; i++) {
+			node = child(node, levels[i], false);
+			path[i + 1] = node;
+		}
+		if (node == null) {
+			return null;
+		}
+		Object old;
+		int depth;
+		if (MULTI_LEVEL_WILDCARD.equals(levels[last])) {
+			old = node.multiLevelValue;
+			node.multiLevelValue = null;
+			depth = last;
+		} else {
+			node = child(node, levels[last], false);
+			if (node == null) {
+				return null;
+			}
+			path[last + 1] = node;
+			old = node.value;
+			node.value = null;
+			depth = last + 1;
+		}
+		if (old != null) {
+			size--;
+			// Prune the branch back to the last node still in use
+			for (int i = depth; i > 0 && path[i].isEmpty(); i--) {
+				Node parent = path[i - 1];
+				if (parent.singleLevel == path[i]) {
+					parent.singleLevel = null;
+				} else {
+					parent.children.remove(levels[i - 1]);
+				}
+			}
+		}
+		return old;
+	}
+
+	public synchronized void clear() {
+		root = new Node();
+		size = 0;
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	public synchronized boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Finds the values of every filter that matches the topic name.
+	 * @param topicName the topic name, which must not contain wildcards
+	 * @param matches the vector the values are added to
+	 */
+	public void match(String topicName, Vector matches) {
+		String[] levels = levels(topicName);
+		synchronized (this) {
+			if (size > 0) {
+				match(root, levels, 0, matches);
+			}
+		}
+	}
+
+	private static void match(Node node, String[] levels, int index, Vector matches) {
+		if (index == levels.length) {
+			if (node.value != null) {
+				matches.addElement(node.value);
+			}
+			return;
+		}
+		String level = levels[index];
+		if (node.children != null) {
+			Node child = (Node) node.children.get(level);
+			if (child != null) {
+				match(child, levels, index + 1, matches);
+			}
+		}
+		if (level.length() > 0) {
+			if (node.singleLevel != null) {
+				match(node.singleLevel, levels, index + 1, matches);
+			}
+			if (node.multiLevelValue != null) {
+				matches.addElement(node.multiLevelValue);
+			}
+		}
+	}
+}
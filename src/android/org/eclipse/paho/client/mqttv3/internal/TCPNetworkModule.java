@@ -41,6 +41,7 @@ public class TCPNetworkModule implements NetworkModule {
 	private String host;
 	private int port;
 	private int conTimeout;
+	private boolean tcpNoDelay = false;
 	
 	/**
 	 * Constructs a new TCPNetworkModule using the specified host and
@@ -69,9 +70,8 @@ public class TCPNetworkModule implements NetworkModule {
 			socket = factory.createSocket();
 			socket.connect(sockaddr, conTimeout*1000);
 		
-			// SetTcpNoDelay was originally set ot true disabling Nagle's algorithm. 
-			// This should not be required.
-//			socket.setTcpNoDelay(true);	// TCP_NODELAY on, which means we do not use Nagle's algorithm
+			// TCP_NODELAY on means we do not use Nagle's algorithm
+			socket.setTcpNoDelay(tcpNoDelay);
 		}
 		catch (ConnectException ex) {
 			//@TRACE 250=Failed to create TCP socket
@@ -105,6 +105,14 @@ public class TCPNetworkModule implements NetworkModule {
 		this.conTimeout = timeout;
 	}
 
+	/**
+	 * Set whether to disable Nagle's algorithm on the socket
+	 * @param tcpNoDelay
+	 */
+	public void setTcpNoDelay(boolean tcpNoDelay) {
+		this.tcpNoDelay = tcpNoDelay;
+	}
+
 	public String getServerURI() {
 		return "tcp://" + host + ":" + port;
 	}
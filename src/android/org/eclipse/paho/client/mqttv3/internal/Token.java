@@ -18,8 +18,10 @@ package org.eclipse.paho.client.mqttv3.internal;
 
 import org.eclipse.paho.client.mqttv3.IMqttActionListener;
 import org.eclipse.paho.client.mqttv3.IMqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.MqttTokenFuture;
 import org.eclipse.paho.client.mqttv3.internal.wire.MqttAck;
 import org.eclipse.paho.client.mqttv3.internal.wire.MqttConnack;
 import org.eclipse.paho.client.mqttv3.internal.wire.MqttSuback;
@@ -34,6 +36,7 @@ public class Token {
 	private volatile boolean completed = false;
 	private boolean pendingComplete = false;
 	private boolean sent = false;
+	private long sentTime = 0;
 	
 	private Object responseLock = new Object();
 	private Object sentLock = new Object();
@@ -44,6 +47,7 @@ public class Token {
 	private String[] topics = null;
 	
 	private String key;
+	private int keyId = 0;
 	
 	private IMqttAsyncClient client = null;
 	private IMqttActionListener callback = null;
@@ -52,6 +56,9 @@ public class Token {
 	
 	private int messageID = 0;
 	private boolean notified = false;
+	private MqttTokenFuture future = null;
+	// Set once the action has finished and its future may be completed
+	private boolean done = false;
 	
 	public Token(String logContext) {
 		log.setResourceName(logContext);
@@ -214,6 +221,27 @@ public class Token {
 			}
 		}
 	
+	/**
+	 * Completes the future view of the action if the action has finished.
+	 * This is done where the action's listener is called, so that work
+	 * chained on the future runs on the same thread as the listener.
+	 */
+	protected void notifyFuture() {
+		MqttTokenFuture toComplete;
+		MqttException outcome;
+		synchronized (responseLock) {
+			if (!completed && exception == null) {
+				return;
+			}
+			done = true;
+			outcome = completed ? null : exception;
+			toComplete = future;
+		}
+		if (toComplete != null) {
+			toComplete.complete(null, outcome);
+		}
+	}
+	
 //	/**
 //	 * Notifies this token that an exception has occurred.  This is only
 //	 * used for things like IOException, and not for MQTT NACKs.
@@ -271,10 +299,46 @@ public class Token {
 		}
 		synchronized (sentLock) {
 			sent = true;
+			sentTime = System.nanoTime();
 			sentLock.notifyAll();
 		}
 	}
 	
+	/**
+	 * Returns when the associated message was last sent, clearing it so
+	 * that each send is only timed once.
+	 * @return the {@link System#nanoTime()} it was sent at, or 0
+	 */
+	protected long takeSentTime() {
+		synchronized (sentLock) {
+			long time = sentTime;
+			sentTime = 0;
+			return time;
+		}
+	}
+	
+	/**
+	 * Returns the future view of the action, creating it on first use.
+	 * @param owner the token the future reports to its listeners
+	 */
+	public MqttTokenFuture getFuture(IMqttToken owner) {
+		MqttTokenFuture result;
+		boolean completeNow = false;
+		MqttException outcome = null;
+		synchronized (responseLock) {
+			if (future == null) {
+				future = new MqttTokenFuture(owner);
+				completeNow = done;
+				outcome = completed ? null : exception;
+			}
+			result = future;
+		}
+		if (completeNow) {
+			result.complete(null, outcome);
+		}
+		return result;
+	}
+	
 	public IMqttAsyncClient getClient() {
 		return client;
 	}
@@ -292,6 +356,26 @@ public class Token {
 		//@TRACE 410=> key={0}
 		log.fine(CLASS_NAME, methodName, "410",new Object[]{getKey()});
 		
+		MqttTokenFuture oldFuture;
+		MqttException outcome;
+		synchronized (responseLock) {
+			// A caller may still hold the future of the previous use, which
+			// must not be left waiting for ever
+			oldFuture = future;
+			if (completed) {
+				outcome = null;
+			} else if (exception != null) {
+				outcome = exception;
+			} else {
+				outcome = new MqttException(MqttException.REASON_CODE_CLIENT_EXCEPTION);
+			}
+			done = false;
+			future = null;
+		}
+		if (oldFuture != null) {
+			oldFuture.complete(null, outcome);
+		}
+		
 		client = null;
 		completed = false;
 		response = null;
@@ -331,9 +415,22 @@ public class Token {
 
 	public void setKey(String key) {
 		this.key = key;
+		this.keyId = 0;
+	}
+
+	/**
+	 * Sets the key to a message ID. The string form is only built if
+	 * something asks for it.
+	 */
+	public void setKey(int messageId) {
+		this.key = null;
+		this.keyId = messageId;
 	}
 
 	public String getKey() {
+		if (key == null && keyId != 0) {
+			key = Integer.toString(keyId);
+		}
 		return key;
 	}
 
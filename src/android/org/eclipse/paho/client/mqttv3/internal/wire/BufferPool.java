@@ -0,0 +1,88 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution. 
+ *
+ * The Eclipse Public License is available at 
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at 
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * Contributors:
+ *    Dave Locke - initial API and implementation and/or initial documentation
+ */
+package org.eclipse.paho.client.mqttv3.internal.wire;
+
+/**
+ * A pool of byte arrays used to hold the payloads of inbound messages.
+ * Arrays are grouped into power of two size classes from 256 bytes to
+ * 64 KB, and a bounded number of free arrays is kept for each class.
+ * Payloads larger than the biggest class are not pooled.
+ */
+public class BufferPool {
+	private static final int MIN_SIZE_SHIFT = 8;		// 256 bytes
+	private static final int MAX_SIZE_SHIFT = 16;		// 64 KB
+	private static final int MAX_FREE_PER_CLASS = 16;
+	
+	private byte[][][] free;
+	private int[] freeCount;
+	
+	public BufferPool() {
+		int classes = MAX_SIZE_SHIFT - MIN_SIZE_SHIFT + 1;
+		free = new byte[classes][MAX_FREE_PER_CLASS][];
+		freeCount = new int[classes];
+	}
+	
+	/**
+	 * Returns whether a payload of the given length can be held in a pooled array.
+	 */
+	public boolean isPoolable(int length) {
+		return length > 0 && length <= (1 << MAX_SIZE_SHIFT);
+	}
+	
+	/**
+	 * Returns an array of at least <code>length</code> bytes, reusing a free
+	 * one if there is one. The contents of the array are undefined.
+	 */
+	public byte[] acquire(int length) {
+		int sizeClass = sizeClass(length);
+		synchronized (this) {
+			int count = freeCount[sizeClass];
+			if (count > 0) {
+				byte[] buffer = free[sizeClass][--count];
+				free[sizeClass][count] = null;
+				freeCount[sizeClass] = count;
+				return buffer;
+			}
+		}
+		return new byte[1 << (sizeClass + MIN_SIZE_SHIFT)];
+	}
+	
+	/**
+	 * Gives an array obtained from {@link #acquire(int)} back to the pool.
+	 * The caller must not use the array afterwards.
+	 */
+	public void release(byte[] buffer) {
+		int sizeClass = sizeClass(buffer.length);
+		if (buffer.length != (1 << (sizeClass + MIN_SIZE_SHIFT))) {
+			return;
+		}
+		synchronized (this) {
+			int count = freeCount[sizeClass];
+			if (count < MAX_FREE_PER_CLASS) {
+				free[sizeClass][count] = buffer;
+				freeCount[sizeClass] = count + 1;
+			}
+		}
+	}
+	
+	private static int sizeClass(int length) {
+		if (length <= (1 << MIN_SIZE_SHIFT)) {
+			return 0;
+		}
+		int shift = 32 - Integer.numberOfLeadingZeros(length - 1);
+		return Math.min(shift, MAX_SIZE_SHIFT) - MIN_SIZE_SHIFT;
+	}
+}
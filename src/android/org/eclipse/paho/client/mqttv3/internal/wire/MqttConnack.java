@@ -16,8 +16,7 @@
  */
 package org.eclipse.paho.client.mqttv3.internal.wire;
 
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 
 import org.eclipse.paho.client.mqttv3.MqttException;
@@ -32,12 +31,16 @@ public class MqttConnack extends MqttAck {
 	private boolean sessionPresent;
 	
 	public MqttConnack(byte info, byte[] variableHeader) throws IOException {
+		this(info, variableHeader, 0, variableHeader.length);
+	}
+	
+	public MqttConnack(byte info, byte[] data, int offset, int length) throws IOException {
 		super(MqttWireMessage.MESSAGE_TYPE_CONNACK);
-		ByteArrayInputStream bais = new ByteArrayInputStream(variableHeader);
-		DataInputStream dis = new DataInputStream(bais);
-		sessionPresent = (dis.readUnsignedByte() & 0x01) == 0x01;
-		returnCode = dis.readUnsignedByte();
-		dis.close();
+		if (length < 2) {
+			throw new EOFException();
+		}
+		sessionPresent = (data[offset] & 0x01) == 0x01;
+		returnCode = data[offset + 1] & 0xFF;
 	}
 	
 	public int getReturnCode() {
@@ -40,6 +40,14 @@ public class MqttDisconnect extends MqttWireMessage {
 	protected byte[] getVariableHeader() throws MqttException {
 		return new byte[0];
 	}
+	
+	protected int getVariableHeaderLength() {
+		return 0;
+	}
+	
+	protected int writeVariableHeader(byte[] buffer, int offset) {
+		return offset;
+	}
 
 	/**
 	 * Returns whether or not this message needs to include a message ID.
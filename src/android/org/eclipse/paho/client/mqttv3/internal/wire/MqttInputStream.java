@@ -15,11 +15,12 @@
  */
 package org.eclipse.paho.client.mqttv3.internal.wire;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
 import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.internal.ClientState;
@@ -31,74 +32,358 @@ import org.eclipse.paho.client.mqttv3.logging.LoggerFactory;
 /**
  * An <code>MqttInputStream</code> lets applications read instances of
  * <code>MqttWireMessage</code>. 
+ * 
+ * Data is read from the network in large chunks and decoded incrementally,
+ * so a single read can yield several small packets and a packet can be
+ * split across any number of reads.
  */
 public class MqttInputStream extends InputStream {
 	private static final String CLASS_NAME = MqttInputStream.class.getName();
 	private static final Logger log = LoggerFactory.getLogger(LoggerFactory.MQTT_CLIENT_MSG_CAT, CLASS_NAME);
 
+	private static final int BUFFER_SIZE = 8192;
+	/** The start of the name of each file a streamed payload is spilled to. */
+	public static final String SPILL_FILE_PREFIX = "mqtt-payload-";
+	/** The end of the name of each file a streamed payload is spilled to. */
+	public static final String SPILL_FILE_SUFFIX = ".tmp";
+
+	// Decoder states
+	private static final int STATE_FIXED_HEADER = 0;		// waiting for the first byte of a packet
+	private static final int STATE_REMAINING_LENGTH = 1;	// decoding the remaining length
+	private static final int STATE_BODY = 2;				// waiting for the whole body of a non-PUBLISH packet
+	private static final int STATE_PUBLISH_HEADER = 3;		// waiting for the variable header of a PUBLISH
+	private static final int STATE_PUBLISH_PAYLOAD = 4;		// filling the payload of a PUBLISH
+
 	private ClientState clientState = null;
-	private DataInputStream in;
+	private InputStream in;
+	
+	// Bytes read from the network but not yet decoded are buffer[start..end)
+	private byte[] buffer = new byte[BUFFER_SIZE];
+	private int start = 0;
+	private int end = 0;
+	
+	private int state = STATE_FIXED_HEADER;
+	private byte first;
+	private int remLen;
+	private MqttPublish publish;
+	private byte[] payload;
+	private int payloadLength;
+	private int payloadPos;
+	private BufferPool bufferPool = null;
+	private TopicNameCache topicCache = null;
+	private int maxPacketSize = Integer.MAX_VALUE;
+	private int streamingThreshold = 0;
+	private File streamingDirectory = null;
+	// The file the payload being read is spilled to, if it is streamed
+	private File spillFile = null;
+	private OutputStream spill = null;
+	private volatile boolean receiving = false;
 
 	public MqttInputStream(ClientState clientState, InputStream in) {
 		this.clientState = clientState;
-		this.in = new DataInputStream(in);
+		this.in = in;
 	}
 	
 	public int read() throws IOException {
+		if (start < end) {
+			return buffer[start++] & 0xFF;
+		}
 		return in.read();
 	}
 	
 	public int available() throws IOException {
-		return in.available();
+		return (end - start) + in.available();
 	}
 	
 	public void close() throws IOException {
+		discardSpill();
 		in.close();
 	}
 	
+	/**
+	 * Sets the pool that the payloads of QoS 0 and 1 messages are read into,
+	 * or null to give every payload an array of its own.
+	 */
+	public void setBufferPool(BufferPool bufferPool) {
+		this.bufferPool = bufferPool;
+	}
+	
+	/**
+	 * Sets the cache that the topic names of PUBLISH packets are resolved
+	 * from, or null to decode every topic name.
+	 */
+	public void setTopicCache(TopicNameCache topicCache) {
+		this.topicCache = topicCache;
+	}
+	
+	/**
+	 * Sets the size of the largest packet that will be accepted. The size
+	 * of a packet is checked before any memory is allocated for it.
+	 */
+	public void setMaxPacketSize(int maxPacketSize) {
+		this.maxPacketSize = maxPacketSize;
+	}
+	
+	/**
+	 * Sets the payload size above which the payloads of QoS 0 and 1 messages
+	 * are spilled to a temporary file instead of being read into memory.
+	 * @param threshold the threshold in bytes, or 0 to disable streaming
+	 * @param directory the directory to create the files in, or null for the
+	 * system temporary directory
+	 */
+	public void setStreaming(int threshold, File directory) {
+		this.streamingThreshold = threshold;
+		this.streamingDirectory = directory;
+	}
+	
+	/**
+	 * Returns whether part of a packet has been read but not yet decoded.
+	 */
+	public boolean isReceiving() {
+		return receiving;
+	}
+	
 	/**
 	 * Reads an <code>MqttWireMessage</code> from the stream.
+	 * Packets already held in the buffer are returned without touching the
+	 * network. The payload of a PUBLISH is decoded into the array that the
+	 * delivered <code>MqttMessage</code> will hold.
 	 */
 	public MqttWireMessage readMqttWireMessage() throws IOException, MqttException {
 		final String methodName ="readMqttWireMessage";
-		ByteArrayOutputStream bais = new ByteArrayOutputStream();
-		byte first = in.readByte();
-		clientState.notifyReceivedBytes(1);
-		
-		byte type = (byte) ((first >>> 4) & 0x0F);
-		if ((type < MqttWireMessage.MESSAGE_TYPE_CONNECT) ||
-			(type > MqttWireMessage.MESSAGE_TYPE_DISCONNECT)) {
-			// Invalid MQTT message type...
-			throw ExceptionHelper.createMqttException(MqttException.REASON_CODE_INVALID_MESSAGE);
+		MqttWireMessage message;
+		try {
+			message = decode();
+			while (message == null) {
+				fill();
+				message = decode();
+			}
+		} catch (IOException ex) {
+			// Don't leave a partly written payload file behind
+			discardSpill();
+			throw ex;
 		}
-		long remLen = MqttWireMessage.readMBI(in).getValue();
-		bais.write(first);
-		// bit silly, we decode it then encode it
-		bais.write(MqttWireMessage.encodeMBI(remLen));
-		byte[] packet = new byte[(int)(bais.size()+remLen)];
-		readFully(packet,bais.size(),packet.length - bais.size());
-		
-		byte[] header = bais.toByteArray();
-		System.arraycopy(header,0,packet,0, header.length);
-		MqttWireMessage message = MqttWireMessage.createWireMessage(packet);
 		// @TRACE 501= received {0} 
 		log.fine(CLASS_NAME, methodName, "501",new Object[] {message});
 		return message;
 	}
-
-
-    private void readFully(byte b[], int off, int len) throws IOException {
-    	if (len < 0)
-    		throw new IndexOutOfBoundsException();
-    	int n = 0;
-    	while (n < len) {
-    		int count = in.read(b, off + n, len - n);
-    		clientState.notifyReceivedBytes(count);
-
-    		if (count < 0)
-    			throw new EOFException();
-    		n += count;
-    	}
-    }
+	
+	/**
+	 * Reads an <code>MqttWireMessage</code> from a stream whose reads do not
+	 * block, such as one over a non-blocking channel. Whatever data is
+	 * available is decoded; a partial packet is kept until the rest arrives.
+	 * @return the next complete message, or null if more data is needed
+	 */
+	public MqttWireMessage readMqttWireMessageNoWait() throws IOException, MqttException {
+		final String methodName ="readMqttWireMessageNoWait";
+		MqttWireMessage message;
+		try {
+			message = decode();
+			while (message == null) {
+				if (fill() == 0) {
+					return null;
+				}
+				message = decode();
+			}
+		} catch (IOException ex) {
+			// Don't leave a partly written payload file behind
+			discardSpill();
+			throw ex;
+		}
+		// @TRACE 501= received {0} 
+		log.fine(CLASS_NAME, methodName, "501",new Object[] {message});
+		return message;
+	}
+	
+	/**
+	 * Advances the decoder over the buffered bytes.
+	 * @return the next complete message, or null if more data is needed
+	 */
+	private MqttWireMessage decode() throws IOException, MqttException {
+		while (true) {
+			switch (state) {
+			case STATE_FIXED_HEADER:
+				if (start == end) {
+					return null;
+				}
+				first = buffer[start++];
+				byte type = (byte) ((first >>> 4) & 0x0F);
+				if ((type < MqttWireMessage.MESSAGE_TYPE_CONNECT) ||
+					(type > MqttWireMessage.MESSAGE_TYPE_DISCONNECT)) {
+					// Invalid MQTT message type...
+					throw ExceptionHelper.createMqttException(MqttException.REASON_CODE_INVALID_MESSAGE);
+				}
+				receiving = true;
+				state = STATE_REMAINING_LENGTH;
+				break;
+				
+			case STATE_REMAINING_LENGTH:
+				// Rejects a remaining length that runs on beyond four bytes
+				long decoded = MultiByteIntegerCodec.decode(buffer, start, end);
+				if (decoded == MultiByteIntegerCodec.INCOMPLETE) {
+					ensureSpace(MultiByteIntegerCodec.MAX_ENCODED_LENGTH);
+					return null;
+				}
+				remLen = MultiByteIntegerCodec.getValue(decoded);
+				start += MultiByteIntegerCodec.getEncodedLength(decoded);
+				if (1 + MultiByteIntegerCodec.getEncodedLength(decoded) + remLen > maxPacketSize) {
+					//@TRACE 502=packet of {0} bytes exceeds maximum of {1}
+					log.fine(CLASS_NAME, "decode", "502", new Object[] {
+							new Integer(remLen), new Integer(maxPacketSize)});
+					throw ExceptionHelper.createMqttException(MqttException.REASON_CODE_PACKET_TOO_LARGE);
+				}
+				if (((first >>> 4) & 0x0F) == MqttWireMessage.MESSAGE_TYPE_PUBLISH) {
+					state = STATE_PUBLISH_HEADER;
+				} else {
+					state = STATE_BODY;
+				}
+				break;
+				
+			case STATE_BODY:
+				if (end - start < remLen) {
+					ensureSpace(remLen);
+					return null;
+				}
+				MqttWireMessage message = MqttWireMessage.createWireMessage(first, buffer, start, remLen);
+				start += remLen;
+				return complete(message);
+				
+			case STATE_PUBLISH_HEADER:
+				if (remLen < 2) {
+					throw ExceptionHelper.createMqttException(MqttException.REASON_CODE_INVALID_MESSAGE);
+				}
+				if (end - start < 2) {
+					ensureSpace(2);
+					return null;
+				}
+				int varLength = 2 + (((buffer[start] & 0xFF) << 8) | (buffer[start + 1] & 0xFF));
+				if (((first >> 1) & 0x03) > 0) {
+					varLength += 2;
+				}
+				if (varLength > remLen) {
+					throw ExceptionHelper.createMqttException(MqttException.REASON_CODE_INVALID_MESSAGE);
+				}
+				if (end - start < varLength) {
+					ensureSpace(varLength);
+					return null;
+				}
+				// The message is not handed out until its payload has been filled.
+				// QoS 2 messages outlive the callback in persistence so are neither
+				// streamed nor pooled.
+				payloadLength = remLen - varLength;
+				int qos = (first >> 1) & 0x03;
+				if (streamingThreshold > 0 && qos < 2 && payloadLength > streamingThreshold) {
+					spillFile = File.createTempFile(SPILL_FILE_PREFIX, SPILL_FILE_SUFFIX, streamingDirectory);
+					spill = new FileOutputStream(spillFile);
+					payload = null;
+					publish = new MqttPublish((byte) (first & 0x0F), buffer, start, varLength, topicCache, spillFile, payloadLength);
+				} else if (bufferPool != null && qos < 2 && bufferPool.isPoolable(payloadLength)) {
+					payload = bufferPool.acquire(payloadLength);
+					publish = new MqttPublish((byte) (first & 0x0F), buffer, start, varLength, topicCache, bufferPool, payload, payloadLength);
+				} else {
+					payload = new byte[payloadLength];
+					publish = new MqttPublish((byte) (first & 0x0F), buffer, start, varLength, topicCache, payload);
+				}
+				start += varLength;
+				payloadPos = 0;
+				state = STATE_PUBLISH_PAYLOAD;
+				break;
+				
+			case STATE_PUBLISH_PAYLOAD:
+				int count = Math.min(end - start, payloadLength - payloadPos);
+				if (spill != null) {
+					spill.write(buffer, start, count);
+				} else {
+					System.arraycopy(buffer, start, payload, payloadPos, count);
+				}
+				start += count;
+				payloadPos += count;
+				if (payloadPos < payloadLength) {
+					return null;
+				}
+				if (spill != null) {
+					spill.close();
+					spill = null;
+					spillFile = null;
+				}
+				MqttPublish result = publish;
+				publish = null;
+				payload = null;
+				return complete(result);
+			}
+		}
+	}
+	
+	private MqttWireMessage complete(MqttWireMessage message) {
+		state = STATE_FIXED_HEADER;
+		receiving = false;
+		return message;
+	}
+	
+	/**
+	 * Closes and deletes the file of a payload that was being spilled when
+	 * reading stopped.
+	 */
+	private void discardSpill() {
+		if (spill != null) {
+			try {
+				spill.close();
+			} catch (IOException ex) {
+			}
+			spill = null;
+		}
+		if (spillFile != null) {
+			spillFile.delete();
+			spillFile = null;
+		}
+	}
+	
+	/**
+	 * Makes sure that <code>length</code> bytes from the current position
+	 * fit in the buffer, compacting or growing it as needed.
+	 */
+	private void ensureSpace(int length) {
+		if (length > buffer.length) {
+			byte[] grown = new byte[Math.max(length, buffer.length * 2)];
+			System.arraycopy(buffer, start, grown, 0, end - start);
+			buffer = grown;
+			end -= start;
+			start = 0;
+		} else if (start + length > buffer.length) {
+			System.arraycopy(buffer, start, buffer, 0, end - start);
+			end -= start;
+			start = 0;
+		}
+	}
+	
+	/**
+	 * Reads the next chunk of data from the network. Callers must have
+	 * consumed or made room for the buffered bytes first.
+	 * @return the number of bytes read, which is only 0 if the underlying
+	 * stream does not block
+	 */
+	private int fill() throws IOException {
+		int count;
+		if (state == STATE_PUBLISH_PAYLOAD && payload != null && (payloadLength - payloadPos) >= buffer.length / 2) {
+			// Large payloads are read straight into the message
+			count = in.read(payload, payloadPos, payloadLength - payloadPos);
+			if (count < 0) {
+				throw new EOFException();
+			}
+			clientState.notifyReceivedBytes(count);
+			payloadPos += count;
+			return count;
+		}
+		if (start == end) {
+			start = 0;
+			end = 0;
+		}
+		count = in.read(buffer, end, buffer.length - end);
+		if (count < 0) {
+			throw new EOFException();
+		}
+		clientState.notifyReceivedBytes(count);
+		end += count;
+		return count;
+	}
 }
-
@@ -33,12 +33,31 @@ public class MqttOutputStream extends OutputStream {
 	private static final String CLASS_NAME = MqttOutputStream.class.getName();
 	private static final Logger log = LoggerFactory.getLogger(LoggerFactory.MQTT_CLIENT_MSG_CAT, CLASS_NAME);
 
+	private static final int CHUNK_SIZE = 8192;
+
 	private ClientState clientState = null;
 	private BufferedOutputStream out;
+	// The size of out's buffer, which payloads are written in chunks of
+	private int bufferSize;
+	// Reused for the encoded header of every message sent on this stream
+	private byte[] headerBuffer = new byte[64];
+	// Template for the four byte acknowledgements: the fixed header byte and
+	// message ID are patched in, and the remaining length is always two
+	private final byte[] ackBuffer = new byte[] {0, 2, 0, 0};
 	
 	public MqttOutputStream(ClientState clientState, OutputStream out) {
+		this(clientState, out, CHUNK_SIZE);
+	}
+	
+	/**
+	 * Constructs a stream that buffers up to <code>bufferSize</code> bytes
+	 * before writing to the network, so that several packets can be sent
+	 * with one flush.
+	 */
+	public MqttOutputStream(ClientState clientState, OutputStream out, int bufferSize) {
 		this.clientState = clientState;
-		this.out = new BufferedOutputStream(out);
+		this.bufferSize = Math.max(bufferSize, CHUNK_SIZE);
+		this.out = new BufferedOutputStream(out, this.bufferSize);
 	}
 	
 	public void close() throws IOException {
@@ -65,27 +84,54 @@ public class MqttOutputStream extends OutputStream {
 
 	/**
 	 * Writes an <code>MqttWireMessage</code> to the stream.
+	 * The header is encoded into a buffer owned by this stream and the payload
+	 * is written straight from the message, so no intermediate arrays are
+	 * created for a message that can size and write its own variable header.
+	 * @return the number of bytes written
 	 */
-	public void write(MqttWireMessage message) throws IOException, MqttException {
+	public int write(MqttWireMessage message) throws IOException, MqttException {
 		final String methodName = "write";
-		byte[] bytes = message.getHeader();
+		if (isTemplateAck(message)) {
+			ackBuffer[0] = (byte) (((message.getType() & 0x0f) << 4) ^ (message.getMessageInfo() & 0x0f));
+			ackBuffer[2] = (byte) ((message.getMessageId() >>> 8) & 0xFF);
+			ackBuffer[3] = (byte) (message.getMessageId() & 0xFF);
+			out.write(ackBuffer, 0, ackBuffer.length);
+			clientState.notifySentBytes(ackBuffer.length);
+			// @TRACE 500= sent {0}
+			log.fine(CLASS_NAME, methodName, "500", new Object[]{message});
+			return ackBuffer.length;
+		}
 		byte[] pl = message.getPayload();
-//		out.write(message.getHeader());
-//		out.write(message.getPayload());
-		out.write(bytes,0,bytes.length);
-		clientState.notifySentBytes(bytes.length);
+		int maxHeaderLength = message.getMaxHeaderLength();
+		if (maxHeaderLength > headerBuffer.length) {
+			headerBuffer = new byte[Math.max(maxHeaderLength, headerBuffer.length * 2)];
+		}
+		int headerLength = message.encodeHeader(headerBuffer, 0, pl.length);
+		out.write(headerBuffer, 0, headerLength);
+		clientState.notifySentBytes(headerLength);
 		
-        int offset = 0;
-        int chunckSize = 1024;
-        while (offset < pl.length) {
-        	int length = Math.min(chunckSize, pl.length - offset);
-        	out.write(pl, offset, length);
-        	offset += chunckSize;
-        	clientState.notifySentBytes(length);
-        }		
+		// Large payloads are written in chunks the size of the buffer, which
+		// BufferedOutputStream passes through without copying, so that
+		// outbound activity is still recorded as the payload goes out.
+		int offset = 0;
+		while (offset < pl.length) {
+			int length = Math.min(bufferSize, pl.length - offset);
+			out.write(pl, offset, length);
+			offset += length;
+			clientState.notifySentBytes(length);
+		}
 		
 		// @TRACE 500= sent {0}
-    	log.fine(CLASS_NAME, methodName, "500", new Object[]{message});
+		log.fine(CLASS_NAME, methodName, "500", new Object[]{message});
+		return headerLength + pl.length;
+	}
+	
+	/**
+	 * Returns whether the message is a PUBACK, PUBREC, PUBREL or PUBCOMP,
+	 * which consist of nothing but a fixed header and a message ID.
+	 */
+	private static boolean isTemplateAck(MqttWireMessage message) {
+		byte type = message.getType();
+		return type >= MqttWireMessage.MESSAGE_TYPE_PUBACK && type <= MqttWireMessage.MESSAGE_TYPE_PUBCOMP;
 	}
 }
-
@@ -45,6 +45,14 @@ public class MqttPingReq extends MqttWireMessage {
 		return new byte[0];
 	}
 	
+	protected int getVariableHeaderLength() {
+		return 0;
+	}
+	
+	protected int writeVariableHeader(byte[] buffer, int offset) {
+		return offset;
+	}
+	
 	protected byte getMessageInfo() {
 		return 0;
 	}
@@ -28,6 +28,10 @@ public class MqttPingResp extends MqttAck {
 		super(MqttWireMessage.MESSAGE_TYPE_PINGRESP);
 	}
 	
+	public MqttPingResp(byte info, byte[] data, int offset, int length) {
+		super(MqttWireMessage.MESSAGE_TYPE_PINGRESP);
+	}
+	
 	protected byte[] getVariableHeader() throws MqttException {
 		// Not needed, as the client never encodes a PINGRESP
 		return new byte[0];
@@ -16,8 +16,6 @@
  */
 package org.eclipse.paho.client.mqttv3.internal.wire;
 
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
 import java.io.IOException;
 
 import org.eclipse.paho.client.mqttv3.MqttException;
@@ -29,11 +27,12 @@ import org.eclipse.paho.client.mqttv3.MqttException;
  */
 public class MqttPubAck extends MqttAck {
 	public MqttPubAck(byte info, byte[] data) throws IOException {
+		this(info, data, 0, data.length);
+	}
+	
+	public MqttPubAck(byte info, byte[] data, int offset, int length) throws IOException {
 		super(MqttWireMessage.MESSAGE_TYPE_PUBACK);
-		ByteArrayInputStream bais = new ByteArrayInputStream(data);
-		DataInputStream dis = new DataInputStream(bais);
-		msgId = dis.readUnsignedShort();
-		dis.close();
+		msgId = readUnsignedShort(data, offset, offset + length);
 	}
 	
 	public MqttPubAck(MqttPublish publish) {
@@ -49,4 +48,12 @@ public class MqttPubAck extends MqttAck {
 	protected byte[] getVariableHeader() throws MqttException {
 		return encodeMessageId();
 	}
+	
+	protected int getVariableHeaderLength() {
+		return 2;
+	}
+	
+	protected int writeVariableHeader(byte[] buffer, int offset) {
+		return writeMessageId(buffer, offset);
+	}
 }
@@ -15,8 +15,6 @@
  */
 package org.eclipse.paho.client.mqttv3.internal.wire;
 
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
 import java.io.IOException;
 
 import org.eclipse.paho.client.mqttv3.MqttException;
@@ -28,11 +26,12 @@ import org.eclipse.paho.client.mqttv3.MqttException;
  */
 public class MqttPubRec extends MqttAck {
 	public MqttPubRec(byte info, byte[] data) throws IOException {
+		this(info, data, 0, data.length);
+	}
+	
+	public MqttPubRec(byte info, byte[] data, int offset, int length) throws IOException {
 		super(MqttWireMessage.MESSAGE_TYPE_PUBREC);
-		ByteArrayInputStream bais = new ByteArrayInputStream(data);
-		DataInputStream dis = new DataInputStream(bais);
-		msgId = dis.readUnsignedShort();
-		dis.close();
+		msgId = readUnsignedShort(data, offset, offset + length);
 	}
 	
 	public MqttPubRec(MqttPublish publish) {
@@ -43,4 +42,12 @@ public class MqttPubRec extends MqttAck {
 	protected byte[] getVariableHeader() throws MqttException {
 		return encodeMessageId();
 	}
+	
+	protected int getVariableHeaderLength() {
+		return 2;
+	}
+	
+	protected int writeVariableHeader(byte[] buffer, int offset) {
+		return writeMessageId(buffer, offset);
+	}
 }
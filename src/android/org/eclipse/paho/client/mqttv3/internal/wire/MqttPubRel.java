@@ -15,8 +15,6 @@
  */
 package org.eclipse.paho.client.mqttv3.internal.wire;
 
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
 import java.io.IOException;
 
 import org.eclipse.paho.client.mqttv3.MqttException;
@@ -42,17 +40,34 @@ public class MqttPubRel extends MqttPersistableWireMessage {
 	 * @throws IOException
 	 */
 	public MqttPubRel(byte info, byte[] data) throws IOException {
+		this(info, data, 0, data.length);
+	}
+	
+	/**
+	 * Creates a pubrel from the variable header held in part of an array
+	 * @param info
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @throws IOException
+	 */
+	public MqttPubRel(byte info, byte[] data, int offset, int length) throws IOException {
 		super(MqttWireMessage.MESSAGE_TYPE_PUBREL);
-		ByteArrayInputStream bais = new ByteArrayInputStream(data);
-		DataInputStream dis = new DataInputStream(bais);
-		msgId = dis.readUnsignedShort();
-		dis.close();
+		msgId = readUnsignedShort(data, offset, offset + length);
 	}
 
 	protected byte[] getVariableHeader() throws MqttException {
 		return encodeMessageId();
 	}
 	
+	protected int getVariableHeaderLength() {
+		return 2;
+	}
+	
+	protected int writeVariableHeader(byte[] buffer, int offset) {
+		return writeMessageId(buffer, offset);
+	}
+	
 	protected byte getMessageInfo() {
 		return (byte)( 2 | (this.duplicate?8:0));
 	}
@@ -15,10 +15,10 @@
  */
 package org.eclipse.paho.client.mqttv3.internal.wire;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
 
 import org.eclipse.paho.client.mqttv3.MqttException;
@@ -46,7 +46,82 @@ public class MqttPublish extends MqttPersistableWireMessage {
 	 * @param data the variable header and payload bytes
 	 */
 	public MqttPublish(byte info, byte[] data) throws MqttException, IOException {
+		this(info, data, 0, data.length);
+	}
+	
+	/**
+	 * Constructs a new MqttPublish object from part of an array. The payload
+	 * is left in the array and only copied out if the application asks for
+	 * it, so the caller must not reuse the array.
+	 * @param info the message info byte
+	 * @param data the array holding the variable header and payload bytes
+	 * @param offset the position of the variable header in the array
+	 * @param length the number of variable header and payload bytes
+	 */
+	public MqttPublish(byte info, byte[] data, int offset, int length) throws MqttException, IOException {
+		super(MqttWireMessage.MESSAGE_TYPE_PUBLISH);
+		int payloadOffset = decodeVariableHeader(info, data, offset, offset + length, null);
+		((MqttReceivedMessage) message).setDeferredPayload(data, payloadOffset, offset + length - payloadOffset);
+	}
+	
+	/**
+	 * Constructs a new MqttPublish object whose payload has been read into
+	 * an array of its own. The payload array is used by the message as is.
+	 * @param info the message info byte
+	 * @param varHeader the array holding the variable header
+	 * @param offset the position of the variable header in the array
+	 * @param length the length of the variable header
+	 * @param topicCache the cache to resolve the topic name from, or null
+	 * @param payload the payload bytes
+	 */
+	public MqttPublish(byte info, byte[] varHeader, int offset, int length, TopicNameCache topicCache, byte[] payload) throws MqttException, IOException {
 		super(MqttWireMessage.MESSAGE_TYPE_PUBLISH);
+		decodeVariableHeader(info, varHeader, offset, offset + length, topicCache);
+		message.setPayload(payload);
+	}
+	
+	/**
+	 * Constructs a new MqttPublish object whose payload will be read into
+	 * an array borrowed from a pool. The payload occupies the first
+	 * <code>payloadLength</code> bytes of the array.
+	 * @param info the message info byte
+	 * @param varHeader the array holding the variable header
+	 * @param offset the position of the variable header in the array
+	 * @param length the length of the variable header
+	 * @param topicCache the cache to resolve the topic name from, or null
+	 * @param pool the pool the payload array was acquired from
+	 * @param payload the pooled payload array
+	 * @param payloadLength the number of payload bytes
+	 */
+	public MqttPublish(byte info, byte[] varHeader, int offset, int length, TopicNameCache topicCache, BufferPool pool, byte[] payload, int payloadLength) throws MqttException, IOException {
+		super(MqttWireMessage.MESSAGE_TYPE_PUBLISH);
+		decodeVariableHeader(info, varHeader, offset, offset + length, topicCache);
+		((MqttReceivedMessage) message).setPooledPayload(pool, payload, payloadLength);
+	}
+	
+	/**
+	 * Constructs a new MqttPublish object whose payload will be spilled to
+	 * a temporary file rather than held in memory.
+	 * @param info the message info byte
+	 * @param varHeader the array holding the variable header
+	 * @param offset the position of the variable header in the array
+	 * @param length the length of the variable header
+	 * @param topicCache the cache to resolve the topic name from, or null
+	 * @param payloadFile the file the payload is written to
+	 * @param payloadLength the number of payload bytes
+	 */
+	public MqttPublish(byte info, byte[] varHeader, int offset, int length, TopicNameCache topicCache, File payloadFile, int payloadLength) throws MqttException, IOException {
+		super(MqttWireMessage.MESSAGE_TYPE_PUBLISH);
+		decodeVariableHeader(info, varHeader, offset, offset + length, topicCache);
+		((MqttReceivedMessage) message).setPayloadFile(payloadFile, payloadLength);
+	}
+	
+	/**
+	 * Decodes the flags, topic name and message ID in place, taking the
+	 * topic name from the cache if one is given.
+	 * @return the position in the array after the variable header
+	 */
+	private int decodeVariableHeader(byte info, byte[] data, int offset, int end, TopicNameCache topicCache) throws IOException {
 		message = new MqttReceivedMessage();
 		message.setQos((info >> 1) & 0x03);
 		if ((info & 0x01) == 0x01) {
@@ -56,27 +131,43 @@ public class MqttPublish extends MqttPersistableWireMessage {
 			((MqttReceivedMessage) message).setDuplicate(true);
 		}
 		
-		ByteArrayInputStream bais = new ByteArrayInputStream(data);
-		CountingInputStream counter = new CountingInputStream(bais);
-		DataInputStream dis = new DataInputStream(counter);
-		topicName = decodeUTF8(dis);
+		int topicLength = readUnsignedShort(data, offset, end);
+		int pos = offset + 2;
+		if (pos + topicLength > end) {
+			throw new EOFException();
+		}
+		if (topicCache != null) {
+			topicName = topicCache.getTopicName(data, pos, topicLength);
+		} else {
+			topicName = new String(data, pos, topicLength, STRING_ENCODING);
+		}
+		pos += topicLength;
 		if (message.getQos() > 0) {
-			msgId = dis.readUnsignedShort();
+			msgId = readUnsignedShort(data, pos, end);
+			pos += 2;
 		}
-		byte[] payload = new byte[data.length-counter.getCounter()];
-		dis.readFully(payload);
-		dis.close();
-		message.setPayload(payload);
+		return pos;
 	}
 
 	public String toString() {
 
 		// Convert the first few bytes of the payload into a hex string
 		StringBuffer hex = new StringBuffer();
-		byte[] payload = message.getPayload();
-		int limit = Math.min(payload.length, 20);
+		byte[] payload;
+		int payloadOffset = 0;
+		int payloadLength;
+		if (message instanceof MqttReceivedMessage) {
+			// Don't copy a pooled or deferred payload just to trace it
+			payload = ((MqttReceivedMessage) message).peekPayload();
+			payloadOffset = ((MqttReceivedMessage) message).getPayloadOffset();
+			payloadLength = ((MqttReceivedMessage) message).getPayloadLength();
+		} else {
+			payload = message.getPayload();
+			payloadLength = payload.length;
+		}
+		int limit = Math.max(0, Math.min(Math.min(payloadLength, payload.length - payloadOffset), 20));
 		for (int i = 0; i < limit; i++) {
-			byte b = payload[i];
+			byte b = payload[payloadOffset + i];
 			String ch = Integer.toHexString(b);
 			if (ch.length() == 1) {
 				ch = "0" + ch;
@@ -89,7 +180,7 @@ public class MqttPublish extends MqttPersistableWireMessage {
 		// useful
 		String string = null;
 		try {
-			string = new String(payload, 0, limit, "UTF-8");
+			string = new String(payload, payloadOffset, limit, "UTF-8");
 		} catch (Exception e) {
 			string = "?";
 		}
@@ -105,7 +196,7 @@ public class MqttPublish extends MqttPersistableWireMessage {
 		sb.append(" topic:\"").append(topicName).append("\"");
 		sb.append(" payload:[hex:").append(hex);
 		sb.append(" utf8:\"").append(string).append("\"");
-		sb.append(" length:").append(payload.length).append("]");
+		sb.append(" length:").append(payloadLength).append("]");
 
 		return sb.toString();
 	}
@@ -142,6 +233,10 @@ public class MqttPublish extends MqttPersistableWireMessage {
 	}
 
 	public int getPayloadLength() {
+		if (encodedPayload == null && message instanceof MqttReceivedMessage) {
+			// Don't copy a received payload just to size it
+			return ((MqttReceivedMessage) message).getPayloadLength();
+		}
 		int length = 0;
 		try {
 			length = getPayload().length;
@@ -172,6 +267,22 @@ public class MqttPublish extends MqttPersistableWireMessage {
 		}
 	}
 	
+	protected int getVariableHeaderLength() {
+		int length = 2 + getUTF8Length(topicName);
+		if (message.getQos() > 0) {
+			length += 2;
+		}
+		return length;
+	}
+	
+	protected int writeVariableHeader(byte[] buffer, int offset) {
+		int pos = encodeUTF8(buffer, offset, topicName);
+		if (message.getQos() > 0) {
+			pos = writeMessageId(buffer, pos);
+		}
+		return pos;
+	}
+	
 	public boolean isMessageIdRequired() {
 		// all publishes require a message ID as it's used as the key to the token store
 		return true;
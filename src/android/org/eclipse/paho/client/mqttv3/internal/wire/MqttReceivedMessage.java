@@ -15,12 +15,46 @@
  */
 package org.eclipse.paho.client.mqttv3.internal.wire;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 
+/**
+ * A message received from the server.
+ * 
+ * When receive buffer pooling is enabled through
+ * {@link org.eclipse.paho.client.mqttv3.MqttConnectOptions#setReceiveBufferPooling(boolean)}
+ * the payload is held in an array borrowed from a pool, which is given back
+ * once the message has been delivered and acknowledged. The array can be
+ * read without copying through {@link #getPayloadBuffer()} while the message
+ * is delivered. An application that keeps the message beyond the callback
+ * must call {@link #retain()}, and {@link #release()} when it has finished
+ * with it. {@link #getPayload()} always returns an array the application
+ * owns.
+ * 
+ * A payload above the streaming threshold set through
+ * {@link org.eclipse.paho.client.mqttv3.MqttConnectOptions#setStreamingThreshold(int)}
+ * is held in a temporary file instead, which is read through
+ * {@link #getPayloadStream()} and deleted on the last {@link #release()}.
+ */
 public class MqttReceivedMessage extends MqttMessage {
 	
 	private int messageId;
 	
+	private BufferPool pool = null;
+	// A payload that has not been copied into an array of its own yet,
+	// either borrowed from the pool or part of the packet it arrived in
+	private byte[] deferredPayload = null;
+	private int payloadOffset = 0;
+	private File payloadFile = null;
+	private int payloadLength = 0;
+	private int refCount = 0;
+	private boolean materialised = false;
+	
 	public void setMessageId(int msgId) {
 		this.messageId = msgId;
 	}
@@ -34,4 +68,230 @@ public class MqttReceivedMessage extends MqttMessage {
 	public void setDuplicate(boolean value) {
 		super.setDuplicate(value);
 	}
+	
+	/**
+	 * Sets the payload to the first <code>length</code> bytes of an array
+	 * borrowed from the pool. The message holds one reference to it.
+	 */
+	synchronized void setPooledPayload(BufferPool pool, byte[] buffer, int length) {
+		this.pool = pool;
+		this.deferredPayload = buffer;
+		this.payloadOffset = 0;
+		this.payloadLength = length;
+		this.refCount = 1;
+		this.materialised = false;
+	}
+	
+	/**
+	 * Sets the payload to <code>length</code> bytes of the packet it arrived
+	 * in, which are only copied out if the payload is asked for.
+	 */
+	synchronized void setDeferredPayload(byte[] packet, int offset, int length) {
+		this.deferredPayload = packet;
+		this.payloadOffset = offset;
+		this.payloadLength = length;
+		this.materialised = false;
+	}
+	
+	/**
+	 * Sets the payload to the contents of a temporary file, which the
+	 * message deletes when its last reference is released.
+	 */
+	synchronized void setPayloadFile(File file, int length) {
+		this.payloadFile = file;
+		this.payloadLength = length;
+		this.refCount = 1;
+		this.materialised = false;
+	}
+	
+	/**
+	 * Returns whether the payload is held in a temporary file.
+	 */
+	public synchronized boolean isPayloadInFile() {
+		return payloadFile != null && !materialised;
+	}
+	
+	/**
+	 * Returns the payload as a byte array. For a pooled, streamed or
+	 * deferred payload the bytes are copied into an array of their own the
+	 * first time this is called.
+	 * @throws IllegalStateException if the payload has been released
+	 * before it was copied, or its file cannot be read
+	 */
+	public synchronized byte[] getPayload() {
+		if (isDeferred()) {
+			if (deferredPayload == null) {
+				throw new IllegalStateException();
+			}
+			byte[] payload = new byte[payloadLength];
+			System.arraycopy(deferredPayload, payloadOffset, payload, 0, payloadLength);
+			super.setPayload(payload);
+			materialised = true;
+			if (pool == null) {
+				// Let go of the packet
+				deferredPayload = null;
+			}
+		} else if (payloadFile != null && !materialised) {
+			super.setPayload(readPayloadFile());
+			materialised = true;
+		}
+		return super.getPayload();
+	}
+	
+	public synchronized void setPayload(byte[] payload) {
+		super.setPayload(payload);
+		discardPayloadSource();
+	}
+	
+	/**
+	 * Clears the payload, giving back a pooled array or deleting a
+	 * temporary file straight away, whatever references are held.
+	 */
+	public synchronized void clearPayload() {
+		super.clearPayload();
+		discardPayloadSource();
+	}
+	
+	/**
+	 * Returns the number of payload bytes without copying them.
+	 */
+	public synchronized int getPayloadLength() {
+		if ((isDeferred() || payloadFile != null) && !materialised) {
+			return payloadLength;
+		}
+		return super.getPayload().length;
+	}
+	
+	/**
+	 * Returns the array holding the payload, which starts at
+	 * {@link #getPayloadOffset()} and runs for {@link #getPayloadLength()}
+	 * bytes, without copying it. A pooled array is only valid until the
+	 * message is released. A streamed payload is read into memory.
+	 */
+	public synchronized byte[] getPayloadBuffer() {
+		if (isDeferred()) {
+			if (deferredPayload == null) {
+				throw new IllegalStateException();
+			}
+			return deferredPayload;
+		}
+		return getPayload();
+	}
+	
+	/**
+	 * Returns the position of the payload in {@link #getPayloadBuffer()}.
+	 */
+	public synchronized int getPayloadOffset() {
+		return isDeferred() ? payloadOffset : 0;
+	}
+	
+	/**
+	 * Returns a stream over the payload, which reads a streamed payload
+	 * from its file rather than from memory.
+	 */
+	public synchronized InputStream getPayloadStream() throws IOException {
+		if (payloadFile != null && !materialised) {
+			return new FileInputStream(payloadFile);
+		}
+		return new ByteArrayInputStream(getPayloadBuffer(), getPayloadOffset(), getPayloadLength());
+	}
+	
+	/**
+	 * Returns the array holding the payload for tracing, without copying or
+	 * failing. The payload starts at {@link #getPayloadOffset()}.
+	 */
+	synchronized byte[] peekPayload() {
+		if (isDeferred()) {
+			return (deferredPayload == null) ? new byte[0] : deferredPayload;
+		}
+		if (payloadFile != null && !materialised) {
+			return new byte[0];
+		}
+		return super.getPayload();
+	}
+	
+	/**
+	 * Takes an additional reference to the pooled or streamed payload so
+	 * that it stays valid after the delivery callback returns. Has no effect
+	 * on any other message.
+	 */
+	public synchronized void retain() {
+		if ((pool != null && deferredPayload != null) || payloadFile != null) {
+			refCount++;
+		}
+	}
+	
+	/**
+	 * Gives up a reference to the pooled or streamed payload. When the last
+	 * reference is released the array goes back to the pool, or the file is
+	 * deleted. Has no effect on any other message.
+	 */
+	public synchronized void release() {
+		if (((pool != null && deferredPayload != null) || payloadFile != null) && --refCount == 0) {
+			if (pool != null) {
+				pool.release(deferredPayload);
+				deferredPayload = null;
+			} else {
+				payloadFile.delete();
+				payloadFile = null;
+			}
+		}
+	}
+	
+	/**
+	 * Lets go of the pooled, streamed or deferred payload once the payload
+	 * has been replaced, so that it can't be copied out later.
+	 */
+	private void discardPayloadSource() {
+		if (pool != null && deferredPayload != null) {
+			pool.release(deferredPayload);
+		}
+		if (payloadFile != null) {
+			payloadFile.delete();
+		}
+		pool = null;
+		deferredPayload = null;
+		payloadFile = null;
+		refCount = 0;
+		materialised = true;
+	}
+	
+	private boolean isDeferred() {
+		return !materialised && (pool != null || deferredPayload != null);
+	}
+	
+	private byte[] readPayloadFile() {
+		if (payloadFile == null) {
+			throw new IllegalStateException();
+		}
+		byte[] payload = new byte[payloadLength];
+		InputStream in = null;
+		try {
+			in = new FileInputStream(payloadFile);
+			int pos = 0;
+			while (pos < payloadLength) {
+				int count = in.read(payload, pos, payloadLength - pos);
+				if (count < 0) {
+					throw new IllegalStateException();
+				}
+				pos += count;
+			}
+		} catch (IOException ex) {
+			throw new IllegalStateException(ex.getMessage());
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException ex) {
+				}
+			}
+		}
+		return payload;
+	}
+	
+	public String toString() {
+		byte[] payload = peekPayload();
+		int offset = getPayloadOffset();
+		return new String(payload, offset, Math.max(0, Math.min(payload.length - offset, getPayloadLength())));
+	}
 }
@@ -16,8 +16,6 @@
  */
 package org.eclipse.paho.client.mqttv3.internal.wire;
 
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
 import java.io.IOException;
 
 import org.eclipse.paho.client.mqttv3.MqttException;
@@ -30,19 +28,16 @@ public class MqttSuback extends MqttAck {
 	private int[] grantedQos;	
 	
 	public MqttSuback(byte info, byte[] data) throws IOException {
+		this(info, data, 0, data.length);
+	}
+	
+	public MqttSuback(byte info, byte[] data, int offset, int length) throws IOException {
 		super(MqttWireMessage.MESSAGE_TYPE_SUBACK);
-		ByteArrayInputStream bais = new ByteArrayInputStream(data);
-		DataInputStream dis = new DataInputStream(bais);
-		msgId = dis.readUnsignedShort();
-		int index = 0;
-		grantedQos = new int[data.length-2];
-		int qos = dis.read();
-		while (qos != -1) {
-			grantedQos[index] = qos;
-			index++;
-			qos = dis.read();
+		msgId = readUnsignedShort(data, offset, offset + length);
+		grantedQos = new int[length-2];
+		for (int i = 0; i < grantedQos.length; i++) {
+			grantedQos[i] = data[offset + 2 + i] & 0xFF;
 		}
-		dis.close();
 	}
 	
 	protected byte[] getVariableHeader() throws MqttException {
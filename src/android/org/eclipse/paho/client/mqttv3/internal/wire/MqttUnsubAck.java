@@ -15,8 +15,6 @@
  */
 package org.eclipse.paho.client.mqttv3.internal.wire;
 
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
 import java.io.IOException;
 
 import org.eclipse.paho.client.mqttv3.MqttException;
@@ -28,11 +26,12 @@ import org.eclipse.paho.client.mqttv3.MqttException;
 public class MqttUnsubAck extends MqttAck {
 	
 	public MqttUnsubAck(byte info, byte[] data) throws IOException {
+		this(info, data, 0, data.length);
+	}
+	
+	public MqttUnsubAck(byte info, byte[] data, int offset, int length) throws IOException {
 		super(MqttWireMessage.MESSAGE_TYPE_UNSUBACK);
-		ByteArrayInputStream bais = new ByteArrayInputStream(data);
-		DataInputStream dis = new DataInputStream(bais);
-		msgId = dis.readUnsignedShort();
-		dis.close();
+		msgId = readUnsignedShort(data, offset, offset + length);
 	}
 	
 	protected byte[] getVariableHeader() throws MqttException {
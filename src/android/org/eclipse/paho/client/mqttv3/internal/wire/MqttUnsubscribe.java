@@ -87,15 +87,15 @@ public class MqttUnsubscribe extends MqttWireMessage {
 	}
 	
 	protected byte[] getVariableHeader() throws MqttException {
-		try {
-			ByteArrayOutputStream baos = new ByteArrayOutputStream();
-			DataOutputStream dos = new DataOutputStream(baos);
-			dos.writeShort(msgId);
-			dos.flush();
-			return baos.toByteArray();
-		} catch (IOException ex) {
-			throw new MqttException(ex);
-		}
+		return encodeMessageId();
+	}
+	
+	protected int getVariableHeaderLength() {
+		return 2;
+	}
+	
+	protected int writeVariableHeader(byte[] buffer, int offset) {
+		return writeMessageId(buffer, offset);
 	}
 
 	public byte[] getPayload() throws MqttException {
@@ -15,12 +15,10 @@
  */
 package org.eclipse.paho.client.mqttv3.internal.wire;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 
 import org.eclipse.paho.client.mqttv3.MqttException;
@@ -109,29 +107,75 @@ public abstract class MqttWireMessage {
 	 * @return key a key associated with the message
 	 */
 	public String getKey() {
-		return new Integer(getMessageId()).toString();
+		return Integer.toString(getMessageId());
 	}
 	
 	public byte[] getHeader() throws MqttException {
-	    try {
-	        int first = ((getType() & 0x0f) << 4) ^ (getMessageInfo() & 0x0f);
-	        byte[] varHeader = getVariableHeader();
-	        int remLen = varHeader.length + getPayload().length;
-
-	        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-	        DataOutputStream dos = new DataOutputStream(baos);
-	        dos.writeByte(first);
-	        dos.write(encodeMBI(remLen));
-	        dos.write(varHeader);
-	        dos.flush();
-	        return baos.toByteArray();
-	    } catch(IOException ioe) {
-	        throw new MqttException(ioe);
-	    }
+		int payloadLength = getPayload().length;
+		byte[] buffer = new byte[getMaxHeaderLength()];
+		int length = encodeHeader(buffer, 0, payloadLength);
+		if (length == buffer.length) {
+			return buffer;
+		}
+		byte[] header = new byte[length];
+		System.arraycopy(buffer, 0, header, 0, length);
+		return header;
+	}
+	
+	/**
+	 * Returns an upper bound on the number of bytes {@link #encodeHeader(byte[], int, int)}
+	 * will write: the fixed header byte, up to four remaining length bytes and
+	 * the variable header.
+	 */
+	public int getMaxHeaderLength() throws MqttException {
+		return 1 + MultiByteIntegerCodec.MAX_ENCODED_LENGTH + getVariableHeaderLength();
+	}
+	
+	/**
+	 * Encodes the fixed header, the remaining length and the variable header
+	 * into the supplied buffer. The payload is not written, so that callers
+	 * can hand it to the network without copying it.
+	 * 
+	 * @param buffer the buffer to write into, which must have at least
+	 * {@link #getMaxHeaderLength()} bytes free from <code>offset</code>
+	 * @param offset the position in the buffer to start writing at
+	 * @param payloadLength the number of payload bytes that will follow the header
+	 * @return the number of bytes written
+	 * @throws MqttException if the packet is too large to be encoded
+	 */
+	public int encodeHeader(byte[] buffer, int offset, int payloadLength) throws MqttException {
+		long remLen = (long) getVariableHeaderLength() + payloadLength;
+		if (remLen > MultiByteIntegerCodec.MAX_VALUE) {
+			throw ExceptionHelper.createMqttException(MqttException.REASON_CODE_INVALID_MESSAGE);
+		}
+		int pos = offset;
+		buffer[pos++] = (byte) (((getType() & 0x0f) << 4) ^ (getMessageInfo() & 0x0f));
+		pos = MultiByteIntegerCodec.encode((int) remLen, buffer, pos);
+		pos = writeVariableHeader(buffer, pos);
+		return pos - offset;
 	}
 	
 	protected abstract byte[] getVariableHeader() throws MqttException;
 
+	/**
+	 * Returns the length of the variable header. Sub-classes that can size
+	 * their variable header without building it should override this
+	 * together with {@link #writeVariableHeader(byte[], int)}.
+	 */
+	protected int getVariableHeaderLength() throws MqttException {
+		return getVariableHeader().length;
+	}
+
+	/**
+	 * Writes the variable header into the supplied buffer.
+	 * @return the position in the buffer after the variable header
+	 */
+	protected int writeVariableHeader(byte[] buffer, int offset) throws MqttException {
+		byte[] varHeader = getVariableHeader();
+		System.arraycopy(varHeader, 0, buffer, offset, varHeader.length);
+		return offset + varHeader.length;
+	}
+
 
 	/**
 	 * Returns whether or not this message needs to include a message ID.
@@ -141,146 +185,177 @@ public abstract class MqttWireMessage {
 	}
 	
 	public static MqttWireMessage createWireMessage(MqttPersistable data) throws MqttException {
+		byte[] header = data.getHeaderBytes();
+		int headerOffset = data.getHeaderOffset();
+		int headerLength = data.getHeaderLength();
 		byte[] payload = data.getPayloadBytes();
-		// The persistable interface allows a message to be restored entirely in the header array
-		// Need to treat these two arrays as a single array of bytes and use the decoding
-		// logic to identify the true header/payload split
-		if (payload == null) {
-			payload = new byte[0];
+		int payloadLength = (payload == null) ? 0 : data.getPayloadLength();
+		try {
+			if (headerLength < 2) {
+				throw new EOFException();
+			}
+			// The persistable interface allows a message to be restored entirely in the
+			// header array, or split into header and payload as it was passed in.
+			long mbi = decodeRemainingLength(header, headerOffset, headerOffset + headerLength);
+			int remLen = MultiByteIntegerCodec.getValue(mbi);
+			int varOffset = headerOffset + 1 + MultiByteIntegerCodec.getEncodedLength(mbi);
+			int varLength = headerOffset + headerLength - varOffset;
+			if (payloadLength == 0) {
+				if (remLen > varLength) {
+					throw new EOFException();
+				}
+				return createWireMessage(header[headerOffset], header, varOffset, remLen);
+			}
+			if (varLength + payloadLength < remLen) {
+				throw new EOFException();
+			}
+			byte first = header[headerOffset];
+			if (((first >> 4) & 0x0f) == MESSAGE_TYPE_PUBLISH && varLength <= remLen) {
+				// Use the payload as it was persisted rather than joining it to the header
+				int publishPayloadLength = remLen - varLength;
+				int payloadOffset = data.getPayloadOffset();
+				byte[] publishPayload = payload;
+				if (payloadOffset != 0 || publishPayloadLength != payload.length) {
+					publishPayload = new byte[publishPayloadLength];
+					System.arraycopy(payload, payloadOffset, publishPayload, 0, publishPayloadLength);
+				}
+				return new MqttPublish((byte) (first & 0x0f), header, varOffset, varLength, null, publishPayload);
+			}
+			// Need to treat the two arrays as a single array of bytes
+			byte[] joined = new byte[remLen];
+			int fromHeader = Math.min(varLength, remLen);
+			System.arraycopy(header, varOffset, joined, 0, fromHeader);
+			System.arraycopy(payload, data.getPayloadOffset(), joined, fromHeader, remLen - fromHeader);
+			return createWireMessage(first, joined, 0, remLen);
+		} catch(IOException io) {
+			throw new MqttException(io);
 		}
-		MultiByteArrayInputStream mbais = new MultiByteArrayInputStream(
-				data.getHeaderBytes(),
-				data.getHeaderOffset(),
-				data.getHeaderLength(),
-				payload,
-				data.getPayloadOffset(),
-				data.getPayloadLength());
-		return createWireMessage(mbais);
 	}
 	
 	public static MqttWireMessage createWireMessage(byte[] bytes) throws MqttException {
-		ByteArrayInputStream bais = new ByteArrayInputStream(bytes);
-		return createWireMessage(bais);
+		try {
+			if (bytes.length < 2) {
+				throw new EOFException();
+			}
+			long mbi = decodeRemainingLength(bytes, 0, bytes.length);
+			int remLen = MultiByteIntegerCodec.getValue(mbi);
+			int offset = 1 + MultiByteIntegerCodec.getEncodedLength(mbi);
+			if (offset + remLen > bytes.length) {
+				throw new EOFException();
+			}
+			return createWireMessage(bytes[0], bytes, offset, remLen);
+		} catch(IOException io) {
+			throw new MqttException(io);
+		}
 	}
 
-	private static MqttWireMessage createWireMessage(InputStream inputStream) throws MqttException {
-		try {
-			CountingInputStream counter = new CountingInputStream(inputStream);
-			DataInputStream in = new DataInputStream(counter);
-			int first = in.readUnsignedByte();
-			byte type = (byte) (first >> 4);
-			byte info = (byte) (first &= 0x0f);
-			long remLen = readMBI(in).getValue();
-			long totalToRead = counter.getCounter() + remLen;
+	/**
+	 * Creates a message from its fixed header byte and the remaining bytes of
+	 * the packet, which are decoded in place. Apart from a PUBLISH, which
+	 * leaves its payload in <code>data</code> until it is asked for, the
+	 * messages a client receives keep no reference to the array, so callers
+	 * may reuse it for anything else.
+	 * 
+	 * @param first the first byte of the fixed header
+	 * @param data the array holding the variable header and payload
+	 * @param offset the position of the variable header in <code>data</code>
+	 * @param length the remaining length of the packet
+	 */
+	static MqttWireMessage createWireMessage(byte first, byte[] data, int offset, int length) throws MqttException, IOException {
+		byte type = (byte) ((first >> 4) & 0x0f);
+		byte info = (byte) (first & 0x0f);
 
-			MqttWireMessage result;
-			long remainder = totalToRead - counter.getCounter();
-			byte[] data = new byte[0];
-			// The remaining bytes must be the payload...
-			if (remainder > 0) {
-				data = new byte[(int) remainder];
-				in.readFully(data, 0, data.length);
-			}
-				
+		MqttWireMessage result;
+		if (type == MqttWireMessage.MESSAGE_TYPE_PUBLISH) {
+			result = new MqttPublish(info, data, offset, length);
+		}
+		else if (type == MqttWireMessage.MESSAGE_TYPE_PUBACK) {
+			result = new MqttPubAck(info, data, offset, length);
+		}
+		else if (type == MqttWireMessage.MESSAGE_TYPE_PUBCOMP) {
+			result = new MqttPubComp(info, data, offset, length);
+		}
+		else if (type == MqttWireMessage.MESSAGE_TYPE_CONNACK) {
+			result = new MqttConnack(info, data, offset, length);
+		}
+		else if (type == MqttWireMessage.MESSAGE_TYPE_PINGRESP) {
+			result = new MqttPingResp(info, data, offset, length);
+		}
+		else if (type == MqttWireMessage.MESSAGE_TYPE_SUBACK) {
+			result = new MqttSuback(info, data, offset, length);
+		}
+		else if (type == MqttWireMessage.MESSAGE_TYPE_UNSUBACK) {
+			result = new MqttUnsubAck(info, data, offset, length);
+		}
+		else if (type == MqttWireMessage.MESSAGE_TYPE_PUBREL) {
+			result = new MqttPubRel(info, data, offset, length);
+		}
+		else if (type == MqttWireMessage.MESSAGE_TYPE_PUBREC) {
+			result = new MqttPubRec(info, data, offset, length);
+		}
+		else if (type >= MqttWireMessage.MESSAGE_TYPE_CONNECT && type <= MqttWireMessage.MESSAGE_TYPE_DISCONNECT) {
+			// Packets that only flow from client to server are only decoded
+			// when restored from persistence, so they work on their own copy
+			byte[] copy = new byte[length];
+			System.arraycopy(data, offset, copy, 0, length);
 			if (type == MqttWireMessage.MESSAGE_TYPE_CONNECT) {
-				result = new MqttConnect(info, data);
-			}
-			else if (type == MqttWireMessage.MESSAGE_TYPE_PUBLISH) {
-				result = new MqttPublish(info, data);
-			}
-			else if (type == MqttWireMessage.MESSAGE_TYPE_PUBACK) {
-				result = new MqttPubAck(info, data);
-			}
-			else if (type == MqttWireMessage.MESSAGE_TYPE_PUBCOMP) {
-				result = new MqttPubComp(info, data);
-			}
-			else if (type == MqttWireMessage.MESSAGE_TYPE_CONNACK) {
-				result = new MqttConnack(info, data);
+				result = new MqttConnect(info, copy);
 			}
 			else if (type == MqttWireMessage.MESSAGE_TYPE_PINGREQ) {
-				result = new MqttPingReq(info, data);
-			}
-			else if (type == MqttWireMessage.MESSAGE_TYPE_PINGRESP) {
-				result = new MqttPingResp(info, data);
+				result = new MqttPingReq(info, copy);
 			}
 			else if (type == MqttWireMessage.MESSAGE_TYPE_SUBSCRIBE) {
-				result = new MqttSubscribe(info, data);
-			}
-			else if (type == MqttWireMessage.MESSAGE_TYPE_SUBACK) {
-				result = new MqttSuback(info, data);
+				result = new MqttSubscribe(info, copy);
 			}
 			else if (type == MqttWireMessage.MESSAGE_TYPE_UNSUBSCRIBE) {
-				result = new MqttUnsubscribe(info, data);
-			}
-			else if (type == MqttWireMessage.MESSAGE_TYPE_UNSUBACK) {
-				result = new MqttUnsubAck(info, data);
-			}
-			else if (type == MqttWireMessage.MESSAGE_TYPE_PUBREL) {
-				result = new MqttPubRel(info, data);
-			}
-			else if (type == MqttWireMessage.MESSAGE_TYPE_PUBREC) {
-				result = new MqttPubRec(info, data);
-			}
-			else if (type == MqttWireMessage.MESSAGE_TYPE_DISCONNECT) {
-				result = new MqttDisconnect(info, data);
+				result = new MqttUnsubscribe(info, copy);
 			}
 			else {
-				throw ExceptionHelper.createMqttException(MqttException.REASON_CODE_UNEXPECTED_ERROR);
+				result = new MqttDisconnect(info, copy);
 			}
-			return result;
-		} catch(IOException io) {
-			throw new MqttException(io);
 		}
+		else {
+			throw ExceptionHelper.createMqttException(MqttException.REASON_CODE_UNEXPECTED_ERROR);
+		}
+		return result;
 	}
 		
-	protected static byte[] encodeMBI( long number) {
-		int numBytes = 0;
-		long no = number;
-		ByteArrayOutputStream bos = new ByteArrayOutputStream();
-		// Encode the remaining length fields in the four bytes
-		do {
-			byte digit = (byte)(no % 128);
-			no = no / 128;
-			if (no > 0) {
-				digit |= 0x80;
-			}
-			bos.write(digit);
-			numBytes++;
-		} while ( (no > 0) && (numBytes<4) );
-		
-		return bos.toByteArray();
+	/**
+	 * Decodes the remaining length that follows the fixed header byte at
+	 * <code>offset</code>, reading no further than <code>end</code>.
+	 * @return the value and encoded length packed as by {@link MultiByteIntegerCodec}
+	 */
+	private static long decodeRemainingLength(byte[] data, int offset, int end) throws MqttException, EOFException {
+		long decoded = MultiByteIntegerCodec.decode(data, offset + 1, end);
+		if (decoded == MultiByteIntegerCodec.INCOMPLETE) {
+			throw new EOFException();
+		}
+		return decoded;
 	}
 	
 	/**
-	 * Decodes an MQTT Multi-Byte Integer from the given stream.
+	 * Reads a two byte unsigned integer, such as a message ID, from the given
+	 * array, reading no further than <code>end</code>.
 	 */
-	protected static MultiByteInteger readMBI(DataInputStream in) throws IOException {
-		byte digit;
-		long msgLength = 0;
-		int multiplier = 1;
-		int count = 0;
-		
-		do {
-			digit = in.readByte();
-			count++;
-			msgLength += ((digit & 0x7F) * multiplier);
-			multiplier *= 128;
-		} while ((digit & 0x80) != 0);
-		
-		return new MultiByteInteger(msgLength, count);
+	protected static int readUnsignedShort(byte[] data, int offset, int end) throws EOFException {
+		if (offset + 2 > end) {
+			throw new EOFException();
+		}
+		return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
 	}
 	
 	protected byte[] encodeMessageId() throws MqttException {
-		try {
-			ByteArrayOutputStream baos = new ByteArrayOutputStream();
-			DataOutputStream dos = new DataOutputStream(baos);
-			dos.writeShort(msgId);
-			dos.flush();
-			return baos.toByteArray();
-		}
-		catch (IOException ex) {
-			throw new MqttException(ex);
-		}
+		return new byte[] { (byte) ((msgId >>> 8) & 0xFF), (byte) (msgId & 0xFF) };
+	}
+	
+	/**
+	 * Writes the message ID as two bytes into the supplied buffer.
+	 * @return the position in the buffer after the message ID
+	 */
+	protected int writeMessageId(byte[] buffer, int offset) {
+		buffer[offset++] = (byte) ((msgId >>> 8) & 0xFF);
+		buffer[offset++] = (byte) (msgId & 0xFF);
+		return offset;
 	}
 	
 	public boolean isRetryable() {
@@ -321,6 +396,71 @@ public abstract class MqttWireMessage {
 		}
 	}
 	
+	/**
+	 * Returns the number of bytes {@link #encodeUTF8(byte[], int, String)} will
+	 * write for the given string, excluding the two byte length prefix.
+	 * Unpaired surrogates count as one byte, as they are replaced by '?' in the
+	 * same way as {@link String#getBytes(String)}.
+	 */
+	protected static int getUTF8Length(String s) {
+		int length = 0;
+		int count = s.length();
+		for (int i = 0; i < count; i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				length++;
+			} else if (c < 0x800) {
+				length += 2;
+			} else if (Character.isHighSurrogate(c) && i + 1 < count && Character.isLowSurrogate(s.charAt(i + 1))) {
+				length += 4;
+				i++;
+			} else if (Character.isHighSurrogate(c) || Character.isLowSurrogate(c)) {
+				length++;
+			} else {
+				length += 3;
+			}
+		}
+		return length;
+	}
+	
+	/**
+	 * Encodes a String into UTF-8 directly into the supplied buffer, preceded by
+	 * the two byte length. The buffer must have room for
+	 * <code>2 + getUTF8Length(stringToEncode)</code> bytes.
+	 * 
+	 * @return the position in the buffer after the encoded string
+	 */
+	protected static int encodeUTF8(byte[] buffer, int offset, String stringToEncode) {
+		int lengthPos = offset;
+		int pos = offset + 2;
+		int count = stringToEncode.length();
+		for (int i = 0; i < count; i++) {
+			char c = stringToEncode.charAt(i);
+			if (c < 0x80) {
+				buffer[pos++] = (byte) c;
+			} else if (c < 0x800) {
+				buffer[pos++] = (byte) (0xC0 | (c >> 6));
+				buffer[pos++] = (byte) (0x80 | (c & 0x3F));
+			} else if (Character.isHighSurrogate(c) && i + 1 < count && Character.isLowSurrogate(stringToEncode.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, stringToEncode.charAt(++i));
+				buffer[pos++] = (byte) (0xF0 | (cp >> 18));
+				buffer[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+				buffer[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+				buffer[pos++] = (byte) (0x80 | (cp & 0x3F));
+			} else if (Character.isHighSurrogate(c) || Character.isLowSurrogate(c)) {
+				buffer[pos++] = (byte) '?';
+			} else {
+				buffer[pos++] = (byte) (0xE0 | (c >> 12));
+				buffer[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				buffer[pos++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+		int encodedLength = pos - offset - 2;
+		buffer[lengthPos] = (byte) ((encodedLength >>> 8) & 0xFF);
+		buffer[lengthPos + 1] = (byte) (encodedLength & 0xFF);
+		return pos;
+	}
+	
 	/**
 	 * Decodes a UTF-8 string from the DataInputStream provided. @link(DataInoutStream#readUTF()) should be no longer used, because  @link(DataInoutStream#readUTF()) 
 	 * does not decode UTF-16 surrogate characters correctly.
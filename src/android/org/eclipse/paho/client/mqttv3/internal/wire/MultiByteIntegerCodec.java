@@ -0,0 +1,105 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution. 
+ *
+ * The Eclipse Public License is available at 
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at 
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * Contributors:
+ *    Dave Locke - initial API and implementation and/or initial documentation
+ */
+package org.eclipse.paho.client.mqttv3.internal.wire;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.internal.ExceptionHelper;
+
+/**
+ * Encodes and decodes the Multi-Byte Integers (MBI) defined by the MQTT V3
+ * specification, such as the remaining length of every packet, directly
+ * to and from byte arrays.
+ * 
+ * An MBI is at most four bytes long, so the largest value is 268,435,455.
+ * A decoded value and its encoded length are returned packed into a
+ * <code>long</code>, and unpacked with {@link #getValue(long)} and
+ * {@link #getEncodedLength(long)}, so that nothing is allocated.
+ */
+public class MultiByteIntegerCodec {
+	public static final int MAX_VALUE = 268435455;
+	public static final int MAX_ENCODED_LENGTH = 4;
+	
+	/**
+	 * Returned by {@link #decode(byte[], int, int)} when the data ends before
+	 * the last byte of the integer.
+	 */
+	public static final long INCOMPLETE = -1;
+	
+	private MultiByteIntegerCodec() {
+	}
+	
+	/**
+	 * Encodes a value into the supplied buffer, seven bits to a byte with the
+	 * top bit set on every byte but the last, so the buffer must have room for
+	 * up to {@link #MAX_ENCODED_LENGTH} bytes.
+	 * @return the position in the buffer after the encoded integer
+	 * @throws IllegalArgumentException if the value is negative or larger than {@link #MAX_VALUE}
+	 */
+	public static int encode(int value, byte[] buffer, int offset) {
+		validate(value);
+		do {
+			byte digit = (byte) (value & 0x7F);
+			value >>>= 7;
+			if (value > 0) {
+				digit |= 0x80;
+			}
+			buffer[offset++] = digit;
+		} while (value > 0);
+		return offset;
+	}
+	
+	/**
+	 * Decodes an integer from the supplied data, reading no further than
+	 * <code>end</code>.
+	 * @return the value and encoded length packed together, or
+	 * {@link #INCOMPLETE} if more data is needed
+	 * @throws MqttException if the integer runs on beyond four bytes
+	 */
+	public static long decode(byte[] data, int offset, int end) throws MqttException {
+		int value = 0;
+		for (int i = 0; i < MAX_ENCODED_LENGTH; i++) {
+			if (offset + i >= end) {
+				return INCOMPLETE;
+			}
+			byte digit = data[offset + i];
+			value |= (digit & 0x7F) << (7 * i);
+			if ((digit & 0x80) == 0) {
+				return ((long) (i + 1) << 32) | value;
+			}
+		}
+		throw ExceptionHelper.createMqttException(MqttException.REASON_CODE_INVALID_MESSAGE);
+	}
+	
+	/**
+	 * Returns the value from the result of {@link #decode(byte[], int, int)}.
+	 */
+	public static int getValue(long decoded) {
+		return (int) decoded;
+	}
+	
+	/**
+	 * Returns the number of bytes read from the result of {@link #decode(byte[], int, int)}.
+	 */
+	public static int getEncodedLength(long decoded) {
+		return (int) (decoded >>> 32);
+	}
+	
+	private static void validate(int value) {
+		if (value < 0 || value > MAX_VALUE) {
+			throw new IllegalArgumentException();
+		}
+	}
+}
@@ -0,0 +1,92 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution. 
+ *
+ * The Eclipse Public License is available at 
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at 
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * Contributors:
+ *    Dave Locke - initial API and implementation and/or initial documentation
+ */
+package org.eclipse.paho.client.mqttv3.internal.wire;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * A bounded cache of the topic names of inbound PUBLISH packets, keyed by
+ * their encoded bytes. Applications usually receive messages on a small set
+ * of topics, so a repeated topic resolves to the same <code>String</code>
+ * instance without being decoded again.
+ * 
+ * The cache is direct mapped: each encoded topic hashes to a single slot,
+ * and a miss replaces whatever the slot held. It is only used by the
+ * thread receiving from the network.
+ */
+public class TopicNameCache {
+	private static final int SIZE = 64;				// must be a power of two
+	private static final int MAX_TOPIC_LENGTH = 256;	// longer topics are not cached
+
+	private final byte[][] encoded = new byte[SIZE][];
+	private final int[] hashes = new int[SIZE];
+	private final String[] topics = new String[SIZE];
+	
+	private volatile long hits = 0;
+	private volatile long misses = 0;
+	
+	/**
+	 * Returns the topic name encoded in <code>length</code> bytes of
+	 * <code>data</code> from <code>offset</code>.
+	 */
+	public String getTopicName(byte[] data, int offset, int length) throws UnsupportedEncodingException {
+		if (length > MAX_TOPIC_LENGTH) {
+			misses++;
+			return new String(data, offset, length, MqttWireMessage.STRING_ENCODING);
+		}
+		int hash = length;
+		for (int i = offset; i < offset + length; i++) {
+			hash = 31 * hash + data[i];
+		}
+		int slot = (hash ^ (hash >>> 16)) & (SIZE - 1);
+		byte[] key = encoded[slot];
+		if (key != null && hashes[slot] == hash && key.length == length && matches(key, data, offset)) {
+			hits++;
+			return topics[slot];
+		}
+		misses++;
+		String topic = new String(data, offset, length, MqttWireMessage.STRING_ENCODING);
+		key = new byte[length];
+		System.arraycopy(data, offset, key, 0, length);
+		encoded[slot] = key;
+		hashes[slot] = hash;
+		topics[slot] = topic;
+		return topic;
+	}
+	
+	/**
+	 * Returns the number of topic names found in the cache.
+	 */
+	public long getHits() {
+		return hits;
+	}
+	
+	/**
+	 * Returns the number of topic names that had to be decoded.
+	 */
+	public long getMisses() {
+		return misses;
+	}
+	
+	private static boolean matches(byte[] key, byte[] data, int offset) {
+		for (int i = 0; i < key.length; i++) {
+			if (key[i] != data[offset + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -18,7 +18,7 @@ package org.eclipse.paho.client.mqttv3.persist;
 import java.util.Enumeration;
 import java.util.Hashtable;
 
-import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttBulkPersistence;
 import org.eclipse.paho.client.mqttv3.MqttPersistable;
 import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
 
@@ -31,7 +31,7 @@ import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
  * then a non-volatile form of persistence should be used. 
  * 
  */
-public class MemoryPersistence implements MqttClientPersistence {
+public class MemoryPersistence implements MqttBulkPersistence {
 
 	private Hashtable data;
 	
@@ -56,6 +56,13 @@ public class MemoryPersistence implements MqttClientPersistence {
 		return (MqttPersistable)data.get(key);
 	}
 
+	/* (non-Javadoc)
+	 * @see org.eclipse.paho.client.mqttv3.MqttBulkPersistence#getAll()
+	 */
+	public Hashtable getAll() throws MqttPersistenceException {
+		return (Hashtable) data.clone();
+	}
+
 	/* (non-Javadoc)
 	 * @see org.eclipse.paho.client.mqttv3.MqttClientPersistence#open(java.lang.String, java.lang.String)
 	 */
@@ -22,16 +22,18 @@ import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.util.Enumeration;
+import java.util.Hashtable;
 import java.util.Vector;
 
-import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttBulkPersistence;
 import org.eclipse.paho.client.mqttv3.MqttPersistable;
 import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
 import org.eclipse.paho.client.mqttv3.internal.FileLock;
 import org.eclipse.paho.client.mqttv3.internal.MqttPersistentData;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttInputStream;
 
 /**
- * An implementation of the {@link MqttClientPersistence} interface that provides
+ * An implementation of the {@link MqttBulkPersistence} interface that provides
  * file based persistence.
  * 
  * A directory is specified when the Persistence object is created. When the persistence
@@ -42,7 +44,7 @@ import org.eclipse.paho.client.mqttv3.internal.MqttPersistentData;
  * The sub-directory's name is created from a concatenation of the client ID and connection key
  * with any instance of '/', '\\', ':' or ' ' removed.
  */
-public class MqttDefaultFilePersistence implements MqttClientPersistence {
+public class MqttDefaultFilePersistence implements MqttBulkPersistence {
 	private static final String MESSAGE_FILE_EXTENSION = ".msg";
 	private static final String MESSAGE_BACKUP_FILE_EXTENSION = ".bup";
 	private static final String LOCK_FILENAME = ".lck"; 
@@ -97,7 +99,8 @@ public class MqttDefaultFilePersistence implements MqttClientPersistence {
 		}
 
 		synchronized (this) {
-			if (clientDir == null) {
+			boolean opening = (clientDir == null);
+			if (opening) {
 				String key = keyBuffer.toString();
 				clientDir = new File(dataDir, key);
 
@@ -116,6 +119,12 @@ public class MqttDefaultFilePersistence implements MqttClientPersistence {
 			// still exist if the JVM exited during addMessage, before
 			// the new message was written to disk and the backup removed.
 			restoreBackups(clientDir);
+
+			if (opening) {
+				// No message can still hold a payload spilled before the
+				// directory was last closed
+				deleteStreamedPayloads(clientDir);
+			}
 		}
 	}
 
@@ -144,6 +153,14 @@ public class MqttDefaultFilePersistence implements MqttClientPersistence {
 		}
 	}
 
+	/**
+	 * Returns the directory that holds the messages of the client this
+	 * persistence was opened for, or null if it is not open.
+	 */
+	public File getClientDirectory() {
+		return clientDir;
+	}
+
 	/**
 	 * Writes the specified persistent data to the previously specified persistence directory.
 	 * This method uses a safe overwrite policy to ensure IO errors do not lose messages.
@@ -193,9 +210,28 @@ public class MqttDefaultFilePersistence implements MqttClientPersistence {
 
 	public MqttPersistable get(String key) throws MqttPersistenceException {
 		checkIsOpen();
+		return read(key, new File(clientDir, key+MESSAGE_FILE_EXTENSION));
+	}
+
+	/**
+	 * Returns all of the persistent data, listing the persistence directory
+	 * only once.
+	 */
+	public Hashtable getAll() throws MqttPersistenceException {
+		checkIsOpen();
+		File[] files = getFiles();
+		Hashtable result = new Hashtable(Math.max(11, files.length * 2));
+		for (int i=0;i<files.length;i++) {
+			String filename = files[i].getName();
+			String key = filename.substring(0,filename.length()-MESSAGE_FILE_EXTENSION.length());
+			result.put(key, read(key, files[i]));
+		}
+		return result;
+	}
+
+	private MqttPersistable read(String key, File file) throws MqttPersistenceException {
 		MqttPersistable result;
 		try {
-			File file = new File(clientDir, key+MESSAGE_FILE_EXTENSION);
 			FileInputStream fis = new FileInputStream(file);
 			int size = fis.available();
 			byte[] data = new byte[size];
@@ -281,6 +317,28 @@ public class MqttDefaultFilePersistence implements MqttClientPersistence {
 		}
 	}
 
+	/**
+	 * Deletes the files that streamed payloads were spilled to. These
+	 * will still exist if the JVM exited while a message was being
+	 * delivered.
+	 * @param dir The directory in which to delete the files
+	 */
+	private void deleteStreamedPayloads(File dir) throws MqttPersistenceException {
+		File[] files = dir.listFiles(new FileFilter() {
+			public boolean accept(File f) {
+				return f.getName().startsWith(MqttInputStream.SPILL_FILE_PREFIX)
+						&& f.getName().endsWith(MqttInputStream.SPILL_FILE_SUFFIX);
+			}
+		});
+		if (files == null) {
+			throw new MqttPersistenceException();
+		}
+
+		for (int i=0;i<files.length;i++) {
+			files[i].delete();
+		}
+	}
+
 	public boolean containsKey(String key) throws MqttPersistenceException {
 		checkIsOpen();
 		File file = new File(clientDir, key+MESSAGE_FILE_EXTENSION);